@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Running per-broker totals behind Accounting.getCurrentNetLoad() and
+ * Accounting.getCurrentMarketPosition(). The accounting service records
+ * each tariff and market transaction here as it is added, so both queries
+ * are a map lookup and an array read instead of a scan of the pending
+ * transaction lists.
+ * <p>
+ * Net load is the sum of kWh over CONSUME and PRODUCE tariff transactions
+ * since the last call to startTimeslot(). Market positions are kept per
+ * broker in a small ring indexed by timeslot serial number, so trades for
+ * future timeslots are retained until their timeslot comes up. The ring
+ * must be longer than the market's trading horizon.</p>
+ * <p>
+ * With verify set, the tracker also keeps the transactions it has seen and
+ * recomputes each answer from them, logging an error on any mismatch. This
+ * is for debugging only; it makes both queries linear again.</p>
+ */
+public class BrokerPositionTracker
+{
+  static private Logger log =
+      Logger.getLogger(BrokerPositionTracker.class.getName());
+
+  private static final double EPSILON = 1e-6;
+
+  private final int ringSize;
+  private HashMap<Broker, Account> accounts = new HashMap<Broker, Account>();
+  private int currentSerial = 0;
+
+  // debug mode
+  private boolean verify = false;
+  private ArrayList<TariffTransaction> tariffLog =
+      new ArrayList<TariffTransaction>();
+  private ArrayList<MarketRecord> marketLog = new ArrayList<MarketRecord>();
+
+  public BrokerPositionTracker ()
+  {
+    this(64);
+  }
+
+  /**
+   * Creates a tracker whose position ring holds at least the given number
+   * of timeslots. The size is rounded up to a power of two.
+   */
+  public BrokerPositionTracker (int horizon)
+  {
+    super();
+    int size = 1;
+    while (size < horizon)
+      size <<= 1;
+    ringSize = size;
+  }
+
+  public boolean isVerify ()
+  {
+    return verify;
+  }
+
+  /**
+   * Turns cross-checking against a full recomputation on or off.
+   */
+  public void setVerify (boolean verify)
+  {
+    this.verify = verify;
+    tariffLog.clear();
+    marketLog.clear();
+  }
+
+  /**
+   * Starts a new timeslot. Net load is reset for all brokers, and positions
+   * for earlier timeslots are dropped.
+   */
+  public void startTimeslot (int serial)
+  {
+    currentSerial = serial;
+    for (Account account : accounts.values())
+      account.netLoad = 0.0;
+    if (verify) {
+      tariffLog.clear();
+      Iterator<MarketRecord> records = marketLog.iterator();
+      while (records.hasNext()) {
+        if (records.next().serial < serial)
+          records.remove();
+      }
+    }
+  }
+
+  /**
+   * Records a tariff transaction. Only CONSUME and PRODUCE transactions
+   * affect net load.
+   */
+  public void recordTariffTransaction (TariffTransaction tx)
+  {
+    if (verify)
+      tariffLog.add(tx);
+    if (isEnergy(tx.getTxType()))
+      accountFor(tx.getBroker()).netLoad += tx.getKWh();
+  }
+
+  /**
+   * Records a market transaction.
+   */
+  public void recordMarketTransaction (MarketTransaction tx)
+  {
+    recordMarketTransaction(tx.getBroker(),
+                            tx.getTimeslot().getSerialNumber(), tx.getMWh());
+  }
+
+  /**
+   * Records a trade of mWh for the timeslot with the given serial number.
+   */
+  public void recordMarketTransaction (Broker broker, int serial, double mWh)
+  {
+    if (verify)
+      marketLog.add(new MarketRecord(broker, serial, mWh));
+    Account account = accountFor(broker);
+    int slot = serial & (ringSize - 1);
+    if (account.serials[slot] != serial) {
+      if (account.serials[slot] >= currentSerial
+          && account.positions[slot] != 0.0)
+        log.error("Position ring too short: timeslot " + serial
+                  + " replaces " + account.serials[slot] + " for "
+                  + broker.getUsername());
+      account.serials[slot] = serial;
+      account.positions[slot] = 0.0;
+    }
+    account.positions[slot] += mWh;
+  }
+
+  /**
+   * Returns the net load for the broker in the current timeslot.
+   */
+  public double getNetLoad (Broker broker)
+  {
+    Account account = accounts.get(broker);
+    double result = (null == account) ? 0.0 : account.netLoad;
+    if (verify) {
+      double check = 0.0;
+      for (TariffTransaction tx : tariffLog) {
+        if (tx.getBroker() == broker && isEnergy(tx.getTxType()))
+          check += tx.getKWh();
+      }
+      if (Math.abs(check - result) > EPSILON)
+        log.error("Net load mismatch for " + broker.getUsername()
+                  + ": tracked " + result + ", recomputed " + check);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the broker's market position in the current timeslot.
+   */
+  public double getMarketPosition (Broker broker)
+  {
+    return getMarketPosition(broker, currentSerial);
+  }
+
+  /**
+   * Returns the broker's market position in the timeslot with the given
+   * serial number.
+   */
+  public double getMarketPosition (Broker broker, int serial)
+  {
+    double result = 0.0;
+    Account account = accounts.get(broker);
+    if (null != account) {
+      int slot = serial & (ringSize - 1);
+      if (account.serials[slot] == serial)
+        result = account.positions[slot];
+    }
+    if (verify) {
+      double check = 0.0;
+      for (MarketRecord record : marketLog) {
+        if (record.broker == broker && record.serial == serial)
+          check += record.mWh;
+      }
+      if (Math.abs(check - result) > EPSILON)
+        log.error("Market position mismatch for " + broker.getUsername()
+                  + " in timeslot " + serial + ": tracked " + result
+                  + ", recomputed " + check);
+    }
+    return result;
+  }
+
+  /**
+   * Forgets all brokers and positions.
+   */
+  public void clear ()
+  {
+    accounts.clear();
+    tariffLog.clear();
+    marketLog.clear();
+    currentSerial = 0;
+  }
+
+  private boolean isEnergy (TariffTransaction.Type type)
+  {
+    return type == TariffTransaction.Type.CONSUME
+        || type == TariffTransaction.Type.PRODUCE;
+  }
+
+  private Account accountFor (Broker broker)
+  {
+    Account result = accounts.get(broker);
+    if (null == result) {
+      result = new Account(ringSize);
+      accounts.put(broker, result);
+    }
+    return result;
+  }
+
+  // per-broker running totals
+  private static class Account
+  {
+    double netLoad = 0.0;
+    final int[] serials;
+    final double[] positions;
+
+    Account (int size)
+    {
+      super();
+      serials = new int[size];
+      Arrays.fill(serials, -1);
+      positions = new double[size];
+    }
+  }
+
+  // market trade kept for verification
+  private static class MarketRecord
+  {
+    final Broker broker;
+    final int serial;
+    final double mWh;
+
+    MarketRecord (Broker broker, int serial, double mWh)
+    {
+      super();
+      this.broker = broker;
+      this.serial = serial;
+      this.mWh = mWh;
+    }
+  }
+}
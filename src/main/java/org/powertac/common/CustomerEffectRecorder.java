@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.powertac.common.interfaces.Accounting;
+import org.powertac.common.interfaces.TariffMarket;
+
+/**
+ * Collects the tariff transactions and subscription requests a customer
+ * model produces while it runs on a worker thread, so they can be applied
+ * later, in a fixed order, on the thread that owns Accounting and the
+ * TariffMarket.
+ * <p>
+ * A recorder is attached to the current thread with attach() and removed
+ * with detach(). While one is attached, TariffSubscription and
+ * TariffEvaluator hand their accounting and tariff-market calls to it
+ * instead of making them directly. With no recorder attached, which is the
+ * normal case, they call the services as before.</p>
+ */
+public class CustomerEffectRecorder
+{
+  private static final ThreadLocal<CustomerEffectRecorder> current =
+      new ThreadLocal<CustomerEffectRecorder>();
+
+  private TariffTransactionBatch transactions = new TariffTransactionBatch();
+  private List<SubscriptionRequest> requests =
+      new ArrayList<SubscriptionRequest>();
+
+  public CustomerEffectRecorder ()
+  {
+    super();
+  }
+
+  /**
+   * Returns the recorder attached to the current thread, or null.
+   */
+  public static CustomerEffectRecorder current ()
+  {
+    return current.get();
+  }
+
+  /**
+   * Attaches this recorder to the current thread.
+   */
+  public void attach ()
+  {
+    current.set(this);
+  }
+
+  /**
+   * Removes any recorder from the current thread.
+   */
+  public static void detach ()
+  {
+    current.remove();
+  }
+
+  /**
+   * Records a call to Accounting.addTariffTransaction().
+   */
+  public void addTariffTransaction (TariffTransaction.Type txType,
+                                    Tariff tariff, CustomerInfo customer,
+                                    int customerCount, double kWh,
+                                    double charge)
+  {
+    transactions.add(txType, tariff, customer, customerCount, kWh, charge);
+  }
+
+  /**
+   * Records a call to TariffMarket.subscribeToTariff().
+   */
+  public void subscribeToTariff (Tariff tariff, CustomerInfo customer,
+                                 int customerCount)
+  {
+    requests.add(new SubscriptionRequest(tariff, customer, customerCount));
+  }
+
+  public TariffTransactionBatch getTransactions ()
+  {
+    return transactions;
+  }
+
+  public List<SubscriptionRequest> getSubscriptionRequests ()
+  {
+    return requests;
+  }
+
+  public boolean isEmpty ()
+  {
+    return transactions.isEmpty() && requests.isEmpty();
+  }
+
+  /**
+   * Applies the recorded effects in the order they were recorded: tariff
+   * transactions to accounting, subscription requests to the tariff market.
+   * The recorder is cleared afterwards.
+   */
+  public void replay (Accounting accounting, TariffMarket tariffMarket)
+  {
+    if (!transactions.isEmpty())
+      transactions.postTo(accounting);
+    for (SubscriptionRequest request : requests) {
+      tariffMarket.subscribeToTariff(request.getTariff(),
+                                     request.getCustomer(),
+                                     request.getCustomerCount());
+    }
+    clear();
+  }
+
+  public void clear ()
+  {
+    transactions.clear();
+    requests.clear();
+  }
+
+  /**
+   * One deferred call to TariffMarket.subscribeToTariff().
+   */
+  public static class SubscriptionRequest
+  {
+    private final Tariff tariff;
+    private final CustomerInfo customer;
+    private final int customerCount;
+
+    public SubscriptionRequest (Tariff tariff, CustomerInfo customer,
+                                int customerCount)
+    {
+      super();
+      this.tariff = tariff;
+      this.customer = customer;
+      this.customerCount = customerCount;
+    }
+
+    public Tariff getTariff ()
+    {
+      return tariff;
+    }
+
+    public CustomerInfo getCustomer ()
+    {
+      return customer;
+    }
+
+    public int getCustomerCount ()
+    {
+      return customerCount;
+    }
+  }
+}
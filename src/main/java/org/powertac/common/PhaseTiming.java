@@ -0,0 +1,437 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Timing statistics for TimeslotPhaseProcessors, collected by
+ * TimeslotPhaseScheduler when one is attached with setTiming().
+ * <p>
+ * For each processor and phase it keeps a count, total, maximum, and a
+ * log2 histogram of activation times, where bucket i counts activations
+ * that took less than 2^i microseconds but not less than 2^(i-1). For each
+ * timeslot it keeps a breakdown by processor, which is logged with a
+ * summary every summaryInterval timeslots.</p>
+ * <p>
+ * When a timeslot budget is set, a watchdog thread checks running
+ * processors and logs a stack sample of any that has been running longer
+ * than watchdogFraction of the budget, once per activation. Call
+ * shutdown() to stop it. register() publishes the statistics over JMX.</p>
+ */
+public class PhaseTiming implements PhaseTimingMBean
+{
+  static private Logger log = Logger.getLogger(PhaseTiming.class.getName());
+
+  public static final int BUCKETS = 40;
+
+  private ConcurrentHashMap<String, Stats> stats =
+      new ConcurrentHashMap<String, Stats>();
+
+  // current and last timeslot
+  private LinkedHashMap<String, Long> breakdown =
+      new LinkedHashMap<String, Long>();
+  private long timeslotStart = 0l;
+  private volatile String lastBreakdown = "";
+  private volatile long lastTimeslotMillis = 0l;
+  private volatile int timeslotCount = 0;
+
+  // configuration
+  private volatile long budgetMillis = 0l;
+  private volatile double watchdogFraction = 0.5;
+  private volatile int summaryInterval = 24;
+  private long pollMillis = 100l;
+
+  // watchdog state
+  private ConcurrentHashMap<Thread, Activation> running =
+      new ConcurrentHashMap<Thread, Activation>();
+  private Thread watchdog = null;
+  private volatile int watchdogReports = 0;
+
+  // source of nanosecond times, replaced in tests
+  private volatile Clock clock = SYSTEM_CLOCK;
+
+  public PhaseTiming ()
+  {
+    super();
+  }
+
+  /**
+   * Registers this instance with the platform MBean server under the given
+   * name, for example "org.powertac:type=PhaseTiming". Returns false and
+   * logs a warning if registration fails.
+   */
+  public boolean register (String objectName)
+  {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.registerMBean(this, new ObjectName(objectName));
+      return true;
+    }
+    catch (Exception e) {
+      log.warn("Cannot register " + objectName + ": " + e.toString());
+      return false;
+    }
+  }
+
+  // ------------------ collection, called by the scheduler ------------------
+
+  /**
+   * Marks the start of a timeslot.
+   */
+  public synchronized void startTimeslot ()
+  {
+    breakdown.clear();
+    timeslotStart = clock.nanoTime();
+  }
+
+  /**
+   * Marks the start of an activation on the current thread and returns its
+   * start time, to be passed to stop().
+   */
+  public long start (String processor)
+  {
+    long now = clock.nanoTime();
+    running.put(Thread.currentThread(), new Activation(processor, now));
+    return now;
+  }
+
+  /**
+   * Records the end of an activation started with start().
+   */
+  public void stop (String processor, long startNanos)
+  {
+    long elapsed = clock.nanoTime() - startNanos;
+    running.remove(Thread.currentThread());
+    Stats entry = stats.get(processor);
+    if (null == entry) {
+      Stats fresh = new Stats();
+      entry = stats.putIfAbsent(processor, fresh);
+      if (null == entry)
+        entry = fresh;
+    }
+    entry.record(elapsed);
+    synchronized (this) {
+      Long previous = breakdown.get(processor);
+      breakdown.put(processor,
+                    null == previous ? elapsed : previous + elapsed);
+    }
+  }
+
+  /**
+   * Marks the end of a timeslot, and logs a summary if one is due.
+   */
+  public void endTimeslot ()
+  {
+    StringBuilder sb = new StringBuilder();
+    synchronized (this) {
+      lastTimeslotMillis = (clock.nanoTime() - timeslotStart) / 1000000l;
+      sb.append("total=").append(lastTimeslotMillis).append("ms");
+      for (Map.Entry<String, Long> entry : breakdown.entrySet()) {
+        sb.append(", ").append(entry.getKey()).append('=')
+          .append(entry.getValue() / 1000000l).append("ms");
+      }
+      timeslotCount += 1;
+    }
+    lastBreakdown = sb.toString();
+    if (budgetMillis > 0 && lastTimeslotMillis > budgetMillis)
+      log.warn("Timeslot over budget: " + lastBreakdown);
+    else if (log.isDebugEnabled())
+      log.debug("Timeslot " + lastBreakdown);
+    int interval = summaryInterval;
+    if (interval > 0 && timeslotCount % interval == 0)
+      log.info("Phase timing after " + timeslotCount + " timeslots: "
+               + summaryLine());
+  }
+
+  // ------------------------------ MBean -------------------------------
+
+  @Override
+  public int getTimeslotCount ()
+  {
+    return timeslotCount;
+  }
+
+  @Override
+  public long getLastTimeslotMillis ()
+  {
+    return lastTimeslotMillis;
+  }
+
+  @Override
+  public String getLastTimeslotBreakdown ()
+  {
+    return lastBreakdown;
+  }
+
+  @Override
+  public String[] getProcessorSummaries ()
+  {
+    List<String> result = new ArrayList<String>();
+    for (Map.Entry<String, Stats> entry : sortedStats().entrySet()) {
+      result.add(entry.getKey() + ": " + entry.getValue().summary());
+    }
+    return result.toArray(new String[result.size()]);
+  }
+
+  @Override
+  public long[] getHistogram (String processor)
+  {
+    Stats entry = stats.get(processor);
+    if (null == entry)
+      return new long[BUCKETS];
+    return entry.histogram();
+  }
+
+  @Override
+  public long getTimeslotBudgetMillis ()
+  {
+    return budgetMillis;
+  }
+
+  /**
+   * Sets the wall-clock budget for one timeslot, and starts the watchdog
+   * if the budget is positive.
+   */
+  @Override
+  public void setTimeslotBudgetMillis (long budget)
+  {
+    budgetMillis = budget;
+    if (budget > 0)
+      startWatchdog();
+  }
+
+  @Override
+  public double getWatchdogFraction ()
+  {
+    return watchdogFraction;
+  }
+
+  @Override
+  public void setWatchdogFraction (double fraction)
+  {
+    watchdogFraction = fraction;
+  }
+
+  @Override
+  public int getSummaryInterval ()
+  {
+    return summaryInterval;
+  }
+
+  @Override
+  public void setSummaryInterval (int timeslots)
+  {
+    summaryInterval = timeslots;
+  }
+
+  @Override
+  public synchronized void reset ()
+  {
+    stats.clear();
+    breakdown.clear();
+    lastBreakdown = "";
+    lastTimeslotMillis = 0l;
+    timeslotCount = 0;
+  }
+
+  /**
+   * Stops the watchdog thread.
+   */
+  public synchronized void shutdown ()
+  {
+    if (null != watchdog) {
+      watchdog.interrupt();
+      watchdog = null;
+    }
+  }
+
+  // test support
+  void setPollMillis (long millis)
+  {
+    pollMillis = millis;
+  }
+
+  // test support
+  void setClock (Clock clock)
+  {
+    this.clock = clock;
+  }
+
+  // test support: activations reported so far
+  int getWatchdogReports ()
+  {
+    return watchdogReports;
+  }
+
+  private TreeMap<String, Stats> sortedStats ()
+  {
+    return new TreeMap<String, Stats>(stats);
+  }
+
+  private String summaryLine ()
+  {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Stats> entry : sortedStats().entrySet()) {
+      if (sb.length() > 0)
+        sb.append("; ");
+      sb.append(entry.getKey()).append(' ').append(entry.getValue().summary());
+    }
+    return sb.toString();
+  }
+
+  // -------------------------- watchdog --------------------------
+
+  private synchronized void startWatchdog ()
+  {
+    if (null != watchdog)
+      return;
+    watchdog = new Thread("phase-watchdog") {
+      @Override
+      public void run ()
+      {
+        while (!isInterrupted()) {
+          try {
+            Thread.sleep(pollMillis);
+          }
+          catch (InterruptedException ie) {
+            return;
+          }
+          checkRunning();
+        }
+      }
+    };
+    watchdog.setDaemon(true);
+    watchdog.start();
+  }
+
+  // logs activations that have run too long; returns how many were new
+  int checkRunning ()
+  {
+    int result = 0;
+    long budget = budgetMillis;
+    if (budget <= 0)
+      return result;
+    long limit = (long) (budget * 1000000l * watchdogFraction);
+    long now = clock.nanoTime();
+    for (Map.Entry<Thread, Activation> entry : running.entrySet()) {
+      Activation activation = entry.getValue();
+      if (activation.reported || now - activation.startNanos < limit)
+        continue;
+      activation.reported = true;
+      result += 1;
+      watchdogReports += 1;
+      StringBuilder sb = new StringBuilder();
+      sb.append(activation.processor).append(" running for ")
+        .append((now - activation.startNanos) / 1000000l)
+        .append("ms of ").append(budget).append("ms budget, thread ")
+        .append(entry.getKey().getName());
+      for (StackTraceElement frame : entry.getKey().getStackTrace()) {
+        sb.append("\n\tat ").append(frame);
+      }
+      log.warn(sb.toString());
+    }
+    return result;
+  }
+
+  // ---------------------------- data ------------------------------
+
+  // Nanosecond time source, so tests can control elapsed times
+  interface Clock
+  {
+    long nanoTime ();
+  }
+
+  private static final Clock SYSTEM_CLOCK = new Clock() {
+    @Override
+    public long nanoTime ()
+    {
+      return System.nanoTime();
+    }
+  };
+
+  private static class Activation
+  {
+    final String processor;
+    final long startNanos;
+    volatile boolean reported = false;
+
+    Activation (String processor, long startNanos)
+    {
+      super();
+      this.processor = processor;
+      this.startNanos = startNanos;
+    }
+  }
+
+  private static class Stats
+  {
+    private long count = 0l;
+    private long totalNanos = 0l;
+    private long maxNanos = 0l;
+    private long[] buckets = new long[BUCKETS];
+
+    synchronized void record (long nanos)
+    {
+      count += 1;
+      totalNanos += nanos;
+      maxNanos = Math.max(maxNanos, nanos);
+      long micros = nanos / 1000l;
+      int bucket = 64 - Long.numberOfLeadingZeros(micros);
+      buckets[Math.min(bucket, BUCKETS - 1)] += 1;
+    }
+
+    synchronized long[] histogram ()
+    {
+      return buckets.clone();
+    }
+
+    // upper bound in microseconds of the bucket holding the given quantile
+    synchronized long quantile (double q)
+    {
+      long target = (long) Math.ceil(count * q);
+      long seen = 0l;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += buckets[i];
+        if (seen >= target && seen > 0)
+          return 1l << i;
+      }
+      return 0l;
+    }
+
+    synchronized String summary ()
+    {
+      if (0 == count)
+        return "n=0";
+      return "n=" + count
+          + " mean=" + (totalNanos / count / 1000l) + "us"
+          + " p50<" + quantile(0.5) + "us"
+          + " p99<" + quantile(0.99) + "us"
+          + " max=" + (maxNanos / 1000l) + "us";
+    }
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+/**
+ * JMX management interface for PhaseTiming.
+ */
+public interface PhaseTimingMBean
+{
+  /** Number of timeslots completed since the last reset */
+  public int getTimeslotCount ();
+
+  /** Wall-clock time of the last completed timeslot */
+  public long getLastTimeslotMillis ();
+
+  /** Per-processor times for the last completed timeslot */
+  public String getLastTimeslotBreakdown ();
+
+  /** One line per processor with count, mean, max, and percentiles */
+  public String[] getProcessorSummaries ();
+
+  /** Log2 latency histogram for one processor, as bucket counts */
+  public long[] getHistogram (String processor);
+
+  public long getTimeslotBudgetMillis ();
+
+  public void setTimeslotBudgetMillis (long budget);
+
+  public double getWatchdogFraction ();
+
+  public void setWatchdogFraction (double fraction);
+
+  public int getSummaryInterval ();
+
+  public void setSummaryInterval (int timeslots);
+
+  /** Clears all statistics */
+  public void reset ();
+}
@@ -77,6 +77,115 @@ public class RandomSeed extends java.util.Random
     this.setSeed(this.value);
   }
 
+  // ------------ bulk variates ------------
+  // Each of these draws exactly the same sequence as the equivalent
+  // series of single calls, so models can switch between them freely.
+
+  /**
+   * Fills length elements of result, starting at offset, with uniform
+   * samples from nextDouble().
+   */
+  public void nextDoubles (double[] result, int offset, int length)
+  {
+    int end = offset + length;
+    for (int i = offset; i < end; i++) {
+      result[i] = nextDouble();
+    }
+  }
+
+  /**
+   * Fills result with uniform samples from nextDouble().
+   */
+  public void nextDoubles (double[] result)
+  {
+    nextDoubles(result, 0, result.length);
+  }
+
+  /**
+   * Fills length elements of result, starting at offset, with standard
+   * normal samples from nextGaussian().
+   */
+  public void nextGaussians (double[] result, int offset, int length)
+  {
+    int end = offset + length;
+    for (int i = offset; i < end; i++) {
+      result[i] = nextGaussian();
+    }
+  }
+
+  /**
+   * Fills result with standard normal samples from nextGaussian().
+   */
+  public void nextGaussians (double[] result)
+  {
+    nextGaussians(result, 0, result.length);
+  }
+
+  /**
+   * Returns the number of successes in n trials with success probability p.
+   * Uses the geometric waiting-time method, which is exact and takes
+   * about n * min(p, 1-p) + 1 uniform draws.
+   */
+  public int nextBinomial (int n, double p)
+  {
+    if (n <= 0 || p <= 0.0)
+      return 0;
+    if (p >= 1.0)
+      return n;
+    if (p > 0.5)
+      return n - nextBinomial(n, 1.0 - p);
+    double logQ = Math.log1p(-p);
+    int successes = 0;
+    double position = 0.0;
+    while (true) {
+      // 1 - u is in (0, 1], so the log is finite
+      double u = 1.0 - nextDouble();
+      position += Math.ceil(Math.log(u) / logQ);
+      if (position > n)
+        return successes;
+      successes += 1;
+    }
+  }
+
+  /**
+   * Fills result with samples from nextBinomial(n, p).
+   */
+  public void nextBinomials (int[] result, int n, double p)
+  {
+    for (int i = 0; i < result.length; i++) {
+      result[i] = nextBinomial(n, p);
+    }
+  }
+
+  /**
+   * Distributes n trials over the categories in probabilities, writing the
+   * count for each category into the corresponding element of counts. The
+   * probabilities are normalized by their sum. Draws one binomial per
+   * category, each conditioned on the trials left over by the categories
+   * before it.
+   */
+  public void nextMultinomial (int n, double[] probabilities, int[] counts)
+  {
+    double remainingProbability = 0.0;
+    for (double prob : probabilities) {
+      remainingProbability += prob;
+    }
+    int remaining = n;
+    int last = probabilities.length - 1;
+    for (int i = 0; i < last; i++) {
+      if (remaining <= 0 || remainingProbability <= 0.0) {
+        counts[i] = 0;
+        continue;
+      }
+      counts[i] = nextBinomial(remaining,
+                               probabilities[i] / remainingProbability);
+      remaining -= counts[i];
+      remainingProbability -= probabilities[i];
+    }
+    if (last >= 0)
+      counts[last] = Math.max(remaining, 0);
+  }
+
   public long getId ()
   {
     return id;
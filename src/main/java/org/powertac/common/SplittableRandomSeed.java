@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RandomSeed backed by the SplitMix64 generator instead of the linear
+ * congruential generator in java.util.Random. Draws are not synchronized
+ * and do not go through an AtomicLong, so an instance must not be shared
+ * among threads; use split() to give each thread or customer its own
+ * stream.
+ * <p>
+ * Like any RandomSeed, instances are seeded by a single long value that
+ * is recorded in the state log, so a game can be replayed through
+ * RandomSeedRepo. Child streams created by split() are a pure function
+ * of the parent's value and the child index. They do not depend on how
+ * many values the parent has drawn or on the order in which the children
+ * are created, so parallel evaluation stays reproducible.</p>
+ * <p>
+ * Get instances through RandomSeedRepo.getSplittableRandomSeed().</p>
+ */
+public class SplittableRandomSeed extends RandomSeed
+{
+  private static final long serialVersionUID = 1L;
+
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+  private static final long CHILD_GAMMA = 0xbf58476d1ce4e5b9L;
+  private static final AtomicLong seedUniquifier =
+      new AtomicLong(System.currentTimeMillis());
+
+  // generator state. No initializer, because setSeed() is called from
+  // the superclass constructors before field initializers would run.
+  private long state;
+
+  // cached second value from the polar method
+  private double nextNextGaussian;
+  private boolean haveNextNextGaussian;
+
+  /**
+   * Creates a new seed with a random value.
+   */
+  public SplittableRandomSeed (String classname, long requesterId,
+                               String purpose)
+  {
+    this(classname, requesterId, purpose, freshSeedValue());
+  }
+
+  /**
+   * Re-creates a seed with a given value, typically one recorded in
+   * the state log of an earlier game.
+   */
+  public SplittableRandomSeed (String classname, long requesterId,
+                               String purpose, long value)
+  {
+    super(classname, requesterId, purpose, value);
+  }
+
+  /**
+   * Returns the child stream with the given index. The child is identified
+   * by the parent's requester class and id, with the index appended to the
+   * purpose.
+   */
+  public SplittableRandomSeed split (long index)
+  {
+    long childValue = mix64(getValue() + mix64((index + 1) * CHILD_GAMMA));
+    return new SplittableRandomSeed(getRequesterClass(), getRequesterId(),
+                                    getPurpose() + "/" + index, childValue);
+  }
+
+  @Override
+  public void setSeed (long seed)
+  {
+    super.setSeed(seed);
+    state = mix64(seed);
+    haveNextNextGaussian = false;
+  }
+
+  @Override
+  protected int next (int bits)
+  {
+    return (int) (nextLong() >>> (64 - bits));
+  }
+
+  @Override
+  public long nextLong ()
+  {
+    state += GOLDEN_GAMMA;
+    return mix64(state);
+  }
+
+  @Override
+  public int nextInt ()
+  {
+    return (int) (nextLong() >>> 32);
+  }
+
+  @Override
+  public double nextDouble ()
+  {
+    return (nextLong() >>> 11) * 0x1.0p-53;
+  }
+
+  /**
+   * Same polar method as java.util.Random, without the lock.
+   */
+  @Override
+  public double nextGaussian ()
+  {
+    if (haveNextNextGaussian) {
+      haveNextNextGaussian = false;
+      return nextNextGaussian;
+    }
+    double v1, v2, s;
+    do {
+      v1 = 2 * nextDouble() - 1;
+      v2 = 2 * nextDouble() - 1;
+      s = v1 * v1 + v2 * v2;
+    } while (s >= 1 || s == 0);
+    double multiplier = StrictMath.sqrt(-2 * StrictMath.log(s) / s);
+    nextNextGaussian = v2 * multiplier;
+    haveNextNextGaussian = true;
+    return v1 * multiplier;
+  }
+
+  // SplitMix64 output function
+  private static long mix64 (long z)
+  {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  private static long freshSeedValue ()
+  {
+    return mix64(seedUniquifier.addAndGet(GOLDEN_GAMMA) ^ System.nanoTime());
+  }
+}
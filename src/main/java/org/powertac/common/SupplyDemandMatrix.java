@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Dense broker-by-transaction-type table of kWh totals for the current
+ * timeslot. Rows are indexed by broker ordinal, columns by
+ * TariffTransaction.Type.ordinal(). Brokers get an ordinal the first time
+ * they appear and keep it for the rest of the session, so a caller can
+ * allocate its matrix once and refill it every timeslot.
+ * <p>
+ * An Accounting service that implements ColumnarAccounting updates the
+ * matrix as tariff transactions are added and clears it when the pending
+ * transactions are processed. It
+ * carries the same numbers as getCurrentSupplyDemandByBroker(), without
+ * the nested maps and boxed values. Not thread-safe.</p>
+ */
+public class SupplyDemandMatrix
+{
+  /** Number of columns, one per TariffTransaction.Type */
+  public static final int TYPE_COUNT = TariffTransaction.Type.values().length;
+
+  private HashMap<Broker, Integer> ordinals = new HashMap<Broker, Integer>();
+  private ArrayList<Broker> brokers = new ArrayList<Broker>();
+  private double[][] values = new double[4][TYPE_COUNT];
+
+  public SupplyDemandMatrix ()
+  {
+    super();
+  }
+
+  /**
+   * Adds the kWh of a transaction to its broker and type.
+   */
+  public void add (TariffTransaction tx)
+  {
+    add(tx.getBroker(), tx.getTxType(), tx.getKWh());
+  }
+
+  /**
+   * Adds kWh to the cell for the given broker and type, assigning the
+   * broker an ordinal if it does not have one yet.
+   */
+  public void add (Broker broker, TariffTransaction.Type type, double kWh)
+  {
+    // ordinalFor() may replace the values array
+    int row = ordinalFor(broker);
+    values[row][type.ordinal()] += kWh;
+  }
+
+  /**
+   * Zeroes all cells. Broker ordinals are kept.
+   */
+  public void clear ()
+  {
+    for (int i = 0; i < brokers.size(); i++)
+      Arrays.fill(values[i], 0.0);
+  }
+
+  /**
+   * Number of brokers that have an ordinal.
+   */
+  public int getBrokerCount ()
+  {
+    return brokers.size();
+  }
+
+  /**
+   * Returns the ordinal of the given broker, or -1 if it has not had a
+   * transaction yet.
+   */
+  public int getBrokerOrdinal (Broker broker)
+  {
+    Integer result = ordinals.get(broker);
+    return null == result ? -1 : result;
+  }
+
+  /**
+   * Returns the broker with the given ordinal.
+   */
+  public Broker getBroker (int ordinal)
+  {
+    return brokers.get(ordinal);
+  }
+
+  /**
+   * Returns the brokers in ordinal order.
+   */
+  public List<Broker> getBrokers ()
+  {
+    return new ArrayList<Broker>(brokers);
+  }
+
+  /**
+   * Returns a single cell.
+   */
+  public double get (int brokerOrdinal, TariffTransaction.Type type)
+  {
+    if (brokerOrdinal < 0 || brokerOrdinal >= brokers.size())
+      return 0.0;
+    return values[brokerOrdinal][type.ordinal()];
+  }
+
+  /**
+   * Copies the current totals into a caller-owned matrix, which must have
+   * at least getBrokerCount() rows of at least TYPE_COUNT columns. Extra
+   * rows are left untouched. Returns the number of rows filled.
+   */
+  public int fill (double[][] target)
+  {
+    int rows = brokers.size();
+    if (target.length < rows)
+      throw new IllegalArgumentException("matrix has " + target.length
+                                         + " rows, needs " + rows);
+    for (int i = 0; i < rows; i++) {
+      if (target[i].length < TYPE_COUNT)
+        throw new IllegalArgumentException("matrix row " + i + " has "
+                                           + target[i].length
+                                           + " columns, needs " + TYPE_COUNT);
+      System.arraycopy(values[i], 0, target[i], 0, TYPE_COUNT);
+    }
+    return rows;
+  }
+
+  private int ordinalFor (Broker broker)
+  {
+    Integer result = ordinals.get(broker);
+    if (null != result)
+      return result;
+    int ordinal = brokers.size();
+    if (ordinal == values.length) {
+      double[][] grown = new double[ordinal * 2][];
+      System.arraycopy(values, 0, grown, 0, ordinal);
+      for (int i = ordinal; i < grown.length; i++)
+        grown[i] = new double[TYPE_COUNT];
+      values = grown;
+    }
+    brokers.add(broker);
+    ordinals.put(broker, ordinal);
+    return ordinal;
+  }
+}
@@ -616,7 +616,11 @@ public class TariffEvaluator
       }
       else if (count > 0) {
         // subscribe
-        getTariffMarket().subscribeToTariff(tariff, customerInfo, count);
+        CustomerEffectRecorder recorder = CustomerEffectRecorder.current();
+        if (null != recorder)
+          recorder.subscribeToTariff(tariff, customerInfo, count);
+        else
+          getTariffMarket().subscribeToTariff(tariff, customerInfo, count);
         log.info("customer " + customerInfo.getName()
                  + " subscribes " + count
                  + " to tariff " + tariff.getId());
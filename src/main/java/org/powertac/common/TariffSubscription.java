@@ -75,6 +75,9 @@ public class TariffSubscription
   /** Count of customers who will not be subscribers in the next timeslot */
   private int pendingUnsubscribeCount = 0; 
 
+  /** Collects the SIGNUP transaction during a bulk subscribe */
+  private TariffTransactionBatch signupBatch = null;
+
   // ------------- Regulation capacity ----------------
   /** Pending economic regulation (from phase 1) */
   private double pendingRegulationRatio = 0.0;
@@ -130,6 +133,15 @@ public class TariffSubscription
     return totalUsage;
   }
 
+  /**
+   * Returns the number of customers who have asked to leave this
+   * subscription and will not be subscribers in the next timeslot.
+   */
+  public int getPendingUnsubscribeCount ()
+  {
+    return pendingUnsubscribeCount;
+  }
+
   // ============================ Customer API ===============================
 
   /**
@@ -141,6 +153,52 @@ public class TariffSubscription
    */
   @StateChange
   public void subscribe (int customerCount)
+  {
+    commitCustomers(customerCount, dayStart());
+    // post the signup bonus
+    if (tariff.getSignupPayment() != 0.0) {
+      log.debug("signup bonus: " + customerCount + 
+                " customers, total = " + customerCount * tariff.getSignupPayment());
+    }
+    // signup payment is positive for a bonus, so it's a debit for the broker.
+    if (null != signupBatch)
+      signupBatch.add(TariffTransaction.Type.SIGNUP, tariff, customer,
+                      customerCount, 0.0,
+                      customerCount * -tariff.getSignupPayment());
+    else
+      postTariffTransaction(TariffTransaction.Type.SIGNUP,
+                            tariff, customer, 
+                            customerCount, 0.0,
+                            customerCount * -tariff.getSignupPayment());
+  }
+
+  /**
+   * Subscribes customers as in subscribe(int), but adds the SIGNUP
+   * transaction to the given batch instead of posting it. Used for bulk
+   * subscription, where the caller posts the whole batch at once. The work
+   * is done by subscribe(int), so the state log records the same
+   * subscribe entry as for a single subscription.
+   */
+  public void subscribe (int customerCount, TariffTransactionBatch batch)
+  {
+    signupBatch = batch;
+    try {
+      subscribe(customerCount);
+    }
+    finally {
+      signupBatch = null;
+    }
+  }
+
+  // Computes the 00:00 Instant for the current time, in millis
+  private long dayStart ()
+  {
+    return getTimeService().truncateInstant(getTimeService().getCurrentTime(),
+                                            TimeService.DAY).getMillis();
+  }
+
+  // Updates the customer count and the expiration records
+  private void commitCustomers (int customerCount, long dayStart)
   {
     // first, update the customer count
     setCustomersCommitted(getCustomersCommitted() + customerCount);
@@ -149,32 +207,16 @@ public class TariffSubscription
     // we do this by adding an entry to end of list, or updating the entry at the end.
     // An entry is a pair [Instant, count]
     long minDuration = tariff.getMinDuration();
-    //if (minDuration > 0) {
-    // Compute the 00:00 Instant for the current time
-    Instant start =
-            getTimeService().truncateInstant(getTimeService().getCurrentTime(),
-                                             TimeService.DAY);
     if (expirations.size() > 0 &&
-        expirations.get(expirations.size() - 1).getHorizon() == start.getMillis() + minDuration) {
+        expirations.get(expirations.size() - 1).getHorizon() == dayStart + minDuration) {
       // update existing entry
       expirations.get(expirations.size() - 1).updateCount(customerCount);
     }
     else {
       // need a new entry
-      expirations.add(new ExpirationRecord(start.getMillis() + minDuration,
+      expirations.add(new ExpirationRecord(dayStart + minDuration,
                                            customerCount));
     }
-    //}
-    // post the signup bonus
-    if (tariff.getSignupPayment() != 0.0) {
-      log.debug("signup bonus: " + customerCount + 
-                " customers, total = " + customerCount * tariff.getSignupPayment());
-    }
-    // signup payment is positive for a bonus, so it's a debit for the broker.
-    getAccounting().addTariffTransaction(TariffTransaction.Type.SIGNUP,
-                                         tariff, customer, 
-                                         customerCount, 0.0,
-                                         customerCount * -tariff.getSignupPayment());
   }
 
   /**
@@ -183,9 +225,7 @@ public class TariffSubscription
    */
   public void unsubscribe (int customerCount)
   {
-    getTariffMarket().subscribeToTariff(getTariff(),
-                                          getCustomer(),
-                                          -customerCount);
+    requestSubscription(getTariff(), getCustomer(), -customerCount);
     pendingUnsubscribeCount += customerCount;
   }
 
@@ -237,15 +277,15 @@ public class TariffSubscription
     if (tariff.isRevoked()) {
       withdrawPayment = 0.0;
     }
-    getAccounting().addTariffTransaction(TariffTransaction.Type.WITHDRAW,
-                                         tariff, customer, customerCount, 0.0,
-                                         penaltyCount * withdrawPayment);
+    postTariffTransaction(TariffTransaction.Type.WITHDRAW,
+                          tariff, customer, customerCount, 0.0,
+                          penaltyCount * withdrawPayment);
     if (tariff.getSignupPayment() < 0.0) {
       // Refund signup payment
-      getAccounting().addTariffTransaction(TariffTransaction.Type.REFUND,
-                                           tariff, customer,
-                                           customerCount, 0.0,
-                                           customerCount * tariff.getSignupPayment());
+      postTariffTransaction(TariffTransaction.Type.REFUND,
+                            tariff, customer,
+                            customerCount, 0.0,
+                            customerCount * tariff.getSignupPayment());
     }
   }
 
@@ -291,10 +331,8 @@ public class TariffSubscription
                 .getPowerType().getGenericType());
     }
 
-    getTariffMarket().subscribeToTariff(tariff, customer,
-                                          -customersCommitted);
-    getTariffMarket().subscribeToTariff(newTariff, customer,
-                                          customersCommitted);
+    requestSubscription(tariff, customer, -customersCommitted);
+    requestSubscription(newTariff, customer, customersCommitted);
     log.info("Tariff " + tariff.getId() + " superseded by " + newTariff.getId()
              + " for " + customersCommitted + " customers");
     // customersCommitted = 0;
@@ -324,7 +362,7 @@ public class TariffSubscription
     // generate the usage transaction
     TariffTransaction.Type txType =
         actualKwh < 0 ? TariffTransaction.Type.PRODUCE: TariffTransaction.Type.CONSUME;
-    getAccounting().addTariffTransaction(txType, tariff,
+    postTariffTransaction(txType, tariff,
         customer, customersCommitted, -actualKwh,
         customersCommitted * -tariff.getUsageCharge(actualKwh / customersCommitted, totalUsage, true));
     if (getTimeService().getHourOfDay() == 0) {
@@ -334,7 +372,7 @@ public class TariffSubscription
     totalUsage += actualKwh / customersCommitted;
     // generate the periodic payment if necessary
     if (tariff.getPeriodicPayment() != 0.0) {
-      getAccounting().addTariffTransaction(TariffTransaction.Type.PERIODIC,
+      postTariffTransaction(TariffTransaction.Type.PERIODIC,
           tariff, customer, customersCommitted, 0.0,
           customersCommitted * -tariff.getPeriodicPayment() / 24.0);
     }
@@ -379,6 +417,55 @@ public class TariffSubscription
     return result;
   }
 
+  /**
+   * Returns the regulation that getRegulation() would return, without
+   * resetting it.
+   */
+  public synchronized double getUnreadRegulation ()
+  {
+    return regulation;
+  }
+
+  /**
+   * Returns the economic control ratio posted for the current timeslot.
+   */
+  public synchronized double getPendingRegulationRatio ()
+  {
+    return pendingRegulationRatio;
+  }
+
+  /**
+   * Returns the per-member regulation capacity for the current timeslot.
+   */
+  public RegulationCapacity getRegulationCapacity ()
+  {
+    ensureRegulationCapacity();
+    return regulationCapacity;
+  }
+
+  /**
+   * Sets the state that changes as customers use power and controls are
+   * exercised within a timeslot: the daily usage, the pending unsubscribe
+   * count, the economic control ratio, the unread regulation and the
+   * per-member regulation capacity. Used to keep the copies of a
+   * subscription in the server and in a customer shard worker in step.
+   */
+  @StateChange
+  public synchronized void setTimeslotState (double totalUsage,
+                                             int pendingUnsubscribeCount,
+                                             double pendingRegulationRatio,
+                                             double regulation,
+                                             double upRegulationCapacity,
+                                             double downRegulationCapacity)
+  {
+    this.totalUsage = totalUsage;
+    this.pendingUnsubscribeCount = pendingUnsubscribeCount;
+    this.pendingRegulationRatio = pendingRegulationRatio;
+    this.regulation = regulation;
+    regulationCapacity = new RegulationCapacity(this, upRegulationCapacity,
+                                                downRegulationCapacity);
+  }
+
   /**
    * Communicates the ability of the customer model to handle regulation
    * requests. Quantities are per-member.
@@ -512,7 +599,7 @@ public class TariffSubscription
     TariffTransaction.Type txType =
       kwh > 0? TariffTransaction.Type.PRODUCE: TariffTransaction.Type.CONSUME;
       // simple net metering
-    getAccounting().addTariffTransaction(txType, tariff,
+    postTariffTransaction(txType, tariff,
         customer, customersCommitted, kwh,
         customersCommitted *
           tariff.getRegulationCharge(-kwh / customersCommitted, 
@@ -574,6 +661,36 @@ public class TariffSubscription
     regulation += kwh;
   }
 
+  // ============ accounting and tariff market, possibly deferred ============
+
+  // Posts a tariff transaction, or records it if a customer model is being
+  // stepped on a worker thread
+  private void postTariffTransaction (TariffTransaction.Type txType,
+                                      Tariff txTariff, CustomerInfo txCustomer,
+                                      int customerCount, double kWh,
+                                      double charge)
+  {
+    CustomerEffectRecorder recorder = CustomerEffectRecorder.current();
+    if (null != recorder)
+      recorder.addTariffTransaction(txType, txTariff, txCustomer,
+                                    customerCount, kWh, charge);
+    else
+      getAccounting().addTariffTransaction(txType, txTariff, txCustomer,
+                                           customerCount, kWh, charge);
+  }
+
+  // Same for subscription changes
+  private void requestSubscription (Tariff newTariff, CustomerInfo txCustomer,
+                                    int customerCount)
+  {
+    CustomerEffectRecorder recorder = CustomerEffectRecorder.current();
+    if (null != recorder)
+      recorder.subscribeToTariff(newTariff, txCustomer, customerCount);
+    else
+      getTariffMarket().subscribeToTariff(newTariff, txCustomer,
+                                          customerCount);
+  }
+
   // ================= access to Spring components =======================
   
   private TimeService getTimeService ()
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.powertac.common.interfaces.Accounting;
+import org.powertac.common.interfaces.BulkAccounting;
+
+/**
+ * Batch of tariff transactions waiting to be posted to Accounting, kept as
+ * parallel arrays with one entry per addTariffTransaction() call. A batch
+ * can be reused after clear(); the arrays keep their capacity.
+ * <p>
+ * Use postTo() to hand the batch to Accounting. If the accounting service
+ * implements BulkAccounting the whole batch goes through one call,
+ * otherwise the entries are posted one at a time in order.</p>
+ */
+public class TariffTransactionBatch
+{
+  private int size = 0;
+  private TariffTransaction.Type[] type;
+  private Tariff[] tariff;
+  private CustomerInfo[] customer;
+  private int[] customerCount;
+  private double[] kWh;
+  private double[] charge;
+
+  public TariffTransactionBatch ()
+  {
+    this(16);
+  }
+
+  public TariffTransactionBatch (int initialCapacity)
+  {
+    super();
+    int capacity = Math.max(initialCapacity, 4);
+    type = new TariffTransaction.Type[capacity];
+    tariff = new Tariff[capacity];
+    customer = new CustomerInfo[capacity];
+    customerCount = new int[capacity];
+    kWh = new double[capacity];
+    charge = new double[capacity];
+  }
+
+  /**
+   * Adds an entry. Arguments are the same as for
+   * Accounting.addTariffTransaction().
+   */
+  public void add (TariffTransaction.Type txType, Tariff txTariff,
+                   CustomerInfo txCustomer, int count, double energy,
+                   double money)
+  {
+    if (size == type.length)
+      grow();
+    type[size] = txType;
+    tariff[size] = txTariff;
+    customer[size] = txCustomer;
+    customerCount[size] = count;
+    kWh[size] = energy;
+    charge[size] = money;
+    size += 1;
+  }
+
+  /**
+   * Appends all entries of another batch.
+   */
+  public void addAll (TariffTransactionBatch other)
+  {
+    for (int i = 0; i < other.size; i++) {
+      add(other.type[i], other.tariff[i], other.customer[i],
+          other.customerCount[i], other.kWh[i], other.charge[i]);
+    }
+  }
+
+  /**
+   * Removes all entries, keeping the allocated capacity.
+   */
+  public void clear ()
+  {
+    // drop references so tariffs and customers can be collected
+    Arrays.fill(tariff, 0, size, null);
+    Arrays.fill(customer, 0, size, null);
+    size = 0;
+  }
+
+  public int size ()
+  {
+    return size;
+  }
+
+  public boolean isEmpty ()
+  {
+    return 0 == size;
+  }
+
+  public TariffTransaction.Type getType (int index)
+  {
+    return type[checkIndex(index)];
+  }
+
+  public Tariff getTariff (int index)
+  {
+    return tariff[checkIndex(index)];
+  }
+
+  public CustomerInfo getCustomer (int index)
+  {
+    return customer[checkIndex(index)];
+  }
+
+  public int getCustomerCount (int index)
+  {
+    return customerCount[checkIndex(index)];
+  }
+
+  public double getKWh (int index)
+  {
+    return kWh[checkIndex(index)];
+  }
+
+  public double getCharge (int index)
+  {
+    return charge[checkIndex(index)];
+  }
+
+  /**
+   * Posts the batch to the given accounting service and returns the
+   * resulting transactions in batch order. The batch itself is not cleared.
+   */
+  public List<TariffTransaction> postTo (Accounting accounting)
+  {
+    if (accounting instanceof BulkAccounting)
+      return ((BulkAccounting) accounting).addTariffTransactions(this);
+    List<TariffTransaction> result = new ArrayList<TariffTransaction>(size);
+    for (int i = 0; i < size; i++) {
+      result.add(accounting.addTariffTransaction(type[i], tariff[i],
+                                                 customer[i], customerCount[i],
+                                                 kWh[i], charge[i]));
+    }
+    return result;
+  }
+
+  private int checkIndex (int index)
+  {
+    if (index < 0 || index >= size)
+      throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+    return index;
+  }
+
+  private void grow ()
+  {
+    int capacity = type.length * 2;
+    type = Arrays.copyOf(type, capacity);
+    tariff = Arrays.copyOf(tariff, capacity);
+    customer = Arrays.copyOf(customer, capacity);
+    customerCount = Arrays.copyOf(customerCount, capacity);
+    kWh = Arrays.copyOf(kWh, capacity);
+    charge = Arrays.copyOf(charge, capacity);
+  }
+}
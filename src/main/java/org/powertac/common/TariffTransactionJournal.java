@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+import java.util.Arrays;
+
+/**
+ * Columnar record of the tariff transactions for one timeslot. Each
+ * transaction is stored as one row across a set of primitive arrays
+ * (type, broker id, tariff id, customer id, customer count, kWh, charge),
+ * so that aggregations such as per-broker supply and demand can run as
+ * tight loops without touching the transaction objects.
+ * <p>
+ * An Accounting service that implements ColumnarAccounting keeps one of
+ * these alongside its list of pending TariffTransactions and clears it when
+ * the list is cleared. Not thread-safe.</p>
+ */
+public class TariffTransactionJournal
+{
+  private static final TariffTransaction.Type[] TYPES =
+      TariffTransaction.Type.values();
+
+  private int size = 0;
+  private byte[] type;
+  private long[] brokerId;
+  private long[] tariffId;
+  private long[] customerId;
+  private int[] customerCount;
+  private double[] kWh;
+  private double[] charge;
+
+  public TariffTransactionJournal ()
+  {
+    this(1024);
+  }
+
+  public TariffTransactionJournal (int initialCapacity)
+  {
+    super();
+    int capacity = Math.max(initialCapacity, 16);
+    type = new byte[capacity];
+    brokerId = new long[capacity];
+    tariffId = new long[capacity];
+    customerId = new long[capacity];
+    customerCount = new int[capacity];
+    kWh = new double[capacity];
+    charge = new double[capacity];
+  }
+
+  /**
+   * Appends a row for the given transaction.
+   */
+  public void add (TariffTransaction tx)
+  {
+    add(tx.getTxType(),
+        null == tx.getBroker() ? -1l : tx.getBroker().getId(),
+        null == tx.getTariffSpec() ? -1l : tx.getTariffSpec().getId(),
+        null == tx.getCustomerInfo() ? -1l : tx.getCustomerInfo().getId(),
+        tx.getCustomerCount(), tx.getKWh(), tx.getCharge());
+  }
+
+  /**
+   * Appends a row. Missing broker, tariff, or customer ids are
+   * recorded as -1.
+   */
+  public void add (TariffTransaction.Type txType, long broker, long tariff,
+                   long customer, int count, double energy, double money)
+  {
+    if (size == type.length)
+      grow();
+    type[size] = (byte) txType.ordinal();
+    brokerId[size] = broker;
+    tariffId[size] = tariff;
+    customerId[size] = customer;
+    customerCount[size] = count;
+    kWh[size] = energy;
+    charge[size] = money;
+    size += 1;
+  }
+
+  /**
+   * Removes all rows, keeping the allocated capacity.
+   */
+  public void clear ()
+  {
+    size = 0;
+  }
+
+  public int size ()
+  {
+    return size;
+  }
+
+  // ------------ row access ------------
+  public TariffTransaction.Type getType (int row)
+  {
+    return TYPES[type[checkRow(row)]];
+  }
+
+  public long getBrokerId (int row)
+  {
+    return brokerId[checkRow(row)];
+  }
+
+  public long getTariffId (int row)
+  {
+    return tariffId[checkRow(row)];
+  }
+
+  public long getCustomerId (int row)
+  {
+    return customerId[checkRow(row)];
+  }
+
+  public int getCustomerCount (int row)
+  {
+    return customerCount[checkRow(row)];
+  }
+
+  public double getKWh (int row)
+  {
+    return kWh[checkRow(row)];
+  }
+
+  public double getCharge (int row)
+  {
+    return charge[checkRow(row)];
+  }
+
+  /**
+   * Returns a cursor positioned before the first row.
+   */
+  public Cursor cursor ()
+  {
+    return new Cursor();
+  }
+
+  private int checkRow (int row)
+  {
+    if (row < 0 || row >= size)
+      throw new IndexOutOfBoundsException("row " + row + ", size " + size);
+    return row;
+  }
+
+  private void grow ()
+  {
+    int capacity = type.length * 2;
+    type = Arrays.copyOf(type, capacity);
+    brokerId = Arrays.copyOf(brokerId, capacity);
+    tariffId = Arrays.copyOf(tariffId, capacity);
+    customerId = Arrays.copyOf(customerId, capacity);
+    customerCount = Arrays.copyOf(customerCount, capacity);
+    kWh = Arrays.copyOf(kWh, capacity);
+    charge = Arrays.copyOf(charge, capacity);
+  }
+
+  /**
+   * Forward-only view over the rows of the journal. Call next() before
+   * reading each row. A cursor can be reused with reset().
+   */
+  public class Cursor
+  {
+    private int row = -1;
+
+    Cursor ()
+    {
+      super();
+    }
+
+    /**
+     * Advances to the next row. Returns false when there are no more rows.
+     */
+    public boolean next ()
+    {
+      if (row + 1 >= size)
+        return false;
+      row += 1;
+      return true;
+    }
+
+    /**
+     * Repositions the cursor before the first row.
+     */
+    public void reset ()
+    {
+      row = -1;
+    }
+
+    public int row ()
+    {
+      return row;
+    }
+
+    public TariffTransaction.Type type ()
+    {
+      return TYPES[type[row]];
+    }
+
+    public int typeOrdinal ()
+    {
+      return type[row];
+    }
+
+    public long brokerId ()
+    {
+      return brokerId[row];
+    }
+
+    public long tariffId ()
+    {
+      return tariffId[row];
+    }
+
+    public long customerId ()
+    {
+      return customerId[row];
+    }
+
+    public int customerCount ()
+    {
+      return customerCount[row];
+    }
+
+    public double kWh ()
+    {
+      return kWh[row];
+    }
+
+    public double charge ()
+    {
+      return charge[row];
+    }
+  }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+import org.joda.time.Instant;
+import org.powertac.common.interfaces.TimeslotPhaseProcessor;
+
+/**
+ * Runs the registered TimeslotPhaseProcessors for one timeslot, for use by
+ * CompetitionControl implementations. Phases run in ascending order.
+ * Within a phase, processors are taken in registration order and grouped
+ * into waves: a processor joins the current wave unless it conflicts with
+ * a processor already in it, in which case it starts the next wave. The
+ * members of a wave run concurrently, and each wave completes before the
+ * next one starts, so the schedule depends only on registration order and
+ * the declared resources.
+ * <p>
+ * Processors that do not declare their resources conflict with everything,
+ * so with no declarations, or with a single thread, this is the classic
+ * one-at-a-time loop.</p>
+ * <p>
+ * Attach a PhaseTiming with setTiming() to record per-processor and
+ * per-timeslot times. Statistics are kept under a name resolved when the
+ * processor is registered, the class name and phase, with a #n suffix for
+ * further instances of the same class in the same phase.</p>
+ */
+public class TimeslotPhaseScheduler
+{
+  static private Logger log =
+      Logger.getLogger(TimeslotPhaseScheduler.class.getName());
+
+  private TreeMap<Integer, List<Registration>> phases =
+      new TreeMap<Integer, List<Registration>>();
+
+  // waves per phase, computed lazily after registration changes
+  private TreeMap<Integer, List<List<Registration>>> waves = null;
+
+  // instances registered so far per timing name
+  private HashMap<String, Integer> nameCounts = new HashMap<String, Integer>();
+
+  private final int threads;
+  private ExecutorService pool = null;
+
+  private volatile PhaseTiming timing = null;
+
+  // true to leave out processors that are not bootstrap-relevant
+  private boolean fastForward = false;
+
+  /**
+   * Creates a scheduler that runs at most the given number of processors
+   * at once. A value of 1 or less runs everything on the calling thread.
+   */
+  public TimeslotPhaseScheduler (int threads)
+  {
+    super();
+    this.threads = threads;
+  }
+
+  public PhaseTiming getTiming ()
+  {
+    return timing;
+  }
+
+  /**
+   * Attaches timing instrumentation, or detaches it if null.
+   */
+  public void setTiming (PhaseTiming timing)
+  {
+    this.timing = timing;
+  }
+
+  public synchronized boolean isFastForward ()
+  {
+    return fastForward;
+  }
+
+  /**
+   * Turns fast-forward bootstrap scheduling on or off. While it is on,
+   * processors that are not bootstrap-relevant are not activated.
+   */
+  public synchronized void setFastForward (boolean value)
+  {
+    if (value != fastForward) {
+      fastForward = value;
+      waves = null;
+    }
+  }
+
+  /**
+   * Adds a processor to the given phase.
+   */
+  public synchronized void register (TimeslotPhaseProcessor processor,
+                                     int phase)
+  {
+    List<Registration> list = phases.get(phase);
+    if (null == list) {
+      list = new ArrayList<Registration>();
+      phases.put(phase, list);
+    }
+    String name = null;
+    for (Registration existing : list) {
+      if (existing.processor == processor)
+        name = existing.name;
+    }
+    if (null == name)
+      name = timingName(processor, phase);
+    list.add(new Registration(processor, phase, name));
+    waves = null;
+  }
+
+  /**
+   * Removes all registrations, typically between sessions.
+   */
+  public synchronized void clear ()
+  {
+    phases.clear();
+    nameCounts.clear();
+    waves = null;
+  }
+
+  /**
+   * Returns the phase numbers that have registered processors, in order.
+   */
+  public synchronized List<Integer> getPhases ()
+  {
+    return new ArrayList<Integer>(phases.keySet());
+  }
+
+  /**
+   * Returns the waves computed for a phase. Intended for logging and tests.
+   */
+  public synchronized List<List<TimeslotPhaseProcessor>> getWaves (int phase)
+  {
+    List<List<TimeslotPhaseProcessor>> result =
+        new ArrayList<List<TimeslotPhaseProcessor>>();
+    List<List<Registration>> phaseWaves = getSchedule().get(phase);
+    if (null == phaseWaves)
+      return result;
+    for (List<Registration> wave : phaseWaves) {
+      List<TimeslotPhaseProcessor> processors =
+          new ArrayList<TimeslotPhaseProcessor>(wave.size());
+      for (Registration registration : wave)
+        processors.add(registration.processor);
+      result.add(processors);
+    }
+    return result;
+  }
+
+  /**
+   * Runs all phases for one timeslot.
+   */
+  public void runTimeslot (Instant time)
+  {
+    PhaseTiming currentTiming = timing;
+    if (null != currentTiming)
+      currentTiming.startTimeslot();
+    for (Map.Entry<Integer, List<List<Registration>>> phase
+         : getSchedule().entrySet()) {
+      runWaves(phase.getValue(), time, phase.getKey());
+    }
+    if (null != currentTiming)
+      currentTiming.endTimeslot();
+  }
+
+  /**
+   * Runs a single phase.
+   */
+  public void runPhase (Instant time, int phase)
+  {
+    List<List<Registration>> phaseWaves = getSchedule().get(phase);
+    if (null != phaseWaves)
+      runWaves(phaseWaves, time, phase);
+  }
+
+  /**
+   * Stops the worker threads. The scheduler can still be used afterwards;
+   * new threads are started on demand.
+   */
+  public synchronized void shutdown ()
+  {
+    if (null != pool) {
+      pool.shutdown();
+      pool = null;
+    }
+  }
+
+  // class name and phase, numbered if the class already has an instance
+  // registered in the phase
+  private String timingName (TimeslotPhaseProcessor processor, int phase)
+  {
+    String base = processor.getClass().getSimpleName();
+    if (base.length() == 0)
+      base = processor.getClass().getName();
+    String key = base + "@" + phase;
+    Integer count = nameCounts.get(key);
+    int instance = null == count ? 1 : count + 1;
+    nameCounts.put(key, instance);
+    if (1 == instance)
+      return key;
+    return base + "#" + instance + "@" + phase;
+  }
+
+  private synchronized TreeMap<Integer, List<List<Registration>>>
+  getSchedule ()
+  {
+    if (null == waves) {
+      waves = new TreeMap<Integer, List<List<Registration>>>();
+      for (Map.Entry<Integer, List<Registration>> phase
+           : phases.entrySet()) {
+        waves.put(phase.getKey(), computeWaves(phase.getValue()));
+      }
+    }
+    return waves;
+  }
+
+  private List<List<Registration>>
+  computeWaves (List<Registration> registrations)
+  {
+    List<List<Registration>> result = new ArrayList<List<Registration>>();
+    List<Registration> wave = new ArrayList<Registration>();
+    for (Registration registration : registrations) {
+      TimeslotPhaseProcessor processor = registration.processor;
+      if (fastForward && !processor.isBootstrapRelevant())
+        continue;
+      boolean conflict = threads <= 1 && !wave.isEmpty();
+      for (int i = 0; !conflict && i < wave.size(); i++)
+        conflict = processor.conflictsWith(wave.get(i).processor);
+      if (conflict) {
+        result.add(wave);
+        wave = new ArrayList<Registration>();
+      }
+      wave.add(registration);
+    }
+    if (!wave.isEmpty())
+      result.add(wave);
+    return result;
+  }
+
+  private void runWaves (List<List<Registration>> phaseWaves,
+                         final Instant time, final int phase)
+  {
+    for (List<Registration> wave : phaseWaves) {
+      if (wave.size() == 1) {
+        activate(wave.get(0), time);
+        continue;
+      }
+      ExecutorService executor = getPool();
+      List<Future<Object>> futures = new ArrayList<Future<Object>>();
+      for (int i = 1; i < wave.size(); i++) {
+        final Registration registration = wave.get(i);
+        futures.add(executor.submit(new Callable<Object>() {
+          @Override
+          public Object call ()
+          {
+            activate(registration, time);
+            return null;
+          }
+        }));
+      }
+      // the calling thread takes the first member of the wave
+      RuntimeException failure = null;
+      try {
+        activate(wave.get(0), time);
+      }
+      catch (RuntimeException re) {
+        failure = re;
+      }
+      // wait for the whole wave before starting the next one
+      for (Future<Object> future : futures) {
+        try {
+          future.get();
+        }
+        catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException("Interrupted in phase " + phase, ie);
+        }
+        catch (ExecutionException ee) {
+          log.error("Processor failed in phase " + phase, ee.getCause());
+          if (null == failure)
+            failure = new RuntimeException(ee.getCause());
+        }
+      }
+      if (null != failure)
+        throw failure;
+    }
+  }
+
+  private void activate (Registration registration, Instant time)
+  {
+    PhaseTiming currentTiming = timing;
+    if (null == currentTiming) {
+      registration.processor.activate(time, registration.phase);
+      return;
+    }
+    long start = currentTiming.start(registration.name);
+    try {
+      registration.processor.activate(time, registration.phase);
+    }
+    finally {
+      currentTiming.stop(registration.name, start);
+    }
+  }
+
+  private synchronized ExecutorService getPool ()
+  {
+    if (null == pool) {
+      pool = Executors.newFixedThreadPool(Math.max(1, threads - 1),
+                                          new ThreadFactory() {
+        private int count = 0;
+
+        @Override
+        public Thread newThread (Runnable r)
+        {
+          Thread result = new Thread(r, "phase-worker-" + (count++));
+          result.setDaemon(true);
+          return result;
+        }
+      });
+    }
+    return pool;
+  }
+
+  // a processor in one phase, with its timing name
+  private static class Registration
+  {
+    final TimeslotPhaseProcessor processor;
+    final int phase;
+    final String name;
+
+    Registration (TimeslotPhaseProcessor processor, int phase, String name)
+    {
+      super();
+      this.processor = processor;
+      this.phase = phase;
+      this.name = name;
+    }
+  }
+}
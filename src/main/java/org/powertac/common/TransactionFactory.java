@@ -15,6 +15,10 @@
  */
 package org.powertac.common;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
 import org.powertac.common.repo.TimeslotRepo;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Scope;
@@ -29,6 +33,13 @@ import org.springframework.stereotype.Service;
  * arguments and returns it. 
  * There is no attempt to cache them or look them up.
  * 
+ * Components that create many transactions in one phase can run the
+ * phase through inTimeslotScope(); while it runs, the timeslot serial
+ * number is looked up only once. Scopes nest. Callers that use
+ * openTimeslotScope() and closeTimeslotScope() directly must close in a
+ * finally block. A scope found still open in a later timeslot is logged
+ * and discarded when the next scope opens.
+ * 
  * @author John Collins
  */
 @Scope("singleton")
@@ -38,11 +49,77 @@ public class TransactionFactory
   
   @Autowired
   private TimeslotRepo timeslotRepo;
+
+  static private Logger log =
+      Logger.getLogger(TransactionFactory.class.getName());
+
+  // serial number cached by openTimeslotScope(), or -1 if none
+  private volatile int cachedTimeslotIndex = -1;
+
+  // number of open scopes, guarded by this
+  private int scopeDepth = 0;
   
   private int getTimeslotIndex ()
   {
+    int cached = cachedTimeslotIndex;
+    if (cached >= 0)
+      return cached;
     return timeslotRepo.currentSerialNumber();
   }
+
+  /**
+   * Caches the current timeslot serial number for all transactions made
+   * until the matching closeTimeslotScope(). Nested calls share the outer
+   * scope. If a scope from an earlier timeslot is still open, it was not
+   * closed properly; it is logged and replaced.
+   */
+  public synchronized void openTimeslotScope ()
+  {
+    int current = timeslotRepo.currentSerialNumber();
+    if (scopeDepth > 0 && cachedTimeslotIndex != current) {
+      log.error("Timeslot scope for " + cachedTimeslotIndex
+                + " still open in timeslot " + current + ", discarding it");
+      scopeDepth = 0;
+    }
+    scopeDepth += 1;
+    cachedTimeslotIndex = current;
+  }
+
+  /**
+   * Ends the scope started by openTimeslotScope(). The cached serial number
+   * is dropped when the outermost scope closes.
+   */
+  public synchronized void closeTimeslotScope ()
+  {
+    if (scopeDepth == 0) {
+      log.warn("closeTimeslotScope() without open scope");
+      return;
+    }
+    scopeDepth -= 1;
+    if (0 == scopeDepth)
+      cachedTimeslotIndex = -1;
+  }
+
+  /**
+   * Runs action inside a timeslot scope, closing the scope even if the
+   * action throws.
+   */
+  public void inTimeslotScope (Runnable action)
+  {
+    openTimeslotScope();
+    try {
+      action.run();
+    }
+    finally {
+      closeTimeslotScope();
+    }
+  }
+
+  // test support
+  synchronized boolean isTimeslotScopeOpen ()
+  {
+    return scopeDepth > 0;
+  }
   
   public BankTransaction makeBankTransaction (Broker broker, double amount)
   {
@@ -87,4 +164,29 @@ public class TransactionFactory
                                   txType, spec, customer,
                                   customerCount, kWh, charge);
   }
+
+  /**
+   * Makes one TariffTransaction of the given type and tariff for each
+   * element of the arrays, all of which must be the same length. The
+   * timeslot serial number is looked up once for the whole batch.
+   */
+  public List<TariffTransaction>
+  makeTariffTransactions (Broker broker, TariffTransaction.Type txType,
+                          TariffSpecification spec,
+                          CustomerInfo[] customers,
+                          int[] customerCounts,
+                          double[] kWh, double[] charge)
+  {
+    int n = customers.length;
+    if (customerCounts.length != n || kWh.length != n || charge.length != n)
+      throw new IllegalArgumentException("array lengths differ");
+    int index = getTimeslotIndex();
+    ArrayList<TariffTransaction> result = new ArrayList<TariffTransaction>(n);
+    for (int i = 0; i < n; i++) {
+      result.add(new TariffTransaction(broker, index,
+                                       txType, spec, customers[i],
+                                       customerCounts[i], kWh[i], charge[i]));
+    }
+    return result;
+  }
 }
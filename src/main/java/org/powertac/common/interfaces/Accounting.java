@@ -50,6 +50,9 @@ public interface Accounting
 
   /**
    * Adds a tariff transaction to the current-day transaction list.
+   * To post several at once, collect them in a TariffTransactionBatch and
+   * call its postTo() method; implementations that also implement
+   * BulkAccounting then receive the whole batch in one call.
    */
   public TariffTransaction addTariffTransaction (TariffTransaction.Type txType,
       Tariff tariff, CustomerInfo customer, int customerCount, double kWh,
@@ -72,6 +75,9 @@ public interface Accounting
   /**
    * Returns the current net load represented by unprocessed TariffTransactions
    * for a specific Broker. This is needed to run the balancing process.
+   * It is called once per broker, so implementations should keep running
+   * totals as transactions are added (see BrokerPositionTracker) rather
+   * than scan the pending transactions; the call should be O(1).
    */
   public double getCurrentNetLoad (Broker broker);
   
@@ -84,7 +90,8 @@ public interface Accounting
 
   /**
    * Returns the market position for the current timeslot for a given broker.
-   * Needed to run the balancing process.
+   * Needed to run the balancing process. Like getCurrentNetLoad(), this
+   * should be answered from running totals in O(1).
    */
   public double getCurrentMarketPosition (Broker broker);
   
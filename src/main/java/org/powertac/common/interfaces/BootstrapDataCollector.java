@@ -19,6 +19,10 @@ import java.util.List;
 
 /**
  * Object that collects bootstrap data for initializing brokers.
+ * Implementations should record what they need as each timeslot runs and
+ * assemble the messages only when collectBootstrapData() is called. In a
+ * fast-forward bootstrap session (see FastForwardCompetitionControl) that
+ * call happens once, after the last timeslot.
  * @author John Collins
  */
 public interface BootstrapDataCollector
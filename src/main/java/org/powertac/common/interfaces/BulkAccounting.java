@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common.interfaces;
+
+import java.util.List;
+
+import org.powertac.common.TariffTransaction;
+import org.powertac.common.TariffTransactionBatch;
+
+/**
+ * Optional extension of Accounting for services that can record a batch of
+ * tariff transactions in one call, so that locking, id and timeslot lookup,
+ * and list growth are paid once per batch. Callers should not test for this
+ * interface themselves; TariffTransactionBatch.postTo() uses it when it is
+ * available and otherwise falls back to addTariffTransaction().
+ */
+public interface BulkAccounting extends Accounting
+{
+  /**
+   * Adds all transactions in the batch to the current-day transaction list,
+   * in batch order, and returns them in the same order. The result must be
+   * identical to calling addTariffTransaction() once per entry.
+   */
+  public List<TariffTransaction> addTariffTransactions (TariffTransactionBatch batch);
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common.interfaces;
+
+import java.util.List;
+import java.util.Map;
+
+import org.powertac.common.CustomerInfo;
+import org.powertac.common.Tariff;
+
+/**
+ * Optional extension of TariffMarket for services that can handle many
+ * subscription changes in one call. Callers test for this interface and
+ * otherwise fall back to one subscribeToTariff() call per change, which
+ * has the same effect.
+ */
+public interface BulkTariffMarket extends TariffMarket
+{
+  /**
+   * Subscribes the whole population of each of the given customers to the
+   * default tariff for its PowerType. This has the same effect as calling
+   * subscribeToTariff(getDefaultTariff(type), customer, population) for
+   * each customer in order, but is intended for game start, when every
+   * customer needs one. Implementations should set the subscriptions up in
+   * one pass, for example with TariffSubscriptionRepo.subscribeAll(), and
+   * post the SIGNUP transactions as a single TariffTransactionBatch.
+   */
+  public void subscribeToDefaultTariffs (List<CustomerInfo> customers);
+
+  /**
+   * Applies several subscription changes for one customer together. Each
+   * entry maps a tariff to a net change in the number of subscribed
+   * customers, negative for withdrawals. The effect is that of calling
+   * subscribeToTariff() for each entry, but implementations should process
+   * the withdrawals before the new subscriptions, so customers are never
+   * counted on both sides of a move, and may batch the resulting
+   * transactions.
+   */
+  public void subscribeToTariffs (CustomerInfo customer,
+                                  Map<Tariff, Integer> changes);
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common.interfaces;
+
+import org.powertac.common.SupplyDemandMatrix;
+import org.powertac.common.TariffTransactionJournal;
+
+/**
+ * Optional extension of Accounting for services that keep the pending
+ * tariff transactions and their supply and demand totals in columnar form,
+ * alongside getPendingTariffTransactions() and
+ * getCurrentSupplyDemandByBroker(). Callers should test for this interface
+ * and fall back to those methods when it is not implemented.
+ */
+public interface ColumnarAccounting extends Accounting
+{
+  /**
+   * Returns the pending tariff transactions for the current timeslot in
+   * columnar form. The journal holds the same transactions as
+   * getPendingTariffTransactions(), in the same order, and is cleared at the
+   * same time. Callers must not modify it.
+   */
+  public TariffTransactionJournal getPendingTariffJournal ();
+
+  /**
+   * Returns the supply and demand totals of getCurrentSupplyDemandByBroker()
+   * as a dense broker-by-type matrix, kept up to date as tariff transactions
+   * are added. Callers should copy it into their own array with
+   * SupplyDemandMatrix.fill() and must not modify it.
+   */
+  public SupplyDemandMatrix getCurrentSupplyDemandMatrix ();
+}
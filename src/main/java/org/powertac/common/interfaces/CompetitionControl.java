@@ -35,7 +35,11 @@ public interface CompetitionControl
   
   /**
    * Registers the caller to be activated during each timeslot in the
-   * proper phase sequence.
+   * proper phase sequence. Phases always run one after another. Within a
+   * phase, processors that have declared their resources and do not
+   * conflict may be activated concurrently; all processors of a phase
+   * finish before the next phase starts. TimeslotPhaseScheduler implements
+   * this policy.
    */
   public void registerTimeslotPhase (TimeslotPhaseProcessor thing, int phase);
   
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common.interfaces;
+
+/**
+ * Optional extension of CompetitionControl for controllers that can run a
+ * bootstrap session in fast-forward mode. Callers should test for this
+ * interface and fall back to CompetitionControl.runOnce(bootstrapMode)
+ * when it is not implemented.
+ */
+public interface FastForwardCompetitionControl extends CompetitionControl
+{
+  /**
+   * True just in case the sim is running a bootstrap session in
+   * fast-forward mode.
+   */
+  public boolean isFastForward ();
+
+  /**
+   * Starts and runs a simulation. With bootstrapMode and fastForward both
+   * set, timeslots are run back to back without waiting for the wall clock,
+   * and processors that are not bootstrap-relevant
+   * (see TimeslotPhaseProcessor.isBootstrapRelevant()) are skipped.
+   * BootstrapDataCollectors are called once, after the last timeslot.
+   * fastForward is ignored when bootstrapMode is false.
+   */
+  public void runOnce (boolean bootstrapMode, boolean fastForward);
+}
@@ -15,6 +15,11 @@
  */
 package org.powertac.common.interfaces;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
 import org.joda.time.Instant;
 import org.springframework.beans.factory.annotation.Autowired;
 
@@ -28,6 +33,14 @@ import org.springframework.beans.factory.annotation.Autowired;
  * phases. See https://github.com/powertac/powertac-server/wiki/Competition-controller-timeslot-process
  * for a summary of this process.
  * 
+ * By default, processors registered in the same phase run one at a time,
+ * in registration order. A processor that declares the shared state it
+ * reads and writes (see setReadsFrom() and setWritesTo()) may be run
+ * concurrently with other declared processors in its phase that do not
+ * conflict with it. Resource names are free-form; by convention they are
+ * the bean names of the services that own the state, such as
+ * "accountingService" or "tariffMarketService".
+ * 
  * @author John Collins
  */
 public abstract class TimeslotPhaseProcessor
@@ -36,6 +49,12 @@ public abstract class TimeslotPhaseProcessor
   private CompetitionControl competitionControlService;
   
   private int timeslotPhase = 0;
+
+  // declared shared state; null if undeclared
+  private Set<String> readsFrom = null;
+  private Set<String> writesTo = null;
+
+  private boolean bootstrapRelevant = true;
   
   public TimeslotPhaseProcessor ()
   {
@@ -59,6 +78,88 @@ public abstract class TimeslotPhaseProcessor
     timeslotPhase = newValue;
   }
   
+  /**
+   * True unless this processor has nothing to do during a bootstrap
+   * session, in which case a fast-forward bootstrap skips it.
+   */
+  public boolean isBootstrapRelevant ()
+  {
+    return bootstrapRelevant;
+  }
+
+  /**
+   * Spring-accessible setter for the bootstrap-relevant flag. Processors
+   * that only talk to brokers or the visualizer should set it false.
+   */
+  public void setBootstrapRelevant (boolean value)
+  {
+    bootstrapRelevant = value;
+  }
+
+  /**
+   * Spring-accessible setter for the names of the shared state this
+   * processor reads during activate().
+   */
+  public void setReadsFrom (Collection<String> resources)
+  {
+    readsFrom = Collections.unmodifiableSet(new HashSet<String>(resources));
+    if (null == writesTo)
+      writesTo = Collections.emptySet();
+  }
+
+  /**
+   * Spring-accessible setter for the names of the shared state this
+   * processor modifies during activate().
+   */
+  public void setWritesTo (Collection<String> resources)
+  {
+    writesTo = Collections.unmodifiableSet(new HashSet<String>(resources));
+    if (null == readsFrom)
+      readsFrom = Collections.emptySet();
+  }
+
+  /**
+   * Returns the declared read set, or null if the processor has not
+   * declared its resources.
+   */
+  public Set<String> getReadsFrom ()
+  {
+    return readsFrom;
+  }
+
+  /**
+   * Returns the declared write set, or null if the processor has not
+   * declared its resources.
+   */
+  public Set<String> getWritesTo ()
+  {
+    return writesTo;
+  }
+
+  /**
+   * True just in case this processor must not run at the same time as
+   * the other one. Processors that have not declared their resources
+   * conflict with everything. Declared processors conflict if either one
+   * writes something the other reads or writes.
+   */
+  public boolean conflictsWith (TimeslotPhaseProcessor other)
+  {
+    if (null == writesTo || null == other.writesTo)
+      return true;
+    return intersects(writesTo, other.writesTo)
+        || intersects(writesTo, other.readsFrom)
+        || intersects(other.writesTo, readsFrom);
+  }
+
+  private boolean intersects (Set<String> a, Set<String> b)
+  {
+    for (String name : a) {
+      if (b.contains(name))
+        return true;
+    }
+    return false;
+  }
+
   /**
    * This method gets called once during each timeslot. To get called, the
    * module must first call the register(phaseNumber) method on CompetitionControl.
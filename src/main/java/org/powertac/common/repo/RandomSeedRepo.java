@@ -18,13 +18,16 @@ package org.powertac.common.repo;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.powertac.common.RandomSeed;
+import org.powertac.common.SplittableRandomSeed;
 import org.springframework.stereotype.Repository;
 
 /**
@@ -34,7 +37,8 @@ import org.springframework.stereotype.Repository;
  * already been created. Seeds may be created by loading a logfile from an
  * existing game, in which case the same random sequences will be repeated
  * in the current game. Otherwise they are created with random starting 
- * points when requested.
+ * points when requested. Access is synchronized, so seeds may be
+ * requested from several threads.
  * 
  * @author John Collins
  */
@@ -43,14 +47,20 @@ public class RandomSeedRepo implements DomainRepo
 {
   static private Logger log = Logger.getLogger(RandomSeedRepo.class.getName());
   
-  private HashMap<String, RandomSeed> seedMap;
-  private HashMap<String, Long> pendingSeedMap;
+  private HashMap<SeedKey, RandomSeed> seedMap;
+  private HashMap<SeedKey, Long> pendingSeedMap;
+
+  // seeds from a snapshot file, consulted after pendingSeedMap
+  private SeedSnapshot snapshot = null;
+
+  // incremented by recycle() so that outstanding handles re-resolve
+  private volatile int generation = 0;
 
   public RandomSeedRepo ()
   {
     super();
-    seedMap = new HashMap<String, RandomSeed>();
-    pendingSeedMap = new HashMap<String, Long>();
+    seedMap = new HashMap<SeedKey, RandomSeed>();
+    pendingSeedMap = new HashMap<SeedKey, Long>();
   }
 
   /**
@@ -59,28 +69,84 @@ public class RandomSeedRepo implements DomainRepo
    */
   public RandomSeed getRandomSeed (String classname, long id, String purpose)
   {
-    log.info("Seed requested: " + classname + ";" +
-             id + ";" + purpose);
-    String name = composeName(classname, id, purpose);
-    RandomSeed result = seedMap.get(name);
-    if (null == result) {
-      // try getting the seed from the pending map
-      Long seedValue = pendingSeedMap.get(name);
-      if (null == seedValue) {
-        // create a new one
-        log.debug("New seed created: " + classname + ";" +
-                id + ";" + purpose);
-        result = new RandomSeed(classname, id, purpose);
-      }
-      else {
-        log.info("Stored seed " + seedValue + " retrieved for " + name);
-        result = new RandomSeed(classname, id, purpose, seedValue);
-      }
-      seedMap.put(name, result);
+    return findOrCreateSeed(new SeedKey(classname, id, purpose), false);
+  }
+
+  /**
+   * Returns the SplittableRandomSeed instance identified by classname, id,
+   * and purpose, creating it if necessary. Seeds are stored and replayed
+   * exactly like those returned by getRandomSeed(), but draws are faster
+   * and the seed can be split into reproducible child streams. Returns null
+   * if a plain RandomSeed has already been created for the same key.
+   */
+  public SplittableRandomSeed getSplittableRandomSeed (String classname,
+                                                       long id,
+                                                       String purpose)
+  {
+    SeedKey key = new SeedKey(classname, id, purpose);
+    RandomSeed result = findOrCreateSeed(key, true);
+    if (!(result instanceof SplittableRandomSeed)) {
+      log.error("Seed " + key + " already exists and is not splittable");
+      return null;
+    }
+    return (SplittableRandomSeed) result;
+  }
+
+  /**
+   * Returns a handle for the seed identified by classname, id, and purpose.
+   * The seed is resolved, and created if necessary, when the handle is
+   * created. After that SeedHandle.getSeed() returns it without a map
+   * lookup or any allocation. Handles stay valid across recycle(); the
+   * first access after a recycle resolves the seed again.
+   */
+  public SeedHandle getSeedHandle (String classname, long id, String purpose)
+  {
+    return new SeedHandle(this, new SeedKey(classname, id, purpose), false);
+  }
+
+  /**
+   * Returns a handle for the SplittableRandomSeed identified by classname,
+   * id, and purpose. See getSeedHandle().
+   */
+  public SeedHandle getSplittableSeedHandle (String classname, long id,
+                                            String purpose)
+  {
+    return new SeedHandle(this, new SeedKey(classname, id, purpose), true);
+  }
+
+  private synchronized RandomSeed findOrCreateSeed (SeedKey key,
+                                                   boolean splittable)
+  {
+    RandomSeed result = seedMap.get(key);
+    if (null != result) {
+      if (log.isDebugEnabled())
+        log.debug("Seed from map for " + key);
+      return result;
+    }
+    // first request for this key - keep a canonical copy of the key
+    key = key.canonical();
+    // try getting the seed from the pending map
+    Long seedValue = pendingSeedMap.get(key);
+    if (null == seedValue && null != snapshot)
+      seedValue = snapshot.lookup(key);
+    if (null == seedValue) {
+      // create a new one
+      log.debug("New seed created: " + key);
+      if (splittable)
+        result = new SplittableRandomSeed(key.classname, key.id, key.purpose);
+      else
+        result = new RandomSeed(key.classname, key.id, key.purpose);
     }
     else {
-      log.info("Seed from map for " + name);
+      log.info("Stored seed " + seedValue + " retrieved for " + key);
+      if (splittable)
+        result = new SplittableRandomSeed(key.classname, key.id, key.purpose,
+                                          seedValue);
+      else
+        result = new RandomSeed(key.classname, key.id, key.purpose,
+                                seedValue);
     }
+    seedMap.put(key, result);
     return result;
   }
   
@@ -91,46 +157,79 @@ public class RandomSeedRepo implements DomainRepo
   public void loadSeeds (File inputFile)
   throws FileNotFoundException
   {
-    log.info("Loading seeds from file" + inputFile.getPath());
-    loadSeeds(new FileReader(inputFile));
+    loadSeeds(inputFile, 1);
+  }
+
+  /**
+   * Pre-loads seeds from an existing server logfile, scanning it with the
+   * given number of threads. The file is memory-mapped and only the
+   * RandomSeed lines are parsed, which makes a big difference for large
+   * state logs. Lines that cannot be parsed are skipped.
+   */
+  public synchronized void loadSeeds (File inputFile, int threads)
+  throws FileNotFoundException
+  {
+    log.info("Loading seeds from file " + inputFile.getPath());
+    if (!inputFile.canRead())
+      throw new FileNotFoundException(inputFile.getPath());
+    SeedLogScanner scanner =
+        new SeedLogScanner(RandomSeed.class.getName(),
+                           SplittableRandomSeed.class.getName());
+    try {
+      List<SeedLogScanner.Entry> entries = scanner.scan(inputFile, threads);
+      for (SeedLogScanner.Entry entry : entries) {
+        pendingSeedMap.put(new SeedKey(entry.classname, entry.id,
+                                       entry.purpose).canonical(),
+                           entry.value);
+      }
+      log.info("Loaded " + entries.size() + " seeds");
+      if (scanner.getBadLineCount() > 0)
+        log.warn("Skipped " + scanner.getBadLineCount() + " bad seed lines");
+    }
+    catch (IOException ioe) {
+      log.error("IOException reading seedfile:" + ioe.toString());
+    }
   }
-  
   
   /**
-   * Pre-loads seeds from a stream.
+   * Pre-loads seeds from a stream. Malformed lines are skipped.
    */
-  public void loadSeeds (InputStreamReader reader)
+  public synchronized void loadSeeds (InputStreamReader reader)
   {
     BufferedReader input = new BufferedReader(reader);
     String seedClass = RandomSeed.class.getName();
+    String splittableClass = SplittableRandomSeed.class.getName();
     try {
       String line;
       while ((line = input.readLine()) != null) {
-        log.debug("original line: " + line);
         // first, strip off the process time nnnn:
         int colon = line.indexOf(':');
         if (colon <= 0 || line.length() <= colon + 2) {
           log.warn("Malformed line " + line);
-          break;
+          continue;
         }
+        // some layouts write time::class
+        if (line.charAt(colon + 1) == ':')
+          colon += 1;
         line = line.substring(colon + 1);
+        if (!line.startsWith(seedClass) && !line.startsWith(splittableClass))
+          continue;
         String[] fields = line.split("::");
-        if (seedClass.equals(fields[0])) {
+        if (seedClass.equals(fields[0])
+            || splittableClass.equals(fields[0])) {
           if (fields.length != 7) {
             log.error("Bad seed spec: " + line);
+            continue;
           }
-          else {
-            System.out.println("fields[3, 4, 5, 6]: " + fields[3]
-                    + "," + fields[4] + "," + fields[5] + "," + fields[6]);
-            //RandomSeed seed = new RandomSeed(fields[3],
-            //                                 Long.parseLong(fields[4]), 
-            //                                 fields[5],
-            //                                 Long.parseLong(fields[6]));
-            pendingSeedMap.put(composeName(fields[3], 
+          try {
+            pendingSeedMap.put(new SeedKey(fields[3],
                                            Long.parseLong(fields[4]),
-                                           fields[5]),
+                                           fields[5]).canonical(),
                                Long.parseLong(fields[6]));
           }
+          catch (NumberFormatException nfe) {
+            log.error("Bad seed spec: " + line);
+          }
         }
       }
     }
@@ -139,17 +238,64 @@ public class RandomSeedRepo implements DomainRepo
     }
   }
   
-  private String composeName (String classname, long id, String purpose)
+  /**
+   * Writes every seed known to the repo - created, pre-loaded from a
+   * state log, or taken from a previously loaded snapshot - to a compact
+   * binary snapshot file. Typically called at the end of a session, or
+   * after loadSeeds() to convert an existing state log. Returns true
+   * just in case the file was written.
+   */
+  public synchronized boolean saveSeedSnapshot (File outputFile)
   {
-    StringBuffer buf = new StringBuffer();
-    buf.append(classname).append(";").append(id).append(";").append(purpose);
-    return buf.toString();
+    LinkedHashMap<SeedKey, Long> seeds = new LinkedHashMap<SeedKey, Long>();
+    if (null != snapshot) {
+      for (SeedLogScanner.Entry entry : snapshot.entries()) {
+        seeds.put(new SeedKey(entry.classname, entry.id, entry.purpose),
+                  entry.value);
+      }
+    }
+    seeds.putAll(pendingSeedMap);
+    for (Map.Entry<SeedKey, RandomSeed> entry : seedMap.entrySet()) {
+      seeds.put(entry.getKey(), entry.getValue().getValue());
+    }
+    try {
+      SeedSnapshot.write(outputFile, seeds);
+      log.info("Wrote " + seeds.size() + " seeds to " + outputFile.getPath());
+      return true;
+    }
+    catch (IOException ioe) {
+      log.error("IOException writing seed snapshot:" + ioe.toString());
+      return false;
+    }
   }
-  
-  public void recycle ()
+
+  /**
+   * Pre-loads seeds from a snapshot written by saveSeedSnapshot(). The file
+   * is memory-mapped and seeds are looked up in it on demand, so loading
+   * takes constant time and the keys are not held on the heap. Entries
+   * pre-loaded from a state log take precedence. Returns true just in case
+   * the snapshot was loaded.
+   */
+  public synchronized boolean loadSeedSnapshot (File inputFile)
+  {
+    try {
+      snapshot = SeedSnapshot.open(inputFile);
+      log.info("Loaded snapshot of " + snapshot.size() + " seeds from "
+               + inputFile.getPath());
+      return true;
+    }
+    catch (IOException ioe) {
+      log.error("IOException reading seed snapshot:" + ioe.toString());
+      return false;
+    }
+  }
+
+  public synchronized void recycle ()
   {
     seedMap.clear();
     pendingSeedMap.clear();
+    snapshot = null;
+    generation += 1;
   }
   
   // test-support
@@ -157,4 +303,43 @@ public class RandomSeedRepo implements DomainRepo
   {
     return seedMap.size();
   }
+
+  /**
+   * Resolved reference to a single seed in the repo. Obtain one from
+   * getSeedHandle() once, for example at model initialization, and call
+   * getSeed() as often as needed.
+   */
+  public static final class SeedHandle
+  {
+    private final RandomSeedRepo repo;
+    private final SeedKey key;
+    private final boolean splittable;
+    private RandomSeed seed;
+    private int generation;
+
+    SeedHandle (RandomSeedRepo repo, SeedKey key, boolean splittable)
+    {
+      super();
+      this.repo = repo;
+      this.key = key;
+      this.splittable = splittable;
+      resolve();
+    }
+
+    /**
+     * Returns the seed this handle refers to.
+     */
+    public RandomSeed getSeed ()
+    {
+      if (generation != repo.generation)
+        resolve();
+      return seed;
+    }
+
+    private void resolve ()
+    {
+      generation = repo.generation;
+      seed = repo.findOrCreateSeed(key, splittable);
+    }
+  }
 }
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common.repo;
+
+/**
+ * Identifies a RandomSeed by requester class name, requester id, and
+ * purpose. The hash is computed once at construction. Keys stored in the
+ * RandomSeedRepo maps are canonical, with interned strings, so the common
+ * case of equals() is a pair of reference comparisons.
+ */
+final class SeedKey
+{
+  final String classname;
+  final long id;
+  final String purpose;
+  private final int hash;
+
+  SeedKey (String classname, long id, String purpose)
+  {
+    super();
+    this.classname = classname;
+    this.id = id;
+    this.purpose = (null == purpose) ? "unspecified" : purpose;
+    this.hash = computeHash(classname, id, this.purpose);
+  }
+
+  /**
+   * Returns an equivalent key with interned strings, suitable for long-term
+   * storage in a map.
+   */
+  SeedKey canonical ()
+  {
+    String cn = classname.intern();
+    String pn = purpose.intern();
+    if (cn == classname && pn == purpose)
+      return this;
+    return new SeedKey(cn, id, pn);
+  }
+
+  static int computeHash (String classname, long id, String purpose)
+  {
+    int result = classname.hashCode();
+    result = 31 * result + (int) (id ^ (id >>> 32));
+    result = 31 * result + purpose.hashCode();
+    return result;
+  }
+
+  @Override
+  public int hashCode ()
+  {
+    return hash;
+  }
+
+  @Override
+  public boolean equals (Object obj)
+  {
+    if (this == obj)
+      return true;
+    if (!(obj instanceof SeedKey))
+      return false;
+    SeedKey other = (SeedKey) obj;
+    return hash == other.hash
+        && id == other.id
+        && (classname == other.classname || classname.equals(other.classname))
+        && (purpose == other.purpose || purpose.equals(other.purpose));
+  }
+
+  @Override
+  public String toString ()
+  {
+    return classname + ";" + id + ";" + purpose;
+  }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Extracts RandomSeed entries from a state log without reading it through
+ * a Reader. The file is memory-mapped and only lines whose class field
+ * matches one of the seed class markers are parsed. Numeric fields are
+ * parsed straight from the bytes, and only the requester class and purpose
+ * become Strings. Large files can be split on line boundaries into ranges
+ * that are scanned on several threads. Results are always returned in file
+ * order, so later entries override earlier ones exactly as they would in a
+ * sequential read. Lines that look like seed entries but cannot be parsed
+ * are counted and skipped.
+ */
+class SeedLogScanner
+{
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  // keep each mapped range well below the 2GB limit of a MappedByteBuffer
+  static final long MAX_RANGE = 1l << 30;
+
+  private static final byte[] FIELD_SEPARATOR = {':', ':'};
+  private static final int SEED_FIELDS = 6;
+
+  private final byte[][] markers;
+  private int badLines = 0;
+
+  /**
+   * Creates a scanner that looks for entries logged by any of the given
+   * classes.
+   */
+  SeedLogScanner (String... seedClasses)
+  {
+    super();
+    markers = new byte[seedClasses.length][];
+    for (int i = 0; i < seedClasses.length; i++) {
+      markers[i] = (seedClasses[i] + "::").getBytes(UTF8);
+    }
+  }
+
+  /**
+   * One parsed seed entry.
+   */
+  static final class Entry
+  {
+    final String classname;
+    final long id;
+    final String purpose;
+    final long value;
+
+    Entry (String classname, long id, String purpose, long value)
+    {
+      super();
+      this.classname = classname;
+      this.id = id;
+      this.purpose = purpose;
+      this.value = value;
+    }
+  }
+
+  /**
+   * Number of seed lines that could not be parsed in the last scan.
+   */
+  int getBadLineCount ()
+  {
+    return badLines;
+  }
+
+  /**
+   * Scans the file using the given number of threads and returns the seed
+   * entries in file order.
+   */
+  List<Entry> scan (File file, int threads) throws IOException
+  {
+    badLines = 0;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      final FileChannel channel = raf.getChannel();
+      long[] bounds = computeRanges(channel, threads);
+      int rangeCount = bounds.length - 1;
+      ArrayList<Entry> result = new ArrayList<Entry>();
+      if (threads <= 1 || rangeCount == 1) {
+        for (int i = 0; i < rangeCount; i++) {
+          RangeResult rr = scanRange(channel, bounds[i], bounds[i + 1]);
+          result.addAll(rr.entries);
+          badLines += rr.badLines;
+        }
+        return result;
+      }
+      ExecutorService pool =
+          Executors.newFixedThreadPool(Math.min(threads, rangeCount));
+      try {
+        List<Future<RangeResult>> futures =
+            new ArrayList<Future<RangeResult>>();
+        for (int i = 0; i < rangeCount; i++) {
+          final long start = bounds[i];
+          final long end = bounds[i + 1];
+          futures.add(pool.submit(new Callable<RangeResult>() {
+            @Override
+            public RangeResult call () throws IOException
+            {
+              return scanRange(channel, start, end);
+            }
+          }));
+        }
+        for (Future<RangeResult> future : futures) {
+          RangeResult rr = future.get();
+          result.addAll(rr.entries);
+          badLines += rr.badLines;
+        }
+      }
+      catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while scanning " + file.getPath());
+      }
+      catch (ExecutionException ee) {
+        throw new IOException("Failed to scan " + file.getPath() + ": "
+                              + ee.getCause());
+      }
+      finally {
+        pool.shutdown();
+      }
+      return result;
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  // Splits the file into ranges that start at the beginning of a line.
+  // Returns rangeCount + 1 boundaries.
+  private long[] computeRanges (FileChannel channel, int threads)
+    throws IOException
+  {
+    long length = channel.size();
+    long count = Math.max(1, threads);
+    count = Math.max(count, (length + MAX_RANGE - 1) / MAX_RANGE);
+    if (length < count * 1024)
+      count = 1; // not worth splitting
+    long[] bounds = new long[(int) count + 1];
+    bounds[0] = 0l;
+    bounds[(int) count] = length;
+    ByteBuffer probe = ByteBuffer.allocate(4096);
+    for (int i = 1; i < count; i++) {
+      long position = Math.max(length * i / count, bounds[i - 1]);
+      bounds[i] = nextLineStart(channel, position, length, probe);
+    }
+    return bounds;
+  }
+
+  private long nextLineStart (FileChannel channel, long position,
+                              long length, ByteBuffer probe)
+    throws IOException
+  {
+    while (position < length) {
+      probe.clear();
+      int n = channel.read(probe, position);
+      if (n <= 0)
+        break;
+      for (int i = 0; i < n; i++) {
+        if (probe.get(i) == '\n')
+          return position + i + 1;
+      }
+      position += n;
+    }
+    return length;
+  }
+
+  private static final class RangeResult
+  {
+    final ArrayList<Entry> entries = new ArrayList<Entry>();
+    int badLines = 0;
+  }
+
+  private RangeResult scanRange (FileChannel channel, long start, long end)
+    throws IOException
+  {
+    RangeResult result = new RangeResult();
+    if (end <= start)
+      return result;
+    MappedByteBuffer buf =
+        channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    int limit = buf.limit();
+    int lineStart = 0;
+    while (lineStart < limit) {
+      int lineEnd = lineStart;
+      while (lineEnd < limit && buf.get(lineEnd) != '\n')
+        lineEnd += 1;
+      int contentEnd = lineEnd;
+      if (contentEnd > lineStart && buf.get(contentEnd - 1) == '\r')
+        contentEnd -= 1;
+      scanLine(buf, lineStart, contentEnd, result);
+      lineStart = lineEnd + 1;
+    }
+    return result;
+  }
+
+  // Line format: time:class::objectId::init::requesterClass::requesterId::purpose::value
+  // The time may be followed by one or two colons, depending on the layout.
+  private void scanLine (ByteBuffer buf, int start, int end,
+                         RangeResult result)
+  {
+    int pos = start;
+    while (pos < end && buf.get(pos) != ':')
+      pos += 1;
+    if (pos == start || pos >= end)
+      return; // no time prefix - not a state log line
+    while (pos < end && buf.get(pos) == ':')
+      pos += 1;
+    int markerEnd = matchMarker(buf, pos, end);
+    if (markerEnd < 0)
+      return; // some other class
+    // find the field boundaries
+    int[] fieldStart = new int[SEED_FIELDS];
+    int[] fieldEnd = new int[SEED_FIELDS];
+    int field = 0;
+    fieldStart[0] = markerEnd;
+    int i = markerEnd;
+    while (i < end) {
+      if (matchAt(buf, i, end, FIELD_SEPARATOR)) {
+        if (field + 1 >= SEED_FIELDS) {
+          result.badLines += 1; // too many fields
+          return;
+        }
+        fieldEnd[field] = i;
+        field += 1;
+        i += FIELD_SEPARATOR.length;
+        fieldStart[field] = i;
+      }
+      else {
+        i += 1;
+      }
+    }
+    fieldEnd[field] = end;
+    if (field != SEED_FIELDS - 1) {
+      result.badLines += 1;
+      return;
+    }
+    try {
+      long id = parseLong(buf, fieldStart[3], fieldEnd[3]);
+      long value = parseLong(buf, fieldStart[5], fieldEnd[5]);
+      String classname = decode(buf, fieldStart[2], fieldEnd[2]);
+      String purpose = decode(buf, fieldStart[4], fieldEnd[4]);
+      result.entries.add(new Entry(classname, id, purpose, value));
+    }
+    catch (NumberFormatException nfe) {
+      result.badLines += 1;
+    }
+  }
+
+  private int matchMarker (ByteBuffer buf, int pos, int end)
+  {
+    for (byte[] marker : markers) {
+      if (matchAt(buf, pos, end, marker))
+        return pos + marker.length;
+    }
+    return -1;
+  }
+
+  private boolean matchAt (ByteBuffer buf, int pos, int end, byte[] pattern)
+  {
+    if (end - pos < pattern.length)
+      return false;
+    for (int j = 0; j < pattern.length; j++) {
+      if (buf.get(pos + j) != pattern[j])
+        return false;
+    }
+    return true;
+  }
+
+  private long parseLong (ByteBuffer buf, int start, int end)
+  {
+    if (start >= end)
+      throw new NumberFormatException("empty field");
+    boolean negative = false;
+    int pos = start;
+    if (buf.get(pos) == '-') {
+      negative = true;
+      pos += 1;
+      if (pos >= end)
+        throw new NumberFormatException("lone minus sign");
+    }
+    // accumulate negatively so that Long.MIN_VALUE parses
+    long result = 0l;
+    long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+    long multmin = limit / 10;
+    for (; pos < end; pos++) {
+      int digit = buf.get(pos) - '0';
+      if (digit < 0 || digit > 9 || result < multmin)
+        throw new NumberFormatException("bad digit");
+      result *= 10;
+      if (result < limit + digit)
+        throw new NumberFormatException("overflow");
+      result -= digit;
+    }
+    return negative ? result : -result;
+  }
+
+  private String decode (ByteBuffer buf, int start, int end)
+  {
+    byte[] bytes = new byte[end - start];
+    for (int i = 0; i < bytes.length; i++)
+      bytes[i] = buf.get(start + i);
+    return new String(bytes, UTF8);
+  }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common.repo;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary snapshot of random seed values, with a hash index so that
+ * seeds can be looked up straight from the memory-mapped file. Key strings
+ * are only materialized for seeds that are actually requested.
+ * <p>
+ * Layout, all integers big-endian:
+ * <pre>
+ * int MAGIC, int VERSION, int count, int tableSize
+ * tableSize slots of (int hash, int recordOffset), offset -1 if empty
+ * count records of (long value, long requesterId,
+ *                   short length, requesterClass as UTF-8,
+ *                   short length, purpose as UTF-8)
+ * </pre>
+ * Record offsets are relative to the start of the record section. The
+ * table is open-addressed with linear probing and is at most half full.
+ * The hash is FNV-1a over the key bytes, so it does not depend on the JVM.</p>
+ */
+class SeedSnapshot
+{
+  static final int MAGIC = 0x50545353; // "PTSS"
+  static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int SLOT_SIZE = 8;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final ByteBuffer buffer;
+  private final int count;
+  private final int mask;
+  private final int recordBase;
+
+  private SeedSnapshot (ByteBuffer buffer) throws IOException
+  {
+    super();
+    this.buffer = buffer;
+    if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+      throw new IOException("Not a seed snapshot");
+    if (buffer.getInt(4) != VERSION)
+      throw new IOException("Unsupported seed snapshot version "
+                            + buffer.getInt(4));
+    count = buffer.getInt(8);
+    int tableSize = buffer.getInt(12);
+    if (Integer.bitCount(tableSize) != 1)
+      throw new IOException("Corrupt seed snapshot table size " + tableSize);
+    mask = tableSize - 1;
+    recordBase = HEADER_SIZE + tableSize * SLOT_SIZE;
+  }
+
+  /**
+   * Maps an existing snapshot file.
+   */
+  static SeedSnapshot open (File file) throws IOException
+  {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      // the mapping stays valid after the channel is closed
+      return new SeedSnapshot(channel.map(FileChannel.MapMode.READ_ONLY,
+                                          0, channel.size()));
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Number of seeds in the snapshot.
+   */
+  int size ()
+  {
+    return count;
+  }
+
+  /**
+   * Returns the stored value for the given key, or null if there is none.
+   */
+  Long lookup (SeedKey key)
+  {
+    byte[] classBytes = key.classname.getBytes(UTF8);
+    byte[] purposeBytes = key.purpose.getBytes(UTF8);
+    int hash = hash(classBytes, key.id, purposeBytes);
+    int slot = hash & mask;
+    while (true) {
+      int slotPos = HEADER_SIZE + slot * SLOT_SIZE;
+      int offset = buffer.getInt(slotPos + 4);
+      if (offset < 0)
+        return null;
+      if (buffer.getInt(slotPos) == hash) {
+        int pos = recordBase + offset;
+        if (buffer.getLong(pos + 8) == key.id) {
+          pos += 16;
+          int next = matchBytes(pos, classBytes);
+          if (next >= 0 && matchBytes(next, purposeBytes) >= 0)
+            return buffer.getLong(recordBase + offset);
+        }
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /**
+   * Decodes every entry. Intended for re-exporting, not for lookups.
+   */
+  List<SeedLogScanner.Entry> entries ()
+  {
+    ArrayList<SeedLogScanner.Entry> result =
+        new ArrayList<SeedLogScanner.Entry>(count);
+    int pos = recordBase;
+    for (int i = 0; i < count; i++) {
+      long value = buffer.getLong(pos);
+      long id = buffer.getLong(pos + 8);
+      pos += 16;
+      String classname = readString(pos);
+      pos += 2 + (buffer.getShort(pos) & 0xffff);
+      String purpose = readString(pos);
+      pos += 2 + (buffer.getShort(pos) & 0xffff);
+      result.add(new SeedLogScanner.Entry(classname, id, purpose, value));
+    }
+    return result;
+  }
+
+  // Returns the position after the string if it matches, otherwise -1
+  private int matchBytes (int pos, byte[] expected)
+  {
+    int length = buffer.getShort(pos) & 0xffff;
+    if (length != expected.length)
+      return -1;
+    pos += 2;
+    for (int i = 0; i < length; i++) {
+      if (buffer.get(pos + i) != expected[i])
+        return -1;
+    }
+    return pos + length;
+  }
+
+  private String readString (int pos)
+  {
+    byte[] bytes = new byte[buffer.getShort(pos) & 0xffff];
+    for (int i = 0; i < bytes.length; i++)
+      bytes[i] = buffer.get(pos + 2 + i);
+    return new String(bytes, UTF8);
+  }
+
+  /**
+   * Writes a snapshot of the given seed values to a file.
+   */
+  static void write (File file, Map<SeedKey, Long> seeds) throws IOException
+  {
+    int tableSize = 2;
+    while (tableSize < seeds.size() * 2)
+      tableSize <<= 1;
+    int[] slotHash = new int[tableSize];
+    int[] slotOffset = new int[tableSize];
+    for (int i = 0; i < tableSize; i++)
+      slotOffset[i] = -1;
+
+    ByteArrayOutputStream records = new ByteArrayOutputStream();
+    DataOutputStream recordOut = new DataOutputStream(records);
+    for (Map.Entry<SeedKey, Long> entry : seeds.entrySet()) {
+      SeedKey key = entry.getKey();
+      byte[] classBytes = key.classname.getBytes(UTF8);
+      byte[] purposeBytes = key.purpose.getBytes(UTF8);
+      if (classBytes.length > 0xffff || purposeBytes.length > 0xffff)
+        throw new IOException("Seed key too long: " + key);
+      int hash = hash(classBytes, key.id, purposeBytes);
+      int slot = hash & (tableSize - 1);
+      while (slotOffset[slot] >= 0)
+        slot = (slot + 1) & (tableSize - 1);
+      slotHash[slot] = hash;
+      slotOffset[slot] = recordOut.size();
+      recordOut.writeLong(entry.getValue());
+      recordOut.writeLong(key.id);
+      recordOut.writeShort(classBytes.length);
+      recordOut.write(classBytes);
+      recordOut.writeShort(purposeBytes.length);
+      recordOut.write(purposeBytes);
+    }
+    recordOut.flush();
+
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream
+                             (new FileOutputStream(file)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(seeds.size());
+      out.writeInt(tableSize);
+      for (int i = 0; i < tableSize; i++) {
+        out.writeInt(slotHash[i]);
+        out.writeInt(slotOffset[i]);
+      }
+      records.writeTo(out);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  // 32-bit FNV-1a over class bytes, id, and purpose bytes
+  static int hash (byte[] classBytes, long id, byte[] purposeBytes)
+  {
+    int h = 0x811c9dc5;
+    for (byte b : classBytes)
+      h = (h ^ (b & 0xff)) * 0x01000193;
+    for (int shift = 56; shift >= 0; shift -= 8)
+      h = (h ^ (int) ((id >>> shift) & 0xff)) * 0x01000193;
+    for (byte b : purposeBytes)
+      h = (h ^ (b & 0xff)) * 0x01000193;
+    return h;
+  }
+}
@@ -25,6 +25,7 @@ import org.apache.log4j.Logger;
 import org.powertac.common.CustomerInfo;
 import org.powertac.common.Tariff;
 import org.powertac.common.TariffSubscription;
+import org.powertac.common.TariffTransactionBatch;
 import org.powertac.common.interfaces.TariffMarket;
 import org.powertac.util.Predicate;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -32,7 +33,8 @@ import org.springframework.stereotype.Repository;
 
 /**
  * Repository for TariffSubscriptions. This cannot be in common, because
- * TariffSubscription is not in common.
+ * TariffSubscription is not in common. Access is synchronized, because
+ * customer models may be stepped on several threads at once.
  * 
  * @author John Collins
  */
@@ -63,7 +65,7 @@ public class TariffSubscriptionRepo implements DomainRepo
    * try to get a subscription for a non-existent tariff, such as one that has
    * been revoked.
    */
-  public TariffSubscription getSubscription (CustomerInfo customer,
+  public synchronized TariffSubscription getSubscription (CustomerInfo customer,
                                              Tariff tariff)
   {
 //    Tariff realTariff = tariffRepo.findTariffById(tariff.getId()); 
@@ -84,7 +86,7 @@ public class TariffSubscriptionRepo implements DomainRepo
   }
 
   /** Returns the list of subscriptions for a given tariff. */
-  public List<TariffSubscription> findSubscriptionsForTariff (Tariff tariff)
+  public synchronized List<TariffSubscription> findSubscriptionsForTariff (Tariff tariff)
   {
 //    Tariff realTariff = tariffRepo.findTariffById(tariff.getId()); 
 //    if (null == realTariff) {
@@ -101,7 +103,7 @@ public class TariffSubscriptionRepo implements DomainRepo
   }
 
   /** Returns the list of subscriptions for a given customer. */
-  public List<TariffSubscription>
+  public synchronized List<TariffSubscription>
   findSubscriptionsForCustomer (CustomerInfo customer)
   {
     // new list allows caller to smash the return value
@@ -141,7 +143,7 @@ public class TariffSubscriptionRepo implements DomainRepo
   }
 
   /** Adds an existing subscription to the repo. */
-  public TariffSubscription add (TariffSubscription subscription)
+  public synchronized TariffSubscription add (TariffSubscription subscription)
   {
     storeSubscription(subscription,
                       subscription.getCustomer(),
@@ -162,13 +164,43 @@ public class TariffSubscriptionRepo implements DomainRepo
     return null;
   }
 
+  /**
+   * Subscribes each customer's whole population to the tariff at the same
+   * position in the tariffs list, in a single pass under one lock. This is
+   * the bulk form of getSubscription(customer, tariff).subscribe(population)
+   * for game start, when every customer joins its default tariff. The
+   * SIGNUP transactions are added to batch rather than posted; the caller
+   * posts them with TariffTransactionBatch.postTo(). Returns the
+   * subscriptions in customer order. Customers whose tariff is null are
+   * skipped.
+   */
+  public synchronized List<TariffSubscription>
+  subscribeAll (List<CustomerInfo> customers, List<Tariff> tariffs,
+                TariffTransactionBatch batch)
+  {
+    if (customers.size() != tariffs.size())
+      throw new IllegalArgumentException("customers and tariffs differ in size");
+    List<TariffSubscription> result =
+        new ArrayList<TariffSubscription>(customers.size());
+    for (int i = 0; i < customers.size(); i++) {
+      CustomerInfo customer = customers.get(i);
+      Tariff tariff = tariffs.get(i);
+      if (null == tariff)
+        continue;
+      TariffSubscription sub = getSubscription(customer, tariff);
+      sub.subscribe(customer.getPopulation(), batch);
+      result.add(sub);
+    }
+    return result;
+  }
+
   /**
    * Returns the list of subscriptions for this customer that have been
    * revoked and have non-zero committed customer counts. 
    * Intended to be called in the context of tariff evaluation (typically
    * by the TariffEvaluator).
    */
-  public List<TariffSubscription>
+  public synchronized List<TariffSubscription>
   getRevokedSubscriptionList (CustomerInfo customer)
   {
     //tariffMarketService.processRevokedTariffs();
@@ -193,7 +225,7 @@ public class TariffSubscriptionRepo implements DomainRepo
    * Removes all subscriptions for the given tariff. Presumably this is done
    * when the tariff has been revoked and all revocation processing is complete.
    */
-  public void removeSubscriptionsForTariff (Tariff tariff)
+  public synchronized void removeSubscriptionsForTariff (Tariff tariff)
   {
     List<TariffSubscription> subs = tariffMap.get(tariff);
     if (null == subs)
@@ -217,7 +249,7 @@ public class TariffSubscriptionRepo implements DomainRepo
 
   /** Clears out the repo in preparation for another simulation. */
   @Override
-  public void recycle ()
+  public synchronized void recycle ()
   {
     tariffMap.clear();
     customerMap.clear();
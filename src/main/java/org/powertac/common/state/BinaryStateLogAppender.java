@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common.state;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Alternative sink for the state log. Instead of formatting and writing each
+ * entry on the thread that made the state change, entries are handed to a
+ * lock-free ring buffer, and a background writer thread encodes them into
+ * a compact binary record format. Use BinaryStateLogConverter to turn the
+ * result back into the usual text state log for analysis tools.
+ * <p>
+ * To use it, replace the StateFile appender in the log4j configuration:
+ * <pre>
+ * log4j.appender.StateFile=org.powertac.common.state.BinaryStateLogAppender
+ * log4j.appender.StateFile.File=log/powertac-sim.bstate
+ * log4j.appender.StateFile.BufferSize=65536
+ * </pre></p>
+ * <p>
+ * Record format, after a header of MAGIC and VERSION: each state log class
+ * name is written once in a CLASS record and referred to by index after
+ * that; each ENTRY record carries the class index, the elapsed-time
+ * delta from the previous entry, and the remainder of the message
+ * as UTF-8. Messages that do not have the usual
+ * <code>class::rest</code> form are written as RAW records.</p>
+ * <p>
+ * State log entries are never dropped. If the writer falls behind and the
+ * ring fills up, producers spin until there is room.</p>
+ */
+public class BinaryStateLogAppender extends AppenderSkeleton
+{
+  static final int MAGIC = 0x5054534c; // "PTSL"
+  static final int VERSION = 1;
+
+  static final int TAG_CLASS = 1;
+  static final int TAG_ENTRY = 2;
+  static final int TAG_RAW = 3;
+
+  static final String SEPARATOR = "::";
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  // configuration
+  private String fileName = "log/state.bstate";
+  private int bufferSize = 65536;
+  private int outputBufferSize = 1 << 16;
+
+  // runtime state
+  private StateRecordRing<Entry> ring;
+  private Thread writerThread;
+  private volatile boolean running = false;
+
+  public BinaryStateLogAppender ()
+  {
+    super();
+  }
+
+  // ------------ log4j configuration properties ------------
+  public String getFile ()
+  {
+    return fileName;
+  }
+
+  public void setFile (String file)
+  {
+    fileName = file;
+  }
+
+  public int getBufferSize ()
+  {
+    return bufferSize;
+  }
+
+  /**
+   * Sets the number of entries the ring can hold. Rounded up to a power
+   * of two.
+   */
+  public void setBufferSize (int size)
+  {
+    bufferSize = size;
+  }
+
+  public void setOutputBufferSize (int size)
+  {
+    outputBufferSize = size;
+  }
+
+  /**
+   * Opens the output file and starts the writer thread.
+   */
+  @Override
+  public void activateOptions ()
+  {
+    DataOutputStream out;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream
+                                 (new FileOutputStream(fileName),
+                                  outputBufferSize));
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+    }
+    catch (IOException ioe) {
+      errorHandler.error("Cannot open binary state log " + fileName, ioe, 0);
+      return;
+    }
+    ring = new StateRecordRing<Entry>(bufferSize);
+    running = true;
+    writerThread = new Thread(new Writer(out), "state-log-writer");
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  /**
+   * Bypasses the lock in AppenderSkeleton.doAppend(); the ring handles
+   * concurrent producers by itself.
+   */
+  @Override
+  public void doAppend (LoggingEvent event)
+  {
+    if (closed || !isAsSevereAsThreshold(event.getLevel()))
+      return;
+    Filter filter = getFilter();
+    while (null != filter) {
+      int decision = filter.decide(event);
+      if (Filter.DENY == decision)
+        return;
+      if (Filter.ACCEPT == decision)
+        break;
+      filter = filter.getNext();
+    }
+    append(event);
+  }
+
+  @Override
+  protected void append (LoggingEvent event)
+  {
+    if (null == ring)
+      return; // not activated
+    Entry entry = new Entry(event.timeStamp - LoggingEvent.getStartTime(),
+                            event.getRenderedMessage());
+    while (!ring.offer(entry)) {
+      Thread.yield();
+    }
+  }
+
+  /**
+   * Stops the writer after it has drained the ring, then closes the file.
+   */
+  @Override
+  public synchronized void close ()
+  {
+    if (closed)
+      return;
+    closed = true;
+    running = false;
+    if (null != writerThread) {
+      LockSupport.unpark(writerThread);
+      try {
+        writerThread.join();
+      }
+      catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+      writerThread = null;
+    }
+  }
+
+  @Override
+  public boolean requiresLayout ()
+  {
+    return false;
+  }
+
+  // ------------ writer thread ------------
+  private class Writer implements Runnable
+  {
+    private final DataOutputStream out;
+    private final HashMap<String, Integer> classIndex =
+        new HashMap<String, Integer>();
+    private long lastTime = 0l;
+
+    Writer (DataOutputStream out)
+    {
+      super();
+      this.out = out;
+    }
+
+    @Override
+    public void run ()
+    {
+      boolean dirty = false;
+      try {
+        while (true) {
+          Entry entry = ring.poll();
+          if (null != entry) {
+            write(entry);
+            dirty = true;
+          }
+          else if (running || !ring.isEmpty()) {
+            // idle - push out what we have and wait for more
+            if (dirty) {
+              out.flush();
+              dirty = false;
+            }
+            LockSupport.parkNanos(100000l);
+          }
+          else {
+            break;
+          }
+        }
+      }
+      catch (IOException ioe) {
+        errorHandler.error("Error writing binary state log", ioe, 0);
+      }
+      finally {
+        try {
+          out.close();
+        }
+        catch (IOException ioe) {
+          errorHandler.error("Error closing binary state log", ioe, 0);
+        }
+      }
+    }
+
+    private void write (Entry entry) throws IOException
+    {
+      String message = entry.message;
+      int split = (null == message) ? -1 : message.indexOf(SEPARATOR);
+      if (split < 0) {
+        out.writeByte(TAG_RAW);
+        writeTime(entry.time);
+        writeBytes(null == message ? "" : message);
+        return;
+      }
+      String className = message.substring(0, split);
+      Integer index = classIndex.get(className);
+      if (null == index) {
+        index = classIndex.size();
+        classIndex.put(className, index);
+        out.writeByte(TAG_CLASS);
+        out.writeUTF(className);
+      }
+      out.writeByte(TAG_ENTRY);
+      writeVarLong(index);
+      writeTime(entry.time);
+      writeBytes(message.substring(split + SEPARATOR.length()));
+    }
+
+    private void writeTime (long time) throws IOException
+    {
+      long delta = time - lastTime;
+      lastTime = time;
+      // zigzag, in case entries from different threads arrive out of order
+      writeVarLong((delta << 1) ^ (delta >> 63));
+    }
+
+    private void writeBytes (String text) throws IOException
+    {
+      byte[] bytes = text.getBytes(UTF8);
+      writeVarLong(bytes.length);
+      out.write(bytes);
+    }
+
+    private void writeVarLong (long value) throws IOException
+    {
+      while ((value & ~0x7fl) != 0l) {
+        out.writeByte((int) ((value & 0x7f) | 0x80));
+        value >>>= 7;
+      }
+      out.writeByte((int) value);
+    }
+  }
+
+  // a single state log entry in transit
+  private static final class Entry
+  {
+    final long time;
+    final String message;
+
+    Entry (long time, String message)
+    {
+      super();
+      this.time = time;
+      this.message = message;
+    }
+  }
+}
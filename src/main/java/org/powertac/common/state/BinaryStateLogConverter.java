@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common.state;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+
+/**
+ * Converts a binary state log written by BinaryStateLogAppender into the
+ * text form produced by the standard state log layout, one
+ * <code>time:class::rest</code> line per entry. Can be run from the
+ * command line:
+ * <pre>
+ * java org.powertac.common.state.BinaryStateLogConverter input.bstate [output.state]
+ * </pre>
+ * If no output file is given, the text is written to standard output.
+ */
+public class BinaryStateLogConverter
+{
+  private String timeSeparator = ":";
+
+  public BinaryStateLogConverter ()
+  {
+    super();
+  }
+
+  /**
+   * Sets the string written between the elapsed time and the message.
+   * The default is a single colon, matching the server's state log layout.
+   */
+  public void setTimeSeparator (String separator)
+  {
+    timeSeparator = separator;
+  }
+
+  /**
+   * Reads binary records from input and writes text lines to output.
+   * Returns the number of entries converted. Neither stream is closed.
+   */
+  public long convert (InputStream input, Writer output) throws IOException
+  {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+    if (in.readInt() != BinaryStateLogAppender.MAGIC)
+      throw new IOException("Not a binary state log");
+    int version = in.readUnsignedByte();
+    if (version != BinaryStateLogAppender.VERSION)
+      throw new IOException("Unsupported binary state log version " + version);
+
+    ArrayList<String> classNames = new ArrayList<String>();
+    long time = 0l;
+    long count = 0l;
+    while (true) {
+      int tag = in.read();
+      if (tag < 0)
+        break;
+      try {
+        switch (tag) {
+        case BinaryStateLogAppender.TAG_CLASS:
+          classNames.add(in.readUTF());
+          break;
+        case BinaryStateLogAppender.TAG_ENTRY:
+          int index = (int) readVarLong(in);
+          time += readTime(in);
+          output.write(Long.toString(time));
+          output.write(timeSeparator);
+          output.write(classNames.get(index));
+          output.write(BinaryStateLogAppender.SEPARATOR);
+          output.write(readString(in));
+          output.write('\n');
+          count += 1;
+          break;
+        case BinaryStateLogAppender.TAG_RAW:
+          time += readTime(in);
+          output.write(Long.toString(time));
+          output.write(timeSeparator);
+          output.write(readString(in));
+          output.write('\n');
+          count += 1;
+          break;
+        default:
+          throw new IOException("Bad record tag " + tag
+                                + " after " + count + " entries");
+        }
+      }
+      catch (EOFException eof) {
+        // truncated final record, most likely from a crashed sim
+        break;
+      }
+    }
+    output.flush();
+    return count;
+  }
+
+  private long readTime (DataInputStream in) throws IOException
+  {
+    long zigzag = readVarLong(in);
+    return (zigzag >>> 1) ^ -(zigzag & 1);
+  }
+
+  private String readString (DataInputStream in) throws IOException
+  {
+    byte[] bytes = new byte[(int) readVarLong(in)];
+    in.readFully(bytes);
+    return new String(bytes, BinaryStateLogAppender.UTF8);
+  }
+
+  private long readVarLong (DataInputStream in) throws IOException
+  {
+    long result = 0l;
+    int shift = 0;
+    while (true) {
+      int b = in.readUnsignedByte();
+      result |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+        return result;
+      shift += 7;
+    }
+  }
+
+  public static void main (String[] args)
+  {
+    if (args.length < 1) {
+      System.err.println("Usage: BinaryStateLogConverter input [output]");
+      System.exit(1);
+    }
+    InputStream in = null;
+    Writer out = null;
+    try {
+      in = new FileInputStream(args[0]);
+      if (args.length > 1)
+        out = new BufferedWriter(new OutputStreamWriter
+                                 (new FileOutputStream(args[1]),
+                                  BinaryStateLogAppender.UTF8));
+      else
+        out = new BufferedWriter(new OutputStreamWriter
+                                 (System.out, BinaryStateLogAppender.UTF8));
+      new BinaryStateLogConverter().convert(in, out);
+    }
+    catch (IOException ioe) {
+      System.err.println("Conversion failed: " + ioe.toString());
+      System.exit(1);
+    }
+    finally {
+      try {
+        if (null != in)
+          in.close();
+        if (null != out)
+          out.close();
+      }
+      catch (IOException ioe) {
+        System.err.println("Error closing files: " + ioe.toString());
+      }
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common.state;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free ring buffer with many producers and a single consumer.
+ * Producers claim a slot with a CAS on the tail counter and publish into it;
+ * the consumer is the only thread that advances the head. A null slot
+ * at the head means the producer that claimed it has not yet published.
+ * <p>
+ * Capacity is rounded up to a power of two.</p>
+ */
+final class StateRecordRing<T>
+{
+  private final AtomicReferenceArray<T> slots;
+  private final int capacity;
+  private final int mask;
+
+  // next slot to be claimed by a producer
+  private final AtomicLong tail = new AtomicLong(0l);
+
+  // next slot to be read by the consumer
+  private final AtomicLong head = new AtomicLong(0l);
+
+  StateRecordRing (int requestedCapacity)
+  {
+    super();
+    int size = 2;
+    while (size < requestedCapacity)
+      size <<= 1;
+    capacity = size;
+    mask = size - 1;
+    slots = new AtomicReferenceArray<T>(size);
+  }
+
+  /**
+   * Attempts to add an item. Returns false if the ring is full; it is up to
+   * the caller to decide whether to retry or drop the item.
+   */
+  boolean offer (T item)
+  {
+    long t;
+    do {
+      t = tail.get();
+      if (t - head.get() >= capacity)
+        return false;
+    } while (!tail.compareAndSet(t, t + 1));
+    slots.lazySet((int) t & mask, item);
+    return true;
+  }
+
+  /**
+   * Removes and returns the item at the head, or null if none has been
+   * published there yet. Must only be called from the consumer thread.
+   */
+  T poll ()
+  {
+    long h = head.get();
+    int index = (int) h & mask;
+    T item = slots.get(index);
+    if (null == item)
+      return null;
+    slots.lazySet(index, null);
+    head.lazySet(h + 1);
+    return item;
+  }
+
+  /**
+   * True just in case every claimed slot has been consumed.
+   */
+  boolean isEmpty ()
+  {
+    return head.get() == tail.get();
+  }
+
+  int capacity ()
+  {
+    return capacity;
+  }
+}
@@ -2,12 +2,12 @@ package org.powertac.customer;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
-import org.joda.time.Interval;
 import org.powertac.common.Contract;
 import org.powertac.common.CustomerInfo;
 import org.powertac.common.IdGenerator;
@@ -24,6 +24,7 @@ import org.powertac.common.msg.ContractDecommit;
 import org.powertac.common.msg.ContractEnd;
 import org.powertac.common.msg.ContractNegotiationMessage;
 import org.powertac.common.msg.ContractOffer;
+import org.powertac.common.repo.TimeSeriesRepo;
 import org.powertac.common.timeseries.DayComparisonLoadForecast;
 import org.powertac.common.timeseries.LoadForecast;
 import org.powertac.common.timeseries.LoadTimeSeries;
@@ -38,6 +39,17 @@ public abstract class AbstractContractCustomer {
 	protected List<CustomerInfo> allCustomerInfos;
 	protected HashMap<Long, Contract> activeContracts;
 
+	// Index over activeContracts for activeContract(): start millis in
+	// ascending order, and for each position the latest end among the
+	// contracts up to it. Rebuilt when marked dirty or the map size changes.
+	private long[] contractStarts = new long[0];
+	private long[] contractMaxEnds = new long[0];
+	private volatile boolean contractIndexDirty = true;
+	private int contractIndexSize = -1;
+
+	// ids of this model's customers, sorted, for message validation
+	private volatile long[] customerIds = new long[0];
+
 	// Service accessor
 	protected CustomerServiceAccessor service;
 
@@ -48,6 +60,17 @@ public abstract class AbstractContractCustomer {
 	protected RandomSeed rs1;
 
 	protected LoadTimeSeries historicLoad;
+	// end of the year of history to generate on first use
+	protected DateTime historicLoadEnd;
+	// customers whose historic load initialize() left for precompute() to
+	// hand to the TimeSeriesRepo
+	private List<Long> pendingHistoricLoadIds = new ArrayList<Long>();
+
+	// forecasts and their summaries by duration, all starting at
+	// forecastCacheStart
+	private HashMap<Long, LoadTimeSeries> forecastCache = new HashMap<Long, LoadTimeSeries>();
+	private HashMap<Long, LoadForecastSummary> summaryCache = new HashMap<Long, LoadForecastSummary>();
+	private long forecastCacheStart = Long.MIN_VALUE;
 	protected TimeSeriesGenerator generator;
 	protected LoadForecast forecast;
 
@@ -80,8 +103,7 @@ public abstract class AbstractContractCustomer {
 		generator = new TimeSeriesGenerator();
 		forecast = new DayComparisonLoadForecast();
 		activeContracts = new HashMap<Long, Contract>();
-		this.historicLoad = generator.generateLoadTimeSeries(now.minusYears(1),
-				now, (int) (custId % 3));
+		this.historicLoadEnd = now;
 	}
 
 	public AbstractContractCustomer() {
@@ -101,11 +123,48 @@ public abstract class AbstractContractCustomer {
 	}
 
 	private boolean isValidMessage(ContractNegotiationMessage message) {
-		for (CustomerInfo ci : service.getCustomerRepo().findByName(getName())) {
-			if (ci.getId() == message.getCustomerId())
-				return true;
+		return handlesCustomer(message.getCustomerId());
+	}
+
+	/**
+	 * Returns true if the given customer id belongs to this model. Message
+	 * handlers call this before doing anything else, so broadcast messages
+	 * for other customers cost one binary search over a primitive array.
+	 */
+	public boolean handlesCustomer(long customerId) {
+		return Arrays.binarySearch(customerIds, customerId) >= 0;
+	}
+
+	/**
+	 * Rebuilds the set of valid customer ids from this model's CustomerInfos
+	 * and the CustomerRepo entries under its name. Called by initialize();
+	 * models that register further CustomerInfos with the repo afterwards
+	 * should call it again.
+	 */
+	protected synchronized void refreshCustomerIds() {
+		long[] ids = new long[allCustomerInfos.size()];
+		int count = 0;
+		for (CustomerInfo ci : allCustomerInfos)
+			ids[count++] = ci.getId();
+		if (null != service) {
+			List<CustomerInfo> registered = service.getCustomerRepo()
+					.findByName(getName());
+			ids = Arrays.copyOf(ids, count + registered.size());
+			for (CustomerInfo ci : registered)
+				ids[count++] = ci.getId();
 		}
-		return false;
+		setCustomerIds(ids, count);
+	}
+
+	// Sorts and de-duplicates the first count ids and publishes them
+	private void setCustomerIds(long[] ids, int count) {
+		Arrays.sort(ids, 0, count);
+		int unique = 0;
+		for (int i = 0; i < count; i++) {
+			if (unique == 0 || ids[i] != ids[unique - 1])
+				ids[unique++] = ids[i];
+		}
+		customerIds = Arrays.copyOf(ids, unique);
 	}
 
 	private void processOffer(ContractOffer message, boolean canAccept) {
@@ -470,15 +529,17 @@ public abstract class AbstractContractCustomer {
 			activeContracts.put(message.getContractId(), service
 					.getContractRepo()
 					.findContractById(message.getContractId()));
+			contractIndexDirty = true;
 			negotiationRounds.put(message.getBroker().getId(), 0);
 		}
 	}
 
 	// END
 	public void handleMessage(ContractEnd message) {
-		log.info("Contract END arrived at Customer.");
-		negotiationRounds.put(message.getBroker().getId(), 0);
-
+		if (isValidMessage(message)) {
+			log.info("Contract END arrived at Customer.");
+			negotiationRounds.put(message.getBroker().getId(), 0);
+		}
 	}
 
 	public void handleMessage(ContractAccept message) {
@@ -519,6 +580,7 @@ public abstract class AbstractContractCustomer {
 
 			if (this.getCustomerInfo(PowerType.PRODUCTION) != null) {
 				activeContracts.remove(message.getContractId());
+				contractIndexDirty = true;
 				ContractConfirm cf = new ContractConfirm(message.getBroker(),
 						message);
 				service.getBrokerProxyService().sendMessage(
@@ -551,9 +613,9 @@ public abstract class AbstractContractCustomer {
 
 		DateTime starttime = service.getTimeslotRepo().currentTimeslot()
 				.getStartTime();
-		LoadTimeSeries loadForecastTS = forecast.calculateLoadForecast(
-				historicLoad, starttime, starttime.plus(duration));
-		utility += loadForecastTS.getTotalLoad()
+		LoadForecastSummary summary = getLoadForecastSummary(starttime,
+				duration);
+		utility += summary.getTotalLoad()
 				* (reservationEnergyPrice - offer.getEnergyPrice()); // total
 		// expected
 		// energy
@@ -570,9 +632,9 @@ public abstract class AbstractContractCustomer {
 
 		DateTime starttime = service.getTimeslotRepo().currentTimeslot()
 				.getStartTime();
-		LoadTimeSeries loadForecastTS = forecast.calculateLoadForecast(
-				historicLoad, starttime, starttime.plus(duration));
-		utility += loadForecastTS.getTotalLoad()
+		LoadForecastSummary summary = getLoadForecastSummary(starttime,
+				duration);
+		utility += summary.getTotalLoad()
 				* (offer.getEnergyPrice() - reservationEnergyPrice); // total
 		// expected
 		// energy
@@ -588,11 +650,11 @@ public abstract class AbstractContractCustomer {
 		double utility = 0;
 		DateTime starttime = service.getTimeslotRepo().currentTimeslot()
 				.getStartTime();
-		LoadTimeSeries loadForecastTS = forecast.calculateLoadForecast(
-				historicLoad, starttime, starttime.plus(duration));
+		LoadForecastSummary summary = getLoadForecastSummary(starttime,
+				duration);
 
 		for (int month = 1; month <= 12; month++) {
-			utility += loadForecastTS.getMaxLoad(month)
+			utility += summary.getMaxLoad(month)
 					* (reservationPeakLoadPrice - offer.getPeakLoadPrice()); // total
 																				// expected
 																				// peak
@@ -610,11 +672,11 @@ public abstract class AbstractContractCustomer {
 		double utility = 0;
 		DateTime starttime = service.getTimeslotRepo().currentTimeslot()
 				.getStartTime();
-		LoadTimeSeries loadForecastTS = forecast.calculateLoadForecast(
-				historicLoad, starttime, starttime.plus(duration));
+		LoadForecastSummary summary = getLoadForecastSummary(starttime,
+				duration);
 
 		for (int month = 1; month <= 12; month++) {
-			utility += loadForecastTS.getMaxLoad(month)
+			utility += summary.getMaxLoad(month)
 					* (offer.getPeakLoadPrice() - reservationPeakLoadPrice); // total
 																				// expected
 																				// peak
@@ -648,14 +710,131 @@ public abstract class AbstractContractCustomer {
 		return utility;
 	}
 
-	protected boolean activeContract(DateTime startDate) {
+	/**
+	 * Returns the year of historic load ending at historicLoadEnd, generating
+	 * it on the first call after the window is set. The series is generated
+	 * once per window instead of in both the constructor and initialize().
+	 * It is normally generated by precompute(); customers that are never
+	 * precomputed generate it on their first forecast.
+	 */
+	public synchronized LoadTimeSeries getHistoricLoad() {
+		if (null == historicLoad && null != historicLoadEnd) {
+			historicLoad = generator.generateLoadTimeSeries(
+					historicLoadEnd.minusYears(1), historicLoadEnd,
+					(int) (custId % 3));
+		}
+		return historicLoad;
+	}
+
+	// Moves the end of the historic load window, discarding any series
+	// generated for the old one and the forecasts made from it. Package
+	// access for tests.
+	synchronized void setHistoricLoadEnd(DateTime end) {
+		if (!end.equals(historicLoadEnd)) {
+			historicLoadEnd = end;
+			historicLoad = null;
+			forecastCache.clear();
+			summaryCache.clear();
+		}
+	}
+
+	/**
+	 * Returns the load forecast for the given period, computing it only the
+	 * first time it is asked for. All utility computations in a negotiation
+	 * round use the same start time, so they share one forecast per
+	 * duration. The cache is emptied when the start time moves on to a new
+	 * timeslot.
+	 */
+	protected synchronized LoadTimeSeries getLoadForecast(DateTime starttime,
+			long duration) {
+		if (starttime.getMillis() != forecastCacheStart) {
+			forecastCache.clear();
+			summaryCache.clear();
+			forecastCacheStart = starttime.getMillis();
+		}
+		LoadTimeSeries result = forecastCache.get(duration);
+		if (null == result) {
+			result = forecast.calculateLoadForecast(getHistoricLoad(),
+					starttime, starttime.plus(duration));
+			forecastCache.put(duration, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the total, monthly peak and monthly total loads of the
+	 * forecast for the given period, computed once per cached forecast.
+	 */
+	protected synchronized LoadForecastSummary getLoadForecastSummary(
+			DateTime starttime, long duration) {
+		LoadTimeSeries series = getLoadForecast(starttime, duration);
+		LoadForecastSummary result = summaryCache.get(duration);
+		if (null == result) {
+			result = new LoadForecastSummary(series, starttime,
+					starttime.plus(duration));
+			summaryCache.put(duration, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns true if any active contract covers the given time, that is,
+	 * starts at or before it and ends after it. Uses a binary search over
+	 * the contract index, so it does not allocate.
+	 */
+	protected synchronized boolean activeContract(DateTime startDate) {
+		if (contractIndexDirty || contractIndexSize != activeContracts.size())
+			rebuildContractIndex();
+		long time = startDate.getMillis();
+		// find the last contract starting at or before time
+		int low = 0;
+		int high = contractStarts.length - 1;
+		int last = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (contractStarts[mid] <= time) {
+				last = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return last >= 0 && contractMaxEnds[last] > time;
+	}
+
+	/**
+	 * Marks the contract index stale. Subclasses that replace entries in
+	 * activeContracts without changing its size must call this.
+	 */
+	protected synchronized void invalidateContractIndex() {
+		contractIndexDirty = true;
+	}
+
+	private void rebuildContractIndex() {
+		long[][] intervals = new long[activeContracts.size()][];
+		int count = 0;
 		for (Contract c : activeContracts.values()) {
-			Interval interval = new Interval(c.getStartDate(), c.getEndDate());
-			if (interval.contains(new DateTime(startDate))) {
-				return true;
+			if (null == c)
+				continue;
+			intervals[count++] = new long[] { c.getStartDate().getMillis(),
+					c.getEndDate().getMillis() };
+		}
+		Arrays.sort(intervals, 0, count, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+				return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
 			}
+		});
+		contractStarts = new long[count];
+		contractMaxEnds = new long[count];
+		long maxEnd = Long.MIN_VALUE;
+		for (int i = 0; i < count; i++) {
+			contractStarts[i] = intervals[i][0];
+			maxEnd = Math.max(maxEnd, intervals[i][1]);
+			contractMaxEnds[i] = maxEnd;
 		}
-		return false;
+		contractIndexSize = activeContracts.size();
+		contractIndexDirty = false;
 	}
 
 	/**
@@ -668,15 +847,15 @@ public abstract class AbstractContractCustomer {
 
 	/**
 	 * Initializes the instance. Called after configuration, and after a call to
-	 * setServices().
+	 * setServices(). Must be followed by a call to precompute().
 	 */
 	public void initialize() {
 		rs1 = service.getRandomSeedRepo().getRandomSeed(name, 0,
 				"ContractCustomer");
 		DateTime now = service.getTimeslotRepo().currentTimeslot()
 				.getStartInstant().toDateTime();
-		this.historicLoad = generator.generateLoadTimeSeries(now.minusYears(1),
-				now, (int) (custId % 3));
+		setHistoricLoadEnd(now);
+		refreshCustomerIds();
 		for (Class<?> messageType : Arrays.asList(ContractOffer.class,
 				ContractAccept.class, ContractAnnounce.class,
 				ContractConfirm.class, ContractDecommit.class,
@@ -695,12 +874,31 @@ public abstract class AbstractContractCustomer {
 																			// CustomerInfo
 																			// ID
 				service.getBrokerProxyService().broadcastMessage(cann);
-				service.getTimeSeriesRepo().addHistoricLoadTimeSeries(
-						ci.getId(), historicLoad);
+				pendingHistoricLoadIds.add(ci.getId());
 			}
 		}
 	}
 
+	/**
+	 * Generates the historic load, and hands it to the TimeSeriesRepo for
+	 * the customers that initialize() found without an active contract.
+	 * Called once after initialize(). It may run on a worker thread while
+	 * other customers do the same, so apart from the TimeSeriesRepo, which
+	 * is locked while the series are added, it touches only this
+	 * customer's state.
+	 */
+	public void precompute() {
+		LoadTimeSeries history = getHistoricLoad();
+		if (pendingHistoricLoadIds.isEmpty())
+			return;
+		TimeSeriesRepo repo = service.getTimeSeriesRepo();
+		synchronized (repo) {
+			for (Long id : pendingHistoricLoadIds)
+				repo.addHistoricLoadTimeSeries(id, history);
+		}
+		pendingHistoricLoadIds.clear();
+	}
+
 	/**
 	 * Saves model data to the bootstrap record. Default implementation does
 	 * nothing; models may override if they aggregate objects that must save
@@ -719,6 +917,11 @@ public abstract class AbstractContractCustomer {
 		}
 		customerInfos.get(info.getPowerType()).add(info);
 		allCustomerInfos.add(info);
+		synchronized (this) {
+			long[] ids = Arrays.copyOf(customerIds, customerIds.length + 1);
+			ids[customerIds.length] = info.getId();
+			setCustomerIds(ids, ids.length);
+		}
 	}
 
 	/**
@@ -16,18 +16,26 @@
 package org.powertac.customer;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.apache.log4j.Logger;
+import org.powertac.common.CustomerEffectRecorder;
 import org.powertac.common.CustomerInfo;
 import org.powertac.common.IdGenerator;
 import org.powertac.common.RandomSeed;
 import org.powertac.common.Tariff;
 import org.powertac.common.TariffSubscription;
 import org.powertac.common.enumerations.PowerType;
+import org.powertac.common.interfaces.BulkTariffMarket;
 import org.powertac.common.interfaces.CustomerServiceAccessor;
 import org.powertac.common.interfaces.TariffMarket;
+import org.powertac.common.repo.TariffSubscriptionRepo;
+import org.powertac.common.repo.TimeslotRepo;
 
 /**
  * Abstract customer implementation
@@ -52,6 +60,13 @@ public abstract class AbstractCustomer
   /** Random Number Generator */
   protected RandomSeed rs1;
 
+  // Active subscriptions per CustomerInfo, valid for one timeslot serial
+  // or until invalidateSubscriptionSnapshot() is called
+  private LinkedHashMap<CustomerInfo, List<TariffSubscription>> snapshot;
+  private HashMap<PowerType, List<TariffSubscription>> snapshotByType;
+  private List<TariffSubscription> snapshotAll;
+  private int snapshotSerial = -1;
+
   /**
    * Default constructor, requires explicit setting of name
    */
@@ -91,6 +106,19 @@ public abstract class AbstractCustomer
     rs1 = service.getRandomSeedRepo().getRandomSeed(name, 0, "TariffChooser");
   }
 
+  /**
+   * Does set-up work that can run apart from initialize(), such as
+   * generating load profiles. Called once after initialize(). When the
+   * CustomerModelService has parallelInit set, it may be called on a
+   * worker thread while other models do the same, so it must not create
+   * domain objects such as CustomerInfos or RandomSeeds, whose ids would
+   * then depend on scheduling, or touch shared state. Default
+   * implementation does nothing.
+   */
+  public void precompute ()
+  {
+  }
+
   /**
    * Saves model data to the bootstrap record. Default implementation does
    * nothing; models may override if they aggregate objects that must save
@@ -145,8 +173,8 @@ public abstract class AbstractCustomer
    */
   public List<TariffSubscription> getCurrentSubscriptions ()
   {
-    return service.getTariffSubscriptionRepo().
-        findActiveSubscriptionsForCustomer(allCustomerInfos.get(0));
+    return new ArrayList<TariffSubscription>
+        (getSubscriptionSnapshot(allCustomerInfos.get(0)));
   }
 
   /**
@@ -156,8 +184,91 @@ public abstract class AbstractCustomer
    */
   public List<TariffSubscription> getCurrentSubscriptions (PowerType type)
   {
-    return service.getTariffSubscriptionRepo().
-        findActiveSubscriptionsForCustomer(customerInfos.get(type).get(0));
+    return new ArrayList<TariffSubscription>
+        (getSubscriptionSnapshot(customerInfos.get(type).get(0)));
+  }
+
+  /**
+   * Returns the active subscriptions of all this model's CustomerInfos, in
+   * CustomerInfo order. The list is read-only and is computed at most once
+   * per timeslot unless it is invalidated, so models may call this as often
+   * as they like during step().
+   */
+  public List<TariffSubscription> getSubscriptionSnapshot ()
+  {
+    refreshSnapshot();
+    if (null == snapshotAll) {
+      List<TariffSubscription> result = new ArrayList<TariffSubscription>();
+      for (List<TariffSubscription> subs : snapshot.values())
+        result.addAll(subs);
+      snapshotAll = Collections.unmodifiableList(result);
+    }
+    return snapshotAll;
+  }
+
+  /**
+   * Returns the active subscriptions of this model's CustomerInfos with the
+   * given PowerType. Read-only and cached like getSubscriptionSnapshot().
+   */
+  public List<TariffSubscription> getSubscriptionSnapshot (PowerType type)
+  {
+    refreshSnapshot();
+    List<TariffSubscription> result = snapshotByType.get(type);
+    if (null == result) {
+      List<TariffSubscription> subs = new ArrayList<TariffSubscription>();
+      List<CustomerInfo> infos = customerInfos.get(type);
+      if (null != infos) {
+        for (CustomerInfo info : infos)
+          subs.addAll(snapshot.get(info));
+      }
+      result = Collections.unmodifiableList(subs);
+      snapshotByType.put(type, result);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the active subscriptions of one of this model's CustomerInfos.
+   * Read-only and cached like getSubscriptionSnapshot().
+   */
+  public List<TariffSubscription> getSubscriptionSnapshot (CustomerInfo customer)
+  {
+    refreshSnapshot();
+    List<TariffSubscription> result = snapshot.get(customer);
+    if (null == result) {
+      // not one of ours; don't cache it
+      result = Collections.unmodifiableList(service.getTariffSubscriptionRepo()
+              .findActiveSubscriptionsForCustomer(customer));
+    }
+    return result;
+  }
+
+  /**
+   * Discards the subscription snapshot, so the next call recomputes it.
+   * The subscription methods of this class call it; models that change
+   * committed counts or subscriptions some other way within a timeslot
+   * must call it themselves.
+   */
+  public void invalidateSubscriptionSnapshot ()
+  {
+    snapshot = null;
+  }
+
+  private void refreshSnapshot ()
+  {
+    TariffSubscriptionRepo repo = service.getTariffSubscriptionRepo();
+    TimeslotRepo timeslotRepo = service.getTimeslotRepo();
+    int serial = (null == timeslotRepo) ? 0 : timeslotRepo.currentSerialNumber();
+    if (null != snapshot && serial == snapshotSerial)
+      return;
+    snapshot = new LinkedHashMap<CustomerInfo, List<TariffSubscription>>();
+    for (CustomerInfo info : allCustomerInfos) {
+      snapshot.put(info, Collections.unmodifiableList
+                   (repo.findActiveSubscriptionsForCustomer(info)));
+    }
+    snapshotByType = new HashMap<PowerType, List<TariffSubscription>>();
+    snapshotAll = null;
+    snapshotSerial = serial;
   }
 
   @Override
@@ -230,6 +341,94 @@ public abstract class AbstractCustomer
     int populationCount = ts.getCustomersCommitted();
     unsubscribe(ts, populationCount);
     subscribe(newTariff, populationCount, customer);
+    invalidateSubscriptionSnapshot();
+  }
+
+  /**
+   * Reallocates part of a customer's population across tariffs in one step.
+   * The plan maps each source tariff to the target tariffs and the number
+   * of customers to move to each. Opposing moves are netted out first, so
+   * moving 30 customers from A to B and 10 from B to A results in a single
+   * move of 20 from A to B. The net changes are ordered by tariff id so the
+   * result does not depend on the map implementation. Withdrawals go first,
+   * through TariffSubscription.unsubscribe() so the pending unsubscribe
+   * counts are kept. The gains then go to the tariff market in one
+   * subscribeToTariffs() call if it is a BulkTariffMarket, otherwise as one
+   * subscribeToTariff() call per tariff. Non-positive counts are logged and
+   * ignored. Returns the net changes that were requested.
+   */
+  public Map<Tariff, Integer>
+  migrateSubscriptions (CustomerInfo customer,
+                        Map<Tariff, Map<Tariff, Integer>> plan)
+  {
+    TreeMap<Long, Tariff> tariffs = new TreeMap<Long, Tariff>();
+    HashMap<Tariff, Integer> net = new HashMap<Tariff, Integer>();
+    for (Map.Entry<Tariff, Map<Tariff, Integer>> from : plan.entrySet()) {
+      for (Map.Entry<Tariff, Integer> to : from.getValue().entrySet()) {
+        int count = to.getValue();
+        if (count <= 0) {
+          log.error(this.toString() + ": ignoring move of " + count
+                    + " from tariff " + from.getKey().getId()
+                    + " to tariff " + to.getKey().getId());
+          continue;
+        }
+        addChange(net, tariffs, from.getKey(), -count);
+        addChange(net, tariffs, to.getKey(), count);
+      }
+    }
+    LinkedHashMap<Tariff, Integer> result =
+        new LinkedHashMap<Tariff, Integer>();
+    for (Tariff tariff : tariffs.values()) {
+      int change = net.get(tariff);
+      if (change != 0)
+        result.put(tariff, change);
+    }
+    if (result.isEmpty())
+      return result;
+    CustomerEffectRecorder recorder = CustomerEffectRecorder.current();
+    LinkedHashMap<Tariff, Integer> gains = new LinkedHashMap<Tariff, Integer>();
+    for (Map.Entry<Tariff, Integer> entry : result.entrySet()) {
+      if (entry.getValue() < 0)
+        requestChange(recorder, entry.getKey(), customer, entry.getValue());
+      else
+        gains.put(entry.getKey(), entry.getValue());
+    }
+    if (null == recorder && !gains.isEmpty()
+        && tariffMarketService instanceof BulkTariffMarket) {
+      ((BulkTariffMarket) tariffMarketService)
+          .subscribeToTariffs(customer, gains);
+    }
+    else {
+      for (Map.Entry<Tariff, Integer> entry : gains.entrySet())
+        requestChange(recorder, entry.getKey(), customer, entry.getValue());
+    }
+    invalidateSubscriptionSnapshot();
+    log.info(this.toString() + " " + customer.getName() + ": migrated "
+             + result.size() + " tariffs in one step");
+    return result;
+  }
+
+  // Withdrawals go through the subscription. Gains are recorded when
+  // stepping on a worker thread, otherwise sent to the market.
+  private void requestChange (CustomerEffectRecorder recorder, Tariff tariff,
+                              CustomerInfo customer, int change)
+  {
+    if (change < 0)
+      unsubscribe(service.getTariffSubscriptionRepo()
+                      .getSubscription(customer, tariff), -change);
+    else if (null != recorder)
+      recorder.subscribeToTariff(tariff, customer, change);
+    else
+      tariffMarketService.subscribeToTariff(tariff, customer, change);
+  }
+
+  private void addChange (HashMap<Tariff, Integer> net,
+                          TreeMap<Long, Tariff> tariffs,
+                          Tariff tariff, int change)
+  {
+    Integer current = net.get(tariff);
+    net.put(tariff, (null == current ? 0 : current) + change);
+    tariffs.put(tariff.getId(), tariff);
   }
 
   /** Subscribing a certain population amount to a certain subscription */
@@ -238,6 +437,7 @@ public abstract class AbstractCustomer
                          CustomerInfo customer)
   {
     tariffMarketService.subscribeToTariff(tariff, customer, customerCount);
+    invalidateSubscriptionSnapshot();
     log.info(this.toString() + " " + tariff.getPowerType().toString() + ": "
              + customerCount + " were subscribed to tariff " + tariff.getId());
 
@@ -248,6 +448,7 @@ public abstract class AbstractCustomer
   {
 
     subscription.unsubscribe(customerCount);
+    invalidateSubscriptionSnapshot();
     log.info(this.toString() + " "
              + subscription.getTariff().getPowerType().toString() + ": "
              + customerCount + " were unsubscribed from tariff "
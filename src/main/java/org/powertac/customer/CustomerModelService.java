@@ -15,19 +15,33 @@
  */
 package org.powertac.customer;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.joda.time.Instant;
 import org.powertac.common.Competition;
+import org.powertac.common.CustomerEffectRecorder;
 import org.powertac.common.CustomerInfo;
 import org.powertac.common.Tariff;
 import org.powertac.common.TimeService;
+import org.powertac.common.XMLMessageConverter;
+import org.powertac.common.config.ConfigurableValue;
+import org.powertac.common.interfaces.Accounting;
 import org.powertac.common.interfaces.BootstrapState;
 import org.powertac.common.interfaces.BrokerProxy;
+import org.powertac.common.interfaces.BulkTariffMarket;
 import org.powertac.common.interfaces.CustomerServiceAccessor;
 import org.powertac.common.interfaces.InitializationService;
 import org.powertac.common.interfaces.NewTariffListener;
@@ -51,6 +65,51 @@ import org.springframework.stereotype.Service;
  * each timeslot, each model has its step() method called. When tariffs are
  * published, each has its evaluateTariffs() method called. At the end of a boot
  * session, each has its bootstrap state saved to the boot record.
+ * <p>
+ * If stepThreads is greater than one, models are stepped concurrently.
+ * Worker threads take the next unstepped model from a shared counter, so
+ * slow models do not hold up a whole share of the list. While a model
+ * steps, its tariff transactions and subscription changes are recorded
+ * rather than applied (see CustomerEffectRecorder). When all models are
+ * done, the recorded effects are applied in model order, so Accounting and
+ * the TariffMarket see the same sequence as in a sequential run. If a
+ * model throws, the effects of the models before it and whatever it
+ * recorded before failing are applied, and the exception is rethrown, as
+ * in a sequential run; the effects of later models are discarded. Objects
+ * that models create while they step, such as new TariffSubscriptions or
+ * RandomSeeds requested for the first time, may get their ids in a
+ * different order from run to run, so models that need reproducible ids
+ * should create such objects in initialize().</p>
+ * <p>
+ * Every model has its evaluateTariffs() method called for every batch of
+ * new tariffs, even if none of them is relevant to its customers, because
+ * tariff evaluation also handles revoked and superseded tariffs and
+ * advances each customer's evaluation state. The list a model receives
+ * holds the revoked and superseded tariffs of the batch and those new
+ * tariffs that one of its customers' PowerTypes can use.</p>
+ * <p>
+ * Models are initialized and their customers registered one at a time, in
+ * configuration order, so the ids of the objects they create do not
+ * depend on thread timing. If parallelInit is set, the models'
+ * precompute() steps then run on stepThreads threads; otherwise each
+ * model's precompute() runs right after its initialize().</p>
+ * <p>
+ * In either mode, all customers are subscribed to their default tariffs
+ * in registration order, with a single call if the tariff market is a
+ * BulkTariffMarket and one subscribeToTariff() call per customer
+ * otherwise.</p>
+ * <p>
+ * Models can also run in separate worker JVMs on the same machine, each
+ * holding a group of models behind a CustomerShardWorker. List the
+ * workers' loopback ports in shardPorts. The workers are connected before
+ * the local models are created; models of the types a worker runs are
+ * not created here, and the workers' customers are registered and
+ * subscribed to the default tariffs with the local ones. Each timeslot
+ * and each tariff publication is sent to all shards before the local
+ * models run, and the effects the shards return are applied afterwards,
+ * in shard order. Model failures in a shard are handled as on the step
+ * threads, and if a local model fails, the shards' results are
+ * discarded. See CustomerShardWorker for how to start a worker.</p>
  * 
  * @author John Collins
  */
@@ -88,6 +147,9 @@ public class CustomerModelService extends TimeslotPhaseProcessor implements
 	@Autowired
 	private TariffMarket tariffMarketService;
 
+	@Autowired
+	private Accounting accountingService;
+
 	// Customer model collection
 	// private ArrayList<Class<AbstractCustomerDeprecated>> modelTypes;
 	private ArrayList<AbstractCustomer> models;
@@ -97,6 +159,28 @@ public class CustomerModelService extends TimeslotPhaseProcessor implements
 	@Autowired
 	private TimeSeriesRepo timeSeriesRepo;
 
+	@Autowired
+	private XMLMessageConverter messageConverter;
+
+	@ConfigurableValue(valueType = "Integer",
+			description = "Number of threads used to step customer models")
+	private int stepThreads = 1;
+
+	@ConfigurableValue(valueType = "Boolean",
+			description = "Run customer model precompute steps concurrently at startup")
+	private boolean parallelInit = false;
+
+	@ConfigurableValue(valueType = "String",
+			description = "Comma-separated loopback ports of customer shard workers")
+	private String shardPorts = "";
+
+	// models running outside this service, in configuration order
+	private ArrayList<CustomerShard> shards = new ArrayList<CustomerShard>();
+
+	// parallel stepping support
+	private ExecutorService stepPool;
+	private ArrayList<CustomerEffectRecorder> recorders;
+
 	@Override
 	public void setDefaults() {
 		// Obsolete
@@ -109,9 +193,13 @@ public class CustomerModelService extends TimeslotPhaseProcessor implements
 				|| !completedInits.contains("TariffMarket"))
 			return null;
 		super.init();
+		serverConfig.configureMe(this);
 		// tariffMarketService.registerNewTariffListener(this);
 		// modelTypes = new ArrayList<Class<AbstractCustomerDeprecated>>();
 		models = new ArrayList<AbstractCustomer>();
+		List<CustomerInfo> customers = new ArrayList<CustomerInfo>();
+		// models running in shard workers are not run here
+		Set<String> shardedTypes = connectShards(competition, customers);
 		// extract the model types
 		ServiceLoader<AbstractCustomer> loader = ServiceLoader
 				.load(AbstractCustomer.class);
@@ -121,26 +209,66 @@ public class CustomerModelService extends TimeslotPhaseProcessor implements
 		Iterator<AbstractCustomer> modelIterator = loader.iterator();
 		while (modelIterator.hasNext()) {
 			AbstractCustomer modelEx = modelIterator.next();
+			if (shardedTypes.contains(modelEx.getClass().getName())) {
+				log.info("Models of type " + modelEx.getClass().getName()
+						+ " run in a customer shard");
+				continue;
+			}
 			for (Object modelObj : serverConfig.configureInstances(modelEx
 					.getClass())) {
 				AbstractCustomer model = (AbstractCustomer) modelObj;
 				log.info("Adding model " + model.getName());
 				models.add(model);
 				model.setServiceAccessor(this);
-				model.initialize();
-				// set default tariff here to make models testable outside
-				// Spring.
-				for (CustomerInfo cust : model.getCustomerInfos()) {
-					tariffMarketService.subscribeToTariff(tariffMarketService
-							.getDefaultTariff(cust.getPowerType()), cust, cust
-							.getPopulation());
-					customerRepo.add(cust);
-				}
 			}
 		}
+		initializeModels(customers);
+		// set default tariffs here to make models testable outside Spring
+		subscribeToDefaultTariffs(customers);
 		return "Customer";
 	}
 
+	// Initializes the models and registers their customers in model order,
+	// then runs their precompute() steps, concurrently if parallelInit is
+	// set. Package access for tests.
+	void initializeModels(List<CustomerInfo> customers) {
+		boolean concurrent = parallelInit && stepThreads > 1
+				&& models.size() > 1;
+		for (AbstractCustomer model : models) {
+			model.initialize();
+			if (!concurrent)
+				model.precompute();
+			registerCustomers(model, customers);
+		}
+		if (concurrent)
+			precomputeInParallel();
+	}
+
+	// Subscribes the customers to their default tariffs, in one call if the
+	// tariff market supports it.
+	private void subscribeToDefaultTariffs(List<CustomerInfo> customers) {
+		if (tariffMarketService instanceof BulkTariffMarket) {
+			((BulkTariffMarket) tariffMarketService)
+					.subscribeToDefaultTariffs(customers);
+			return;
+		}
+		for (CustomerInfo cust : customers) {
+			tariffMarketService.subscribeToTariff(tariffMarketService
+					.getDefaultTariff(cust.getPowerType()), cust, cust
+					.getPopulation());
+		}
+	}
+
+	// Adds each of the model's customers to the CustomerRepo and to the
+	// list of customers needing a default subscription.
+	private void registerCustomers(AbstractCustomer model,
+			List<CustomerInfo> customers) {
+		for (CustomerInfo cust : model.getCustomerInfos()) {
+			customerRepo.add(cust);
+			customers.add(cust);
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -150,18 +278,290 @@ public class CustomerModelService extends TimeslotPhaseProcessor implements
 	 */
 	@Override
 	public void activate(Instant time, int phaseNumber) {
-		for (AbstractCustomer model : models) {
-			log.info("Step model " + model.getName());
-			model.step();
+		// shards work while the local models step
+		for (CustomerShard shard : shards)
+			shard.startActivate(time, phaseNumber);
+		try {
+			if (stepThreads <= 1 || models.size() < 2) {
+				for (AbstractCustomer model : models) {
+					log.info("Step model " + model.getName());
+					model.step();
+				}
+			} else {
+				stepInParallel();
+			}
+		} catch (RuntimeException re) {
+			discardShards();
+			throw re;
+		}
+		finishShards();
+	}
+
+	// Connects to the shard workers listed in shardPorts, replacing any
+	// earlier connections. The workers' customers are registered and added
+	// to customers, to be subscribed to the default tariffs along with the
+	// local ones. Returns the class names of the workers' models.
+	private Set<String> connectShards(Competition competition,
+			List<CustomerInfo> customers) {
+		Set<String> result = new HashSet<String>();
+		for (CustomerShard shard : shards)
+			shard.close();
+		shards.clear();
+		if (null == shardPorts || shardPorts.trim().length() == 0)
+			return result;
+		for (String port : shardPorts.split(",")) {
+			try {
+				SocketCustomerShard shard = new SocketCustomerShard(
+						Integer.parseInt(port.trim()), this, messageConverter,
+						competition);
+				shards.add(shard);
+				result.addAll(shard.getModelTypes());
+				for (CustomerInfo cust : shard.getCustomers()) {
+					customerRepo.add(cust);
+					customers.add(cust);
+				}
+				log.info("Connected to customer shard on port " + port.trim()
+						+ " with " + shard.getCustomers().size() + " customers");
+			} catch (IOException ioe) {
+				log.error("Cannot connect to customer shard on port " + port,
+						ioe);
+			} catch (NumberFormatException nfe) {
+				log.error("Bad customer shard port " + port);
+			}
+		}
+		return result;
+	}
+
+	// Collects the results of the outstanding shard calls and applies them
+	// in shard order. If a shard's model failed, the effects it recorded
+	// before the failure are applied, those of later shards are discarded,
+	// and the failure is rethrown, as in stepInParallel().
+	private void finishShards() {
+		CustomerShardException failure = null;
+		for (CustomerShard shard : shards) {
+			try {
+				CustomerEffectRecorder effects = shard.finish();
+				if (null == failure)
+					effects.replay(accountingService, tariffMarketService);
+			} catch (CustomerShardException cse) {
+				if (null == failure) {
+					cse.getEffects().replay(accountingService,
+							tariffMarketService);
+					failure = cse;
+				} else {
+					log.error("Discarding results of failed shard", cse);
+				}
+			}
+		}
+		if (null != failure)
+			throw failure;
+	}
+
+	// Waits for the outstanding shard calls and discards their results,
+	// after a local model has failed.
+	private void discardShards() {
+		for (CustomerShard shard : shards) {
+			try {
+				shard.finish();
+			} catch (CustomerShardException cse) {
+				log.error("Discarding results of failed shard", cse);
+			}
 		}
 	}
 
+	/**
+	 * Adds a shard of models to be driven along with the local ones.
+	 */
+	public void addShard(CustomerShard shard) {
+		shards.add(shard);
+	}
+
+	List<CustomerShard> getShards() {
+		return shards;
+	}
+
+	// Steps all models on stepThreads threads, recording their side effects,
+	// then replays the effects in model order. If a model throws, replay
+	// stops after that model's effects and the exception is rethrown, which
+	// is where a sequential run would have stopped.
+	private void stepInParallel() {
+		final int count = models.size();
+		if (null == recorders)
+			recorders = new ArrayList<CustomerEffectRecorder>();
+		while (recorders.size() < count)
+			recorders.add(new CustomerEffectRecorder());
+		RuntimeException[] failures = runInParallel(new ModelAction() {
+			@Override
+			public void run(AbstractCustomer model) {
+				log.info("Step model " + model.getName());
+				model.step();
+			}
+		}, recorders);
+		int failed = firstFailure(failures);
+		for (int i = 0; i < count; i++) {
+			if (failed < 0 || i <= failed)
+				recorders.get(i).replay(accountingService, tariffMarketService);
+			else
+				recorders.get(i).clear();
+		}
+		if (failed >= 0)
+			throw failures[failed];
+	}
+
+	// Calls precompute() on all models on stepThreads threads, and rethrows
+	// the first failure in model order.
+	private void precomputeInParallel() {
+		RuntimeException[] failures = runInParallel(new ModelAction() {
+			@Override
+			public void run(AbstractCustomer model) {
+				model.precompute();
+			}
+		}, null);
+		int failed = firstFailure(failures);
+		if (failed >= 0)
+			throw failures[failed];
+	}
+
+	// Returns the index of the first model that failed, or -1.
+	private int firstFailure(RuntimeException[] failures) {
+		for (int i = 0; i < failures.length; i++)
+			if (null != failures[i])
+				return i;
+		return -1;
+	}
+
+	// Runs an action on every model using up to stepThreads threads, the
+	// calling thread included. Threads take the next model from a shared
+	// counter. If effectRecorders is not null, the recorder at each model's
+	// index is attached while the action runs on that model. Returns the
+	// exception thrown for each model, or null where the action succeeded;
+	// all models are run either way.
+	private RuntimeException[] runInParallel(final ModelAction action,
+			final List<CustomerEffectRecorder> effectRecorders) {
+		final int count = models.size();
+		final RuntimeException[] failures = new RuntimeException[count];
+		final AtomicInteger next = new AtomicInteger(0);
+		Runnable worker = new Runnable() {
+			@Override
+			public void run() {
+				int index;
+				while ((index = next.getAndIncrement()) < count) {
+					AbstractCustomer model = models.get(index);
+					if (null != effectRecorders)
+						effectRecorders.get(index).attach();
+					try {
+						action.run(model);
+					} catch (RuntimeException re) {
+						failures[index] = re;
+					} finally {
+						CustomerEffectRecorder.detach();
+					}
+				}
+			}
+		};
+		ExecutorService pool = getStepPool();
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int i = 1; i < Math.min(stepThreads, count); i++)
+			futures.add(pool.submit(worker));
+		// the calling thread takes a share of the work too
+		Error error = null;
+		try {
+			worker.run();
+		} catch (Error e) {
+			error = e;
+		}
+		// wait for every worker, so no model is still running afterwards
+		boolean interrupted = false;
+		for (Future<?> future : futures) {
+			while (true) {
+				try {
+					future.get();
+					break;
+				} catch (InterruptedException ie) {
+					interrupted = true;
+				} catch (ExecutionException ee) {
+					// only Errors get past the worker's catch
+					if (null == error && ee.getCause() instanceof Error)
+						error = (Error) ee.getCause();
+					break;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (null != error)
+			throw error;
+		return failures;
+	}
+
+	// Something to do to each model
+	private interface ModelAction {
+		void run(AbstractCustomer model);
+	}
+
+	private synchronized ExecutorService getStepPool() {
+		if (null == stepPool) {
+			stepPool = Executors.newFixedThreadPool(stepThreads - 1,
+					new ThreadFactory() {
+						private int serial = 0;
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread result = new Thread(r, "customer-step-"
+									+ (serial++));
+							result.setDaemon(true);
+							return result;
+						}
+					});
+		}
+		return stepPool;
+	}
+
+	public boolean isParallelInit() {
+		return parallelInit;
+	}
+
+	/**
+	 * Turns concurrent execution of the models' precompute() steps on or
+	 * off. Takes effect at the next call to initialize().
+	 */
+	public void setParallelInit(boolean value) {
+		parallelInit = value;
+	}
+
+	public int getStepThreads() {
+		return stepThreads;
+	}
+
+	/**
+	 * Sets the number of threads used to step customer models. Values less
+	 * than 2 step them one at a time on the phase thread.
+	 */
+	public synchronized void setStepThreads(int threads) {
+		if (threads != stepThreads && null != stepPool) {
+			stepPool.shutdown();
+			stepPool = null;
+		}
+		stepThreads = threads;
+	}
+
 	@Override
 	public void publishNewTariffs(List<Tariff> tariffs) {
-		for (AbstractCustomer model : models) {
-			log.info("Evaluating tariffs for " + model.getName());
-			model.evaluateTariffs(tariffs);
+		for (CustomerShard shard : shards)
+			shard.startPublishNewTariffs(tariffs);
+		PublishedTariffs batch = new PublishedTariffs(tariffs);
+		try {
+			for (AbstractCustomer model : models) {
+				List<Tariff> relevant = batch.forModel(model);
+				log.info("Evaluating " + relevant.size() + " tariffs for "
+						+ model.getName());
+				model.evaluateTariffs(relevant);
+			}
+		} catch (RuntimeException re) {
+			discardShards();
+			throw re;
 		}
+		finishShards();
 	}
 
 	// test support methods
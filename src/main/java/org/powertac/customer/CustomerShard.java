@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.util.List;
+
+import org.joda.time.Instant;
+import org.powertac.common.CustomerEffectRecorder;
+import org.powertac.common.Tariff;
+
+/**
+ * A group of customer models that CustomerModelService drives as a unit,
+ * possibly in another process. Each call is split in two: a start method
+ * hands the work to the shard and returns without waiting, and finish()
+ * waits for it and returns the tariff transactions and subscription
+ * requests the models produced. The service starts all of its shards
+ * before running its own models, then finishes the shards in order and
+ * replays their effects, so shards run concurrently with each other and
+ * with the server while results are applied deterministically.
+ * <p>
+ * At most one call may be outstanding at a time.</p>
+ */
+public interface CustomerShard
+{
+  /**
+   * Starts stepping the shard's models for the timeslot that begins at
+   * the given time.
+   */
+  public void startActivate (Instant time, int phaseNumber);
+
+  /**
+   * Starts delivering newly published tariffs to the shard's models.
+   */
+  public void startPublishNewTariffs (List<Tariff> tariffs);
+
+  /**
+   * Waits for the outstanding call and returns the effects it recorded.
+   * The caller replays them. Returns an empty recorder if nothing was
+   * outstanding or the shard has been lost. If one of the shard's models
+   * failed, throws a CustomerShardException carrying the effects recorded
+   * up to the failure.
+   */
+  public CustomerEffectRecorder finish ();
+
+  /**
+   * Releases the shard. Remote shards close their connection, which tells
+   * the worker to exit.
+   */
+  public void close ();
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import org.powertac.common.CustomerEffectRecorder;
+
+/**
+ * Thrown by CustomerShard.finish() when one of the shard's models fails.
+ * Carries the effects recorded before the failure, which the caller
+ * applies before rethrowing, as it does for a model that fails on one of
+ * its own step threads.
+ */
+public class CustomerShardException extends RuntimeException
+{
+  private static final long serialVersionUID = 1L;
+
+  private final transient CustomerEffectRecorder effects;
+
+  public CustomerShardException (String message, Throwable cause,
+                                 CustomerEffectRecorder effects)
+  {
+    super(message, cause);
+    this.effects = effects;
+  }
+
+  public CustomerShardException (String message,
+                                 CustomerEffectRecorder effects)
+  {
+    this(message, null, effects);
+  }
+
+  /**
+   * Returns the effects the shard recorded before the failure.
+   */
+  public CustomerEffectRecorder getEffects ()
+  {
+    return effects;
+  }
+}
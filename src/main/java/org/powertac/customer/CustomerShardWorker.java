@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.joda.time.Instant;
+import org.powertac.common.CustomerEffectRecorder;
+import org.powertac.common.CustomerInfo;
+import org.powertac.common.IdGenerator;
+import org.powertac.common.Tariff;
+import org.powertac.common.TariffSubscription;
+import org.springframework.context.support.FileSystemXmlApplicationContext;
+
+/**
+ * Worker side of a customer shard. Runs a group of models in its own JVM
+ * and serves requests from one SocketCustomerShard in the server. Start
+ * it with main(); see ShardCodec for the protocol.
+ * <p>
+ * The models see a ShardServiceAccessor over the worker's own repos. When
+ * the server connects it sends its Competition, and the worker answers
+ * with the class names of its models, which the server then does not run
+ * itself, and its CustomerInfos, which the server registers and
+ * subscribes to the default tariffs. The worker's objects are created
+ * under an IdGenerator prefix of its own, so the ids in both JVMs name
+ * the same things. Each request brings the clock, the weather and the
+ * tariffs up to date, and carries the server's state for the active
+ * subscriptions of the worker's customers, which the worker applies to its
+ * TariffSubscriptionRepo before running its models.</p>
+ * <p>
+ * Tariff transactions and subscription changes are never applied in the
+ * worker. They are recorded and shipped back, along with the worker's
+ * subscription state after the call, and the server applies them in
+ * shard order, as it does for models stepped on its own threads. If a
+ * model fails, the models after it do not run, and the reply is FAILED
+ * with the effects recorded up to the failure.</p>
+ * <p>
+ * Replies are built in memory and sent whole, so a failure partway
+ * through a reply does not leave a partial reply on the connection.</p>
+ */
+public class CustomerShardWorker
+{
+  static private Logger log =
+      Logger.getLogger(CustomerShardWorker.class.getName());
+
+  private LocalCustomerShard shard;
+  private ShardServiceAccessor service;
+
+  public CustomerShardWorker (List<AbstractCustomer> models,
+                              ShardServiceAccessor service)
+  {
+    super();
+    this.shard = new LocalCustomerShard(models);
+    this.service = service;
+  }
+
+  /**
+   * Runs a worker. The arguments are the loopback port to listen on, an
+   * IdGenerator prefix that neither the server nor any other worker uses,
+   * the location of a Spring context file defining the worker's repos,
+   * TimeService, XMLMessageConverter and ServerConfiguration, and the
+   * class names of the models to run. The models are created and
+   * configured as CustomerModelService would, once the server has
+   * connected and sent its Competition. Returns when the server closes
+   * the connection.
+   */
+  public static void main (String[] args) throws Exception
+  {
+    if (args.length < 4) {
+      System.err.println("Usage: CustomerShardWorker port id-prefix "
+                         + "context-file model-class...");
+      System.exit(1);
+    }
+    int port = Integer.parseInt(args[0]);
+    IdGenerator.setPrefix(Integer.parseInt(args[1]));
+    FileSystemXmlApplicationContext context =
+        new FileSystemXmlApplicationContext(args[2]);
+    ServerSocket server =
+        new ServerSocket(port, 1, InetAddress.getByName(null));
+    Socket socket;
+    try {
+      socket = server.accept();
+    }
+    finally {
+      server.close();
+    }
+    try {
+      socket.setTcpNoDelay(true);
+      DataInputStream in =
+          new DataInputStream(new BufferedInputStream(socket
+              .getInputStream()));
+      DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(socket
+              .getOutputStream()));
+      ShardServiceAccessor service = new ShardServiceAccessor(context);
+      service.setCompetition(ShardCodec.readText(in));
+      List<AbstractCustomer> models =
+          createModels(service, Arrays.asList(args).subList(3, args.length));
+      new CustomerShardWorker(models, service).serve(in, out);
+    }
+    finally {
+      socket.close();
+      context.close();
+    }
+  }
+
+  // Creates the models of the named classes and readies them as
+  // CustomerModelService does, registering their customers in the
+  // worker's CustomerRepo.
+  static List<AbstractCustomer> createModels (ShardServiceAccessor service,
+                                              List<String> classNames)
+    throws ClassNotFoundException
+  {
+    List<AbstractCustomer> result = new ArrayList<AbstractCustomer>();
+    for (String className : classNames) {
+      for (Object modelObj : service.getServerConfiguration()
+          .configureInstances(Class.forName(className))) {
+        AbstractCustomer model = (AbstractCustomer) modelObj;
+        log.info("Adding model " + model.getName());
+        model.setServiceAccessor(service);
+        model.initialize();
+        model.precompute();
+        for (CustomerInfo customer : model.getCustomerInfos())
+          service.getCustomerRepo().add(customer);
+        result.add(model);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Sends the worker's model types and customers, then serves requests
+   * until CLOSE or end of stream.
+   */
+  void serve (DataInputStream in, DataOutputStream out) throws IOException
+  {
+    List<CustomerInfo> customers = getCustomers();
+    ShardCodec.writeTexts(out, getModelTypes());
+    List<String> customerXml = new ArrayList<String>();
+    for (CustomerInfo customer : customers)
+      customerXml.add(service.getMessageConverter().toXML(customer));
+    ShardCodec.writeTexts(out, customerXml);
+    out.flush();
+    ByteArrayOutputStream reply = new ByteArrayOutputStream();
+    while (true) {
+      byte op;
+      try {
+        op = in.readByte();
+      }
+      catch (EOFException eof) {
+        return;
+      }
+      if (op == ShardCodec.CLOSE)
+        return;
+
+      // read the whole request before acting on it
+      List<ShardCodec.TariffRecord> tariffs = ShardCodec.readTariffs(in);
+      Instant time = null;
+      int phase = 0;
+      int serial = 0;
+      String weather = null;
+      long[] published = null;
+      if (op == ShardCodec.ACTIVATE) {
+        time = new Instant(in.readLong());
+        phase = in.readInt();
+        serial = in.readInt();
+        weather = ShardCodec.readText(in);
+      }
+      else if (op == ShardCodec.PUBLISH) {
+        published = new long[in.readInt()];
+        for (int i = 0; i < published.length; i++)
+          published[i] = in.readLong();
+      }
+      else {
+        throw new IOException("Unknown shard request " + op);
+      }
+      ShardCodec.SubscriptionState state = ShardCodec.readSubscriptions(in);
+
+      reply.reset();
+      DataOutputStream replyOut = new DataOutputStream(reply);
+      try {
+        for (ShardCodec.TariffRecord record : tariffs)
+          service.updateTariff(record);
+        state.apply(service.getTariffRepo(), service.getCustomerRepo(),
+                    service.getTariffSubscriptionRepo(), customers);
+        for (AbstractCustomer model : shard.getModels())
+          model.invalidateSubscriptionSnapshot();
+        if (null != time) {
+          service.setTime(time, serial);
+          service.addWeatherReport(weather);
+          shard.startActivate(time, phase);
+        }
+        else {
+          shard.startPublishNewTariffs(findTariffs(published));
+        }
+        CustomerEffectRecorder recorder = shard.finish();
+        replyOut.writeByte(ShardCodec.OK);
+        ShardCodec.writeEffects(replyOut, recorder);
+      }
+      catch (CustomerShardException cse) {
+        log.error("Shard request " + op + " failed", cse.getCause());
+        replyOut = writeFailure(reply, cse.getMessage(), cse.getEffects());
+      }
+      catch (RuntimeException re) {
+        log.error("Shard request " + op + " failed", re);
+        replyOut = writeFailure(reply, re.toString(), null);
+      }
+      ShardCodec.writeSubscriptions(replyOut, getSubscriptions(customers));
+      replyOut.flush();
+      reply.writeTo(out);
+      out.flush();
+    }
+  }
+
+  // Starts the reply over as FAILED with the given effects, or with none
+  // if they cannot be encoded.
+  private DataOutputStream writeFailure (ByteArrayOutputStream reply,
+                                         String message,
+                                         CustomerEffectRecorder effects)
+    throws IOException
+  {
+    if (null != effects) {
+      try {
+        return startFailure(reply, message, effects);
+      }
+      catch (RuntimeException re) {
+        log.error("Cannot send effects of failed request", re);
+      }
+    }
+    return startFailure(reply, message, new CustomerEffectRecorder());
+  }
+
+  private DataOutputStream startFailure (ByteArrayOutputStream reply,
+                                         String message,
+                                         CustomerEffectRecorder effects)
+    throws IOException
+  {
+    reply.reset();
+    DataOutputStream result = new DataOutputStream(reply);
+    result.writeByte(ShardCodec.FAILED);
+    ShardCodec.writeText(result, message);
+    ShardCodec.writeEffects(result, effects);
+    return result;
+  }
+
+  private List<CustomerInfo> getCustomers ()
+  {
+    List<CustomerInfo> result = new ArrayList<CustomerInfo>();
+    for (AbstractCustomer model : shard.getModels())
+      result.addAll(model.getCustomerInfos());
+    return result;
+  }
+
+  private List<String> getModelTypes ()
+  {
+    List<String> result = new ArrayList<String>();
+    for (AbstractCustomer model : shard.getModels())
+      if (!result.contains(model.getClass().getName()))
+        result.add(model.getClass().getName());
+    return result;
+  }
+
+  private List<TariffSubscription>
+  getSubscriptions (List<CustomerInfo> customers)
+  {
+    List<TariffSubscription> result = new ArrayList<TariffSubscription>();
+    for (CustomerInfo customer : customers)
+      result.addAll(service.getTariffSubscriptionRepo()
+                    .findActiveSubscriptionsForCustomer(customer));
+    return result;
+  }
+
+  private List<Tariff> findTariffs (long[] ids)
+  {
+    List<Tariff> result = new ArrayList<Tariff>(ids.length);
+    for (long id : ids) {
+      Tariff tariff = service.getTariffRepo().findTariffById(id);
+      if (null == tariff)
+        log.error("Unknown tariff " + id + " published to shard");
+      else
+        result.add(tariff);
+    }
+    return result;
+  }
+}
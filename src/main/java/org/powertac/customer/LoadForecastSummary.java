@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.powertac.common.TimeService;
+import org.powertac.common.timeseries.LoadTimeSeries;
+
+/**
+ * The aggregates of a load forecast that contract utility functions use:
+ * total load, and the peak and total load of each calendar month. A
+ * summary is computed once per cached forecast, in one hourly pass over
+ * the forecast period, so evaluating every issue of an offer and its
+ * counter-offer reads the series only once.
+ */
+public class LoadForecastSummary
+{
+  private double totalLoad = 0.0;
+
+  // index 1..12 by calendar month, as in LoadTimeSeries.getMaxLoad()
+  private final double[] maxLoad = new double[13];
+  private final double[] monthTotal = new double[13];
+
+  /**
+   * Summarizes the hourly loads of series from start up to end.
+   * Months with no hours in the period have zero peak and total.
+   */
+  public LoadForecastSummary (LoadTimeSeries series, DateTime start,
+                              DateTime end)
+  {
+    super();
+    boolean[] seen = new boolean[13];
+    long endMillis = end.getMillis();
+    for (long time = start.getMillis(); time < endMillis;
+         time += TimeService.HOUR) {
+      DateTime hour = new DateTime(time, DateTimeZone.UTC);
+      int month = hour.getMonthOfYear();
+      double load = series.getLoad(hour);
+      totalLoad += load;
+      monthTotal[month] += load;
+      if (!seen[month] || load > maxLoad[month]) {
+        maxLoad[month] = load;
+        seen[month] = true;
+      }
+    }
+  }
+
+  public double getTotalLoad ()
+  {
+    return totalLoad;
+  }
+
+  /**
+   * Returns the peak load for a calendar month, 1 through 12.
+   */
+  public double getMaxLoad (int month)
+  {
+    return maxLoad[month];
+  }
+
+  /**
+   * Returns the total load for a calendar month, 1 through 12.
+   */
+  public double getMonthTotal (int month)
+  {
+    return monthTotal[month];
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.Instant;
+import org.powertac.common.CustomerEffectRecorder;
+import org.powertac.common.Tariff;
+
+/**
+ * CustomerShard over models in the current JVM. The work is done on the
+ * thread that calls finish(), with a CustomerEffectRecorder attached, so
+ * nothing is posted to Accounting or the TariffMarket directly. If a model
+ * fails, the models after it are not run, and finish() throws a
+ * CustomerShardException carrying what was recorded up to the failure.
+ * This is the worker-side engine of CustomerShardWorker, and is also
+ * useful for testing shard handling without a second process.
+ */
+public class LocalCustomerShard implements CustomerShard
+{
+  private List<AbstractCustomer> models;
+  private CustomerEffectRecorder recorder = new CustomerEffectRecorder();
+
+  // outstanding call, if any
+  private boolean activatePending = false;
+  private List<Tariff> pendingTariffs = null;
+
+  public LocalCustomerShard (List<AbstractCustomer> models)
+  {
+    super();
+    this.models = new ArrayList<AbstractCustomer>(models);
+  }
+
+  public List<AbstractCustomer> getModels ()
+  {
+    return models;
+  }
+
+  @Override
+  public void startActivate (Instant time, int phaseNumber)
+  {
+    activatePending = true;
+  }
+
+  @Override
+  public void startPublishNewTariffs (List<Tariff> tariffs)
+  {
+    pendingTariffs = tariffs;
+  }
+
+  @Override
+  public CustomerEffectRecorder finish ()
+  {
+    recorder.clear();
+    recorder.attach();
+    try {
+      if (activatePending)
+        stepModels();
+      if (null != pendingTariffs)
+        publish(pendingTariffs);
+    }
+    finally {
+      CustomerEffectRecorder.detach();
+      activatePending = false;
+      pendingTariffs = null;
+    }
+    return recorder;
+  }
+
+  @Override
+  public void close ()
+  {
+    models.clear();
+  }
+
+  // Stops at the first failing model, as a sequential run would
+  private void stepModels ()
+  {
+    for (AbstractCustomer model : models) {
+      try {
+        model.step();
+      }
+      catch (RuntimeException re) {
+        throw new CustomerShardException("Model " + model.getName()
+                                         + " failed in step", re, recorder);
+      }
+    }
+  }
+
+  // every model is called, with its share of the batch, as in
+  // CustomerModelService
+  private void publish (List<Tariff> tariffs)
+  {
+    PublishedTariffs batch = new PublishedTariffs(tariffs);
+    for (AbstractCustomer model : models) {
+      try {
+        model.evaluateTariffs(batch.forModel(model));
+      }
+      catch (RuntimeException re) {
+        throw new CustomerShardException("Model " + model.getName()
+                                         + " failed in evaluateTariffs",
+                                         re, recorder);
+      }
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.powertac.common.CustomerInfo;
+import org.powertac.common.Tariff;
+import org.powertac.common.enumerations.PowerType;
+
+/**
+ * A batch of published tariffs, split up for the models that evaluate it.
+ * Revoked and superseded tariffs go to every model, since any customer may
+ * hold a subscription to them. New tariffs go only to models with at least
+ * one customer whose PowerType can use them. Each model's list keeps the
+ * publication order.
+ */
+class PublishedTariffs
+{
+  private List<Tariff> tariffs;
+
+  // true for tariffs that every model must see
+  private boolean[] forAll;
+  private boolean allForAll = true;
+
+  PublishedTariffs (List<Tariff> tariffs)
+  {
+    super();
+    this.tariffs = tariffs;
+    forAll = new boolean[tariffs.size()];
+    for (int i = 0; i < forAll.length; i++) {
+      Tariff tariff = tariffs.get(i);
+      forAll[i] = tariff.isRevoked() || null != tariff.getIsSupersededBy();
+      allForAll &= forAll[i];
+    }
+  }
+
+  /**
+   * Returns the tariffs in this batch that are relevant to the given model.
+   * The result may be empty, and is the original list if every tariff is
+   * relevant.
+   */
+  List<Tariff> forModel (AbstractCustomer model)
+  {
+    if (allForAll)
+      return tariffs;
+    List<PowerType> types = new ArrayList<PowerType>();
+    for (CustomerInfo customer : model.getCustomerInfos()) {
+      if (!types.contains(customer.getPowerType()))
+        types.add(customer.getPowerType());
+    }
+    List<Tariff> result = new ArrayList<Tariff>(tariffs.size());
+    for (int i = 0; i < forAll.length; i++) {
+      Tariff tariff = tariffs.get(i);
+      if (forAll[i] || canUse(types, tariff))
+        result.add(tariff);
+    }
+    if (result.size() == tariffs.size())
+      return tariffs;
+    return result;
+  }
+
+  private boolean canUse (List<PowerType> types, Tariff tariff)
+  {
+    for (PowerType type : types) {
+      if (type.canUse(tariff.getPowerType()))
+        return true;
+    }
+    return false;
+  }
+}
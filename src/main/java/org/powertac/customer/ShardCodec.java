@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.powertac.common.CustomerEffectRecorder;
+import org.powertac.common.CustomerInfo;
+import org.powertac.common.RegulationCapacity;
+import org.powertac.common.Tariff;
+import org.powertac.common.TariffSubscription;
+import org.powertac.common.TariffTransaction;
+import org.powertac.common.TariffTransactionBatch;
+import org.powertac.common.repo.CustomerRepo;
+import org.powertac.common.repo.TariffRepo;
+import org.powertac.common.repo.TariffSubscriptionRepo;
+
+/**
+ * Frame layout shared by SocketCustomerShard and CustomerShardWorker.
+ * Domain objects that the other side does not have yet travel as the XML
+ * that brokers see; everything else travels as ids, which mean the same
+ * in both JVMs because the worker creates its own objects under an
+ * IdGenerator prefix of its own. Text is an int byte count, -1 for null,
+ * followed by UTF-8.
+ * <p>
+ * When the connection opens, the server sends the Competition as text.
+ * The worker answers with the class names of its models, as an int count
+ * followed by text, then its CustomerInfos, as an int count followed by
+ * text. Requests are an opcode followed by its arguments:</p>
+ * <ul>
+ * <li>ACTIVATE: tariffs, long time in millis, int phase, int timeslot
+ * serial number, the current WeatherReport as text, subscription
+ * state</li>
+ * <li>PUBLISH: tariffs, int count, then count tariff ids, subscription
+ * state</li>
+ * <li>CLOSE: no arguments, no reply</li>
+ * </ul>
+ * <p>
+ * Tariffs are an int count, then each as id, state ordinal, and the
+ * broker's username and the TariffSpecification as text, both null if the
+ * worker has the tariff already. They include every tariff the request
+ * mentions that the worker has not seen, and every published tariff.
+ * Subscription state is an int count, then for each subscription its
+ * tariff id, customer id, committed count, total usage, pending
+ * unsubscribe count, regulation ratio, unread regulation, and up and down
+ * regulation capacity. A request carries the server's state for every
+ * active subscription of the worker's customers.</p>
+ * <p>
+ * The reply to ACTIVATE and PUBLISH is a status byte, a message as text
+ * if the status is FAILED, then the effects recorded up to the failure,
+ * or all of them, and the worker's subscription state after the call.
+ * Effects are a count of tariff transactions, each as type ordinal,
+ * tariff id, customer id, customer count, kWh and charge, then a count of
+ * subscription requests, each as tariff id, customer id and customer
+ * count.</p>
+ */
+final class ShardCodec
+{
+  static private Logger log = Logger.getLogger(ShardCodec.class.getName());
+
+  static final byte ACTIVATE = 1;
+  static final byte PUBLISH = 2;
+  static final byte CLOSE = 3;
+
+  static final byte OK = 0;
+  static final byte FAILED = 1;
+
+  static private final Charset UTF8 = Charset.forName("UTF-8");
+
+  private ShardCodec ()
+  {
+    super();
+  }
+
+  /**
+   * Writes a string, which may be null.
+   */
+  static void writeText (DataOutputStream out, String text)
+    throws IOException
+  {
+    if (null == text) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = text.getBytes(UTF8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads a string written by writeText().
+   */
+  static String readText (DataInputStream in) throws IOException
+  {
+    int length = in.readInt();
+    if (length < 0)
+      return null;
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  /**
+   * Writes a list of strings.
+   */
+  static void writeTexts (DataOutputStream out, List<String> texts)
+    throws IOException
+  {
+    out.writeInt(texts.size());
+    for (String text : texts)
+      writeText(out, text);
+  }
+
+  /**
+   * Reads a list written by writeTexts().
+   */
+  static List<String> readTexts (DataInputStream in) throws IOException
+  {
+    int count = in.readInt();
+    List<String> result = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++)
+      result.add(readText(in));
+    return result;
+  }
+
+  /**
+   * Writes tariff records. Specs and broker names are given for the
+   * tariffs the worker has not seen; for the others they are null.
+   */
+  static void writeTariffs (DataOutputStream out, List<Tariff> tariffs,
+                            List<String> brokers, List<String> specs)
+    throws IOException
+  {
+    out.writeInt(tariffs.size());
+    for (int i = 0; i < tariffs.size(); i++) {
+      Tariff tariff = tariffs.get(i);
+      out.writeLong(tariff.getId());
+      out.writeInt(null == tariff.getState() ? -1
+                                              : tariff.getState().ordinal());
+      writeText(out, brokers.get(i));
+      writeText(out, specs.get(i));
+    }
+  }
+
+  /**
+   * Reads tariff records written by writeTariffs().
+   */
+  static List<TariffRecord> readTariffs (DataInputStream in)
+    throws IOException
+  {
+    int count = in.readInt();
+    List<TariffRecord> result = new ArrayList<TariffRecord>(count);
+    for (int i = 0; i < count; i++) {
+      TariffRecord record = new TariffRecord();
+      record.id = in.readLong();
+      record.state = in.readInt();
+      record.broker = readText(in);
+      record.spec = readText(in);
+      result.add(record);
+    }
+    return result;
+  }
+
+  /**
+   * Writes the state of the given subscriptions.
+   */
+  static void writeSubscriptions (DataOutputStream out,
+                                  List<TariffSubscription> subscriptions)
+    throws IOException
+  {
+    out.writeInt(subscriptions.size());
+    for (TariffSubscription sub : subscriptions) {
+      RegulationCapacity capacity = sub.getRegulationCapacity();
+      out.writeLong(sub.getTariff().getId());
+      out.writeLong(sub.getCustomer().getId());
+      out.writeInt(sub.getCustomersCommitted());
+      out.writeDouble(sub.getTotalUsage());
+      out.writeInt(sub.getPendingUnsubscribeCount());
+      out.writeDouble(sub.getPendingRegulationRatio());
+      out.writeDouble(sub.getUnreadRegulation());
+      out.writeDouble(capacity.getUpRegulationCapacity());
+      out.writeDouble(capacity.getDownRegulationCapacity());
+    }
+  }
+
+  /**
+   * Reads subscription state written by writeSubscriptions(). Nothing is
+   * looked up until the state is applied, so a bad entry cannot leave the
+   * rest of the frame unread.
+   */
+  static SubscriptionState readSubscriptions (DataInputStream in)
+    throws IOException
+  {
+    SubscriptionState result = new SubscriptionState(in.readInt());
+    for (int i = 0; i < result.size(); i++) {
+      result.tariffIds[i] = in.readLong();
+      result.customerIds[i] = in.readLong();
+      result.counts[i] = in.readInt();
+      result.totalUsage[i] = in.readDouble();
+      result.pendingUnsubscribes[i] = in.readInt();
+      result.regulationRatios[i] = in.readDouble();
+      result.regulations[i] = in.readDouble();
+      result.upCapacities[i] = in.readDouble();
+      result.downCapacities[i] = in.readDouble();
+    }
+    return result;
+  }
+
+  /**
+   * Writes the contents of a recorder.
+   */
+  static void writeEffects (DataOutputStream out,
+                            CustomerEffectRecorder recorder)
+    throws IOException
+  {
+    TariffTransactionBatch batch = recorder.getTransactions();
+    out.writeInt(batch.size());
+    for (int i = 0; i < batch.size(); i++) {
+      out.writeByte(batch.getType(i).ordinal());
+      out.writeLong(batch.getTariff(i).getId());
+      out.writeLong(batch.getCustomer(i).getId());
+      out.writeInt(batch.getCustomerCount(i));
+      out.writeDouble(batch.getKWh(i));
+      out.writeDouble(batch.getCharge(i));
+    }
+    out.writeInt(recorder.getSubscriptionRequests().size());
+    for (CustomerEffectRecorder.SubscriptionRequest request
+         : recorder.getSubscriptionRequests()) {
+      out.writeLong(request.getTariff().getId());
+      out.writeLong(request.getCustomer().getId());
+      out.writeInt(request.getCustomerCount());
+    }
+  }
+
+  /**
+   * Reads effects written by writeEffects() into the given recorder.
+   * Entries that name an unknown tariff or customer are logged and dropped.
+   */
+  static void readEffects (DataInputStream in, TariffRepo tariffRepo,
+                           CustomerRepo customerRepo,
+                           CustomerEffectRecorder recorder)
+    throws IOException
+  {
+    TariffTransaction.Type[] types = TariffTransaction.Type.values();
+    int txCount = in.readInt();
+    for (int i = 0; i < txCount; i++) {
+      int type = in.readByte();
+      long tariffId = in.readLong();
+      long customerId = in.readLong();
+      int count = in.readInt();
+      double kWh = in.readDouble();
+      double charge = in.readDouble();
+      Tariff tariff = tariffRepo.findTariffById(tariffId);
+      CustomerInfo customer = customerRepo.findById(customerId);
+      if (null == tariff || null == customer || type >= types.length) {
+        log.error("Dropping shard transaction for tariff " + tariffId
+                  + ", customer " + customerId);
+        continue;
+      }
+      recorder.addTariffTransaction(types[type], tariff, customer, count,
+                                    kWh, charge);
+    }
+    int requestCount = in.readInt();
+    for (int i = 0; i < requestCount; i++) {
+      long tariffId = in.readLong();
+      long customerId = in.readLong();
+      int count = in.readInt();
+      Tariff tariff = tariffRepo.findTariffById(tariffId);
+      CustomerInfo customer = customerRepo.findById(customerId);
+      if (null == tariff || null == customer) {
+        log.error("Dropping shard subscription for tariff " + tariffId
+                  + ", customer " + customerId);
+        continue;
+      }
+      recorder.subscribeToTariff(tariff, customer, count);
+    }
+  }
+
+  /**
+   * A tariff as sent to the worker.
+   */
+  static class TariffRecord
+  {
+    long id;
+    int state;
+    String broker;
+    String spec;
+  }
+
+  /**
+   * Subscription state as sent by either side.
+   */
+  static class SubscriptionState
+  {
+    final long[] tariffIds;
+    final long[] customerIds;
+    final int[] counts;
+    final double[] totalUsage;
+    final int[] pendingUnsubscribes;
+    final double[] regulationRatios;
+    final double[] regulations;
+    final double[] upCapacities;
+    final double[] downCapacities;
+
+    SubscriptionState (int size)
+    {
+      super();
+      tariffIds = new long[size];
+      customerIds = new long[size];
+      counts = new int[size];
+      totalUsage = new double[size];
+      pendingUnsubscribes = new int[size];
+      regulationRatios = new double[size];
+      regulations = new double[size];
+      upCapacities = new double[size];
+      downCapacities = new double[size];
+    }
+
+    int size ()
+    {
+      return counts.length;
+    }
+
+    /**
+     * Worker side: makes the subscriptions in subscriptionRepo match this
+     * state for the given customers. Subscriptions the state does not
+     * mention get a committed count of zero. Entries that name an unknown
+     * tariff or customer are logged and skipped.
+     */
+    void apply (TariffRepo tariffRepo, CustomerRepo customerRepo,
+                TariffSubscriptionRepo subscriptionRepo,
+                List<CustomerInfo> customers)
+    {
+      HashSet<TariffSubscription> seen = new HashSet<TariffSubscription>();
+      for (int i = 0; i < size(); i++) {
+        TariffSubscription sub =
+            find(i, tariffRepo, customerRepo, subscriptionRepo);
+        if (null == sub)
+          continue;
+        if (sub.getCustomersCommitted() != counts[i])
+          sub.setCustomersCommitted(counts[i]);
+        setTimeslotState(i, sub);
+        seen.add(sub);
+      }
+      for (CustomerInfo customer : customers) {
+        for (TariffSubscription sub
+             : subscriptionRepo.findSubscriptionsForCustomer(customer)) {
+          if (!seen.contains(sub) && sub.getCustomersCommitted() != 0)
+            sub.setCustomersCommitted(0);
+        }
+      }
+    }
+
+    /**
+     * Server side: copies everything but the committed counts, which only
+     * the server changes, into the subscriptions in subscriptionRepo.
+     */
+    void applyTimeslotState (TariffRepo tariffRepo, CustomerRepo customerRepo,
+                             TariffSubscriptionRepo subscriptionRepo)
+    {
+      for (int i = 0; i < size(); i++) {
+        TariffSubscription sub =
+            find(i, tariffRepo, customerRepo, subscriptionRepo);
+        if (null != sub)
+          setTimeslotState(i, sub);
+      }
+    }
+
+    private TariffSubscription find (int i, TariffRepo tariffRepo,
+                                     CustomerRepo customerRepo,
+                                     TariffSubscriptionRepo subscriptionRepo)
+    {
+      Tariff tariff = tariffRepo.findTariffById(tariffIds[i]);
+      CustomerInfo customer = customerRepo.findById(customerIds[i]);
+      if (null == tariff || null == customer) {
+        log.error("Dropping shard subscription state for tariff "
+                  + tariffIds[i] + ", customer " + customerIds[i]);
+        return null;
+      }
+      return subscriptionRepo.getSubscription(customer, tariff);
+    }
+
+    private void setTimeslotState (int i, TariffSubscription sub)
+    {
+      sub.setTimeslotState(totalUsage[i], pendingUnsubscribes[i],
+                           regulationRatios[i], regulations[i],
+                           upCapacities[i], downCapacities[i]);
+    }
+  }
+}
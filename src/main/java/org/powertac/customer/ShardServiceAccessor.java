@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import org.apache.log4j.Logger;
+import org.joda.time.Instant;
+import org.powertac.common.Broker;
+import org.powertac.common.Competition;
+import org.powertac.common.Tariff;
+import org.powertac.common.TariffSpecification;
+import org.powertac.common.TimeService;
+import org.powertac.common.WeatherReport;
+import org.powertac.common.XMLMessageConverter;
+import org.powertac.common.interfaces.BrokerProxy;
+import org.powertac.common.interfaces.CustomerServiceAccessor;
+import org.powertac.common.interfaces.ServerConfiguration;
+import org.powertac.common.repo.BrokerRepo;
+import org.powertac.common.repo.ContractRepo;
+import org.powertac.common.repo.CustomerRepo;
+import org.powertac.common.repo.RandomSeedRepo;
+import org.powertac.common.repo.TariffRepo;
+import org.powertac.common.repo.TariffSubscriptionRepo;
+import org.powertac.common.repo.TimeSeriesRepo;
+import org.powertac.common.repo.TimeslotRepo;
+import org.powertac.common.repo.WeatherReportRepo;
+import org.springframework.beans.BeansException;
+import org.springframework.context.ApplicationContext;
+
+/**
+ * The CustomerServiceAccessor that models in a CustomerShardWorker see. It
+ * stands in for the server: its repos are the worker's own, taken from
+ * the worker's Spring context, and CustomerShardWorker keeps what the
+ * models read from them in step with the server by passing along the
+ * competition, the clock, the weather and the tariffs it receives.
+ * Subscription state is kept in step by the worker itself.
+ * <p>
+ * Workers do not talk to brokers, so there is no BrokerProxy, and
+ * services the context does not define are null.</p>
+ */
+public class ShardServiceAccessor implements CustomerServiceAccessor
+{
+  static private Logger log =
+      Logger.getLogger(ShardServiceAccessor.class.getName());
+
+  private CustomerRepo customerRepo;
+  private RandomSeedRepo randomSeedRepo;
+  private TariffRepo tariffRepo;
+  private TariffSubscriptionRepo tariffSubscriptionRepo;
+  private ContractRepo contractRepo;
+  private TimeSeriesRepo timeSeriesRepo;
+  private TimeslotRepo timeslotRepo;
+  private WeatherReportRepo weatherReportRepo;
+  private BrokerRepo brokerRepo;
+  private ServerConfiguration serverConfig;
+  private TimeService timeService;
+  private XMLMessageConverter messageConverter;
+
+  /**
+   * Takes the worker's services from the given context.
+   */
+  public ShardServiceAccessor (ApplicationContext context)
+  {
+    super();
+    customerRepo = getBean(context, CustomerRepo.class);
+    randomSeedRepo = getBean(context, RandomSeedRepo.class);
+    tariffRepo = getBean(context, TariffRepo.class);
+    tariffSubscriptionRepo = getBean(context, TariffSubscriptionRepo.class);
+    contractRepo = getBean(context, ContractRepo.class);
+    timeSeriesRepo = getBean(context, TimeSeriesRepo.class);
+    timeslotRepo = getBean(context, TimeslotRepo.class);
+    weatherReportRepo = getBean(context, WeatherReportRepo.class);
+    brokerRepo = getBean(context, BrokerRepo.class);
+    serverConfig = getBean(context, ServerConfiguration.class);
+    timeService = getBean(context, TimeService.class);
+    messageConverter = getBean(context, XMLMessageConverter.class);
+  }
+
+  // Test support: services are set with ReflectionTestUtils
+  ShardServiceAccessor ()
+  {
+    super();
+  }
+
+  private <T> T getBean (ApplicationContext context, Class<T> type)
+  {
+    try {
+      return context.getBean(type);
+    }
+    catch (BeansException be) {
+      log.warn("No " + type.getSimpleName() + " in shard worker context");
+      return null;
+    }
+  }
+
+  @Override
+  public CustomerRepo getCustomerRepo ()
+  {
+    return customerRepo;
+  }
+
+  @Override
+  public ServerConfiguration getServerConfiguration ()
+  {
+    return serverConfig;
+  }
+
+  @Override
+  public RandomSeedRepo getRandomSeedRepo ()
+  {
+    return randomSeedRepo;
+  }
+
+  @Override
+  public TariffRepo getTariffRepo ()
+  {
+    return tariffRepo;
+  }
+
+  @Override
+  public TariffSubscriptionRepo getTariffSubscriptionRepo ()
+  {
+    return tariffSubscriptionRepo;
+  }
+
+  @Override
+  public ContractRepo getContractRepo ()
+  {
+    return contractRepo;
+  }
+
+  @Override
+  public TimeSeriesRepo getTimeSeriesRepo ()
+  {
+    return timeSeriesRepo;
+  }
+
+  @Override
+  public TimeslotRepo getTimeslotRepo ()
+  {
+    return timeslotRepo;
+  }
+
+  @Override
+  public WeatherReportRepo getWeatherReportRepo ()
+  {
+    return weatherReportRepo;
+  }
+
+  @Override
+  public BrokerProxy getBrokerProxyService ()
+  {
+    return null;
+  }
+
+  public TimeService getTimeService ()
+  {
+    return timeService;
+  }
+
+  public XMLMessageConverter getMessageConverter ()
+  {
+    return messageConverter;
+  }
+
+  // ------------- Keeping the worker in step with the server -------------
+
+  /**
+   * Makes the server's competition, sent as XML, the current one.
+   */
+  void setCompetition (String xml)
+  {
+    if (null == xml)
+      return;
+    Competition.setCurrent((Competition) messageConverter.fromXML(xml));
+  }
+
+  /**
+   * Moves the worker's clock to the start of the given timeslot.
+   */
+  void setTime (Instant time, int serialNumber)
+  {
+    timeService.setCurrentTime(time);
+    timeslotRepo.findOrCreateBySerialNumber(serialNumber);
+  }
+
+  /**
+   * Adds the server's current weather report, sent as XML.
+   */
+  void addWeatherReport (String xml)
+  {
+    if (null == xml)
+      return;
+    weatherReportRepo.add((WeatherReport) messageConverter.fromXML(xml));
+  }
+
+  /**
+   * Brings a tariff up to date with the server, creating it from its
+   * specification if the worker has not seen it. Returns null if the
+   * tariff is unknown and no specification was sent.
+   */
+  Tariff updateTariff (ShardCodec.TariffRecord record)
+  {
+    Tariff tariff = tariffRepo.findTariffById(record.id);
+    if (null == tariff) {
+      if (null == record.spec) {
+        log.error("Unknown tariff " + record.id + " sent to shard");
+        return null;
+      }
+      if (null != record.broker
+          && null == brokerRepo.findByUsername(record.broker))
+        brokerRepo.add(new Broker(record.broker));
+      TariffSpecification spec =
+          (TariffSpecification) messageConverter.fromXML(record.spec);
+      tariffRepo.addSpecification(spec);
+      tariff = new Tariff(spec);
+      tariff.init();
+      if (null == tariffRepo.findTariffById(tariff.getId()))
+        tariffRepo.addTariff(tariff);
+    }
+    if (record.state >= 0) {
+      Tariff.State state = Tariff.State.values()[record.state];
+      if (tariff.getState() != state)
+        tariff.setState(state);
+    }
+    return tariff;
+  }
+}
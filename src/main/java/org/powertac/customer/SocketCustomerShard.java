@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.joda.time.Instant;
+import org.powertac.common.Competition;
+import org.powertac.common.CustomerEffectRecorder;
+import org.powertac.common.CustomerInfo;
+import org.powertac.common.Tariff;
+import org.powertac.common.TariffSubscription;
+import org.powertac.common.WeatherReport;
+import org.powertac.common.XMLMessageConverter;
+import org.powertac.common.interfaces.Accounting;
+import org.powertac.common.interfaces.CustomerServiceAccessor;
+import org.powertac.common.interfaces.TariffMarket;
+
+/**
+ * Server-side proxy for a CustomerShardWorker running in another JVM on
+ * the same machine, reached over a loopback TCP connection. See
+ * ShardCodec for the protocol.
+ * <p>
+ * When it connects, the proxy sends the Competition and receives the
+ * class names of the worker's models and its CustomerInfos, which
+ * CustomerModelService registers in its CustomerRepo and subscribes to
+ * the default tariffs. Start methods write a request frame and return.
+ * Each request sends along the tariffs the worker has not seen yet and
+ * the server's state for the active subscriptions of the worker's
+ * customers. finish() reads the reply and rebuilds the recorded effects
+ * against the server's repos. Replaying them first copies the worker's
+ * per-timeslot subscription state, such as usage, pending unsubscribes
+ * and regulation capacity, into the server's subscriptions, so balancing
+ * sees what the models did. If a model failed, finish() throws a
+ * CustomerShardException carrying the effects recorded up to the
+ * failure.</p>
+ * <p>
+ * If the connection fails, the error is logged and the shard stops
+ * contributing: later calls return empty results.</p>
+ */
+public class SocketCustomerShard implements CustomerShard
+{
+  static private Logger log =
+      Logger.getLogger(SocketCustomerShard.class.getName());
+
+  private CustomerServiceAccessor service;
+  private XMLMessageConverter messageConverter;
+
+  // the worker's models and customers
+  private List<String> modelTypes;
+  private List<CustomerInfo> customers;
+
+  // tariffs the worker has been sent
+  private HashSet<Long> sentTariffs = new HashSet<Long>();
+
+  private Socket socket;
+  private DataInputStream in;
+  private DataOutputStream out;
+  private boolean pending = false;
+  private boolean failed = false;
+  private ShardEffects recorder = new ShardEffects();
+  private ByteArrayOutputStream frame = new ByteArrayOutputStream();
+
+  /**
+   * Connects to a worker listening on the given loopback port, sends it
+   * the competition, and reads its model types and customers.
+   */
+  public SocketCustomerShard (int port, CustomerServiceAccessor service,
+                              XMLMessageConverter messageConverter,
+                              Competition competition)
+    throws IOException
+  {
+    super();
+    this.service = service;
+    this.messageConverter = messageConverter;
+    socket = new Socket(InetAddress.getByName(null), port);
+    socket.setTcpNoDelay(true);
+    in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    out = new DataOutputStream(new BufferedOutputStream(socket
+        .getOutputStream()));
+    ShardCodec.writeText(out, null == competition ? null
+        : messageConverter.toXML(competition));
+    out.flush();
+    modelTypes = ShardCodec.readTexts(in);
+    customers = new ArrayList<CustomerInfo>();
+    for (String xml : ShardCodec.readTexts(in))
+      customers.add((CustomerInfo) messageConverter.fromXML(xml));
+  }
+
+  /**
+   * Returns the class names of the worker's models.
+   */
+  public List<String> getModelTypes ()
+  {
+    return modelTypes;
+  }
+
+  /**
+   * Returns the worker's customers. The caller registers them.
+   */
+  public List<CustomerInfo> getCustomers ()
+  {
+    return customers;
+  }
+
+  @Override
+  public void startActivate (Instant time, int phaseNumber)
+  {
+    if (failed)
+      return;
+    try {
+      List<TariffSubscription> subscriptions = getSubscriptions();
+      List<Tariff> tariffs = new ArrayList<Tariff>();
+      for (TariffSubscription sub : subscriptions)
+        if (!tariffs.contains(sub.getTariff())
+            && !sentTariffs.contains(sub.getTariff().getId()))
+          tariffs.add(sub.getTariff());
+      DataOutputStream request = startFrame(ShardCodec.ACTIVATE, tariffs);
+      request.writeLong(time.getMillis());
+      request.writeInt(phaseNumber);
+      request.writeInt(service.getTimeslotRepo().currentSerialNumber());
+      WeatherReport weather =
+          service.getWeatherReportRepo().currentWeatherReport();
+      ShardCodec.writeText(request, null == weather ? null
+          : messageConverter.toXML(weather));
+      sendFrame(request, subscriptions);
+    }
+    catch (IOException ioe) {
+      fail(ioe);
+    }
+  }
+
+  @Override
+  public void startPublishNewTariffs (List<Tariff> tariffs)
+  {
+    if (failed)
+      return;
+    try {
+      List<TariffSubscription> subscriptions = getSubscriptions();
+      // every published tariff goes along, to update its state
+      List<Tariff> sent = new ArrayList<Tariff>(tariffs);
+      for (TariffSubscription sub : subscriptions)
+        if (!sent.contains(sub.getTariff())
+            && !sentTariffs.contains(sub.getTariff().getId()))
+          sent.add(sub.getTariff());
+      DataOutputStream request = startFrame(ShardCodec.PUBLISH, sent);
+      request.writeInt(tariffs.size());
+      for (Tariff tariff : tariffs)
+        request.writeLong(tariff.getId());
+      sendFrame(request, subscriptions);
+    }
+    catch (IOException ioe) {
+      fail(ioe);
+    }
+  }
+
+  // Requests are built in memory and sent whole, so a failure while
+  // building one leaves nothing half-written on the connection.
+  private DataOutputStream startFrame (byte op, List<Tariff> tariffs)
+    throws IOException
+  {
+    frame.reset();
+    DataOutputStream result = new DataOutputStream(frame);
+    result.writeByte(op);
+    List<String> brokers = new ArrayList<String>();
+    List<String> specs = new ArrayList<String>();
+    for (Tariff tariff : tariffs) {
+      if (sentTariffs.contains(tariff.getId())) {
+        brokers.add(null);
+        specs.add(null);
+      }
+      else {
+        brokers.add(null == tariff.getBroker() ? null
+            : tariff.getBroker().getUsername());
+        specs.add(messageConverter.toXML(tariff.getTariffSpec()));
+      }
+    }
+    ShardCodec.writeTariffs(result, tariffs, brokers, specs);
+    for (Tariff tariff : tariffs)
+      sentTariffs.add(tariff.getId());
+    return result;
+  }
+
+  // Appends the subscription state and sends the frame.
+  private void sendFrame (DataOutputStream request,
+                          List<TariffSubscription> subscriptions)
+    throws IOException
+  {
+    ShardCodec.writeSubscriptions(request, subscriptions);
+    request.flush();
+    frame.writeTo(out);
+    out.flush();
+    pending = true;
+  }
+
+  // Active subscriptions of the worker's customers, as the server sees them
+  private List<TariffSubscription> getSubscriptions ()
+  {
+    List<TariffSubscription> result = new ArrayList<TariffSubscription>();
+    for (CustomerInfo customer : customers)
+      result.addAll(service.getTariffSubscriptionRepo()
+                    .findActiveSubscriptionsForCustomer(customer));
+    return result;
+  }
+
+  @Override
+  public CustomerEffectRecorder finish ()
+  {
+    recorder.clear();
+    if (!pending || failed)
+      return recorder;
+    pending = false;
+    String failure = null;
+    try {
+      byte status = in.readByte();
+      if (status != ShardCodec.OK)
+        failure = ShardCodec.readText(in);
+      ShardCodec.readEffects(in, service.getTariffRepo(),
+                             service.getCustomerRepo(), recorder);
+      recorder.state = ShardCodec.readSubscriptions(in);
+    }
+    catch (IOException ioe) {
+      fail(ioe);
+      return recorder;
+    }
+    if (null != failure)
+      throw new CustomerShardException("Shard on port " + socket.getPort()
+                                       + " failed: " + failure, recorder);
+    return recorder;
+  }
+
+  @Override
+  public void close ()
+  {
+    try {
+      if (!failed) {
+        out.writeByte(ShardCodec.CLOSE);
+        out.flush();
+      }
+      socket.close();
+    }
+    catch (IOException ioe) {
+      log.warn("Error closing shard: " + ioe.toString());
+    }
+    failed = true;
+  }
+
+  private void fail (IOException ioe)
+  {
+    log.error("Lost customer shard on port " + socket.getPort(), ioe);
+    failed = true;
+    pending = false;
+    recorder.clear();
+    try {
+      socket.close();
+    }
+    catch (IOException ignore) {
+      // already failed
+    }
+  }
+
+  // Effects of one call, with the worker's subscription state, which is
+  // copied into the server's subscriptions when they are replayed.
+  private class ShardEffects extends CustomerEffectRecorder
+  {
+    ShardCodec.SubscriptionState state;
+
+    @Override
+    public void replay (Accounting accounting, TariffMarket tariffMarket)
+    {
+      if (null != state)
+        state.applyTimeslotState(service.getTariffRepo(),
+                                 service.getCustomerRepo(),
+                                 service.getTariffSubscriptionRepo());
+      super.replay(accounting, tariffMarket);
+    }
+
+    @Override
+    public void clear ()
+    {
+      super.clear();
+      state = null;
+    }
+  }
+}
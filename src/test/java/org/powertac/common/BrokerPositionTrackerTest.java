@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BrokerPositionTrackerTest
+{
+  private BrokerPositionTracker tracker;
+  private Broker b1;
+  private Broker b2;
+
+  @Before
+  public void setUp ()
+  {
+    tracker = new BrokerPositionTracker(32);
+    tracker.setVerify(true);
+    b1 = new Broker("b1");
+    b2 = new Broker("b2");
+  }
+
+  private TariffTransaction tx (Broker broker, TariffTransaction.Type type,
+                                double kWh)
+  {
+    return new TariffTransaction(broker, 0, type, null, null, 1, kWh, 0.0);
+  }
+
+  @Test
+  public void testNetLoad ()
+  {
+    tracker.startTimeslot(10);
+    tracker.recordTariffTransaction(tx(b1, TariffTransaction.Type.CONSUME, -20.0));
+    tracker.recordTariffTransaction(tx(b1, TariffTransaction.Type.PRODUCE, 5.0));
+    tracker.recordTariffTransaction(tx(b1, TariffTransaction.Type.PERIODIC, 99.0));
+    tracker.recordTariffTransaction(tx(b2, TariffTransaction.Type.CONSUME, -3.0));
+    assertEquals("b1", -15.0, tracker.getNetLoad(b1), 1e-9);
+    assertEquals("b2", -3.0, tracker.getNetLoad(b2), 1e-9);
+    assertEquals("unknown", 0.0, tracker.getNetLoad(new Broker("x")), 1e-9);
+    tracker.startTimeslot(11);
+    assertEquals("reset", 0.0, tracker.getNetLoad(b1), 1e-9);
+  }
+
+  @Test
+  public void testMarketPosition ()
+  {
+    tracker.startTimeslot(10);
+    tracker.recordMarketTransaction(b1, 10, 1.5);
+    tracker.recordMarketTransaction(b1, 12, 2.0);
+    tracker.recordMarketTransaction(b1, 12, -0.5);
+    tracker.recordMarketTransaction(b2, 12, 4.0);
+    assertEquals("current", 1.5, tracker.getMarketPosition(b1), 1e-9);
+    assertEquals("future", 1.5, tracker.getMarketPosition(b1, 12), 1e-9);
+    tracker.startTimeslot(12);
+    assertEquals("b1 now", 1.5, tracker.getMarketPosition(b1), 1e-9);
+    assertEquals("b2 now", 4.0, tracker.getMarketPosition(b2), 1e-9);
+    // slot for timeslot 10 is reused by 42
+    tracker.recordMarketTransaction(b1, 42, 3.0);
+    assertEquals("old gone", 0.0, tracker.getMarketPosition(b1, 10), 1e-9);
+    assertEquals("new", 3.0, tracker.getMarketPosition(b1, 42), 1e-9);
+  }
+}
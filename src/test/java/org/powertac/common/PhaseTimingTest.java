@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+import static org.junit.Assert.*;
+
+import org.joda.time.Instant;
+import org.junit.Before;
+import org.junit.Test;
+import org.powertac.common.interfaces.TimeslotPhaseProcessor;
+
+public class PhaseTimingTest
+{
+  private PhaseTiming timing;
+
+  @Before
+  public void setUp ()
+  {
+    timing = new PhaseTiming();
+    timing.setSummaryInterval(0);
+  }
+
+  @Test
+  public void testRecord ()
+  {
+    timing.startTimeslot();
+    long start = timing.start("a@1");
+    timing.stop("a@1", start - 5000000l); // 5 ms
+    start = timing.start("a@1");
+    timing.stop("a@1", start - 40000l); // 40 us
+    timing.endTimeslot();
+    assertEquals("timeslots", 1, timing.getTimeslotCount());
+    long[] histogram = timing.getHistogram("a@1");
+    assertEquals("buckets", PhaseTiming.BUCKETS, histogram.length);
+    assertEquals("40us in [32,64)", 1l, histogram[6]);
+    assertEquals("5ms in [4096,8192)", 1l, histogram[13]);
+    assertTrue("breakdown", timing.getLastTimeslotBreakdown()
+                                  .contains("a@1=5ms"));
+    String[] summaries = timing.getProcessorSummaries();
+    assertEquals("one processor", 1, summaries.length);
+    assertTrue("count", summaries[0].startsWith("a@1: n=2"));
+    timing.reset();
+    assertEquals("reset", 0, timing.getProcessorSummaries().length);
+  }
+
+  @Test
+  public void testScheduler ()
+  {
+    TimeslotPhaseScheduler scheduler = new TimeslotPhaseScheduler(1);
+    scheduler.setTiming(timing);
+    scheduler.register(new Sleeper(), 3);
+    scheduler.runTimeslot(new Instant(0l));
+    assertEquals("timeslots", 1, timing.getTimeslotCount());
+    String[] summaries = timing.getProcessorSummaries();
+    assertEquals("one processor", 1, summaries.length);
+    assertTrue("named", summaries[0].startsWith("Sleeper@3: n=1"));
+  }
+
+  @Test
+  public void testSchedulerNamesInstances ()
+  {
+    TimeslotPhaseScheduler scheduler = new TimeslotPhaseScheduler(1);
+    scheduler.setTiming(timing);
+    scheduler.register(new Sleeper(), 3);
+    scheduler.register(new Sleeper(), 3);
+    scheduler.register(new Sleeper(), 4);
+    scheduler.runTimeslot(new Instant(0l));
+    String[] summaries = timing.getProcessorSummaries();
+    assertEquals("three processors", 3, summaries.length);
+    assertTrue("first", summaries[0].startsWith("Sleeper#2@3: n=1"));
+    assertTrue("second", summaries[1].startsWith("Sleeper@3: n=1"));
+    assertTrue("other phase", summaries[2].startsWith("Sleeper@4: n=1"));
+  }
+
+  @Test
+  public void testCheckRunning ()
+  {
+    FakeClock clock = new FakeClock();
+    timing.setClock(clock);
+    long start = timing.start("slow@1");
+    clock.advanceMillis(20);
+    assertEquals("no budget, no report", 0, timing.checkRunning());
+    timing.setWatchdogFraction(0.5);
+    timing.setPollMillis(60000l);
+    timing.setTimeslotBudgetMillis(10l);
+    assertEquals("reported", 1, timing.checkRunning());
+    assertEquals("once per activation", 0, timing.checkRunning());
+    timing.stop("slow@1", start);
+    timing.start("slow@1");
+    clock.advanceMillis(4);
+    assertEquals("not yet over", 0, timing.checkRunning());
+    clock.advanceMillis(1);
+    assertEquals("at the limit", 1, timing.checkRunning());
+    timing.shutdown();
+  }
+
+  @Test
+  public void testWatchdog () throws InterruptedException
+  {
+    FakeClock clock = new FakeClock();
+    timing.setClock(clock);
+    timing.setWatchdogFraction(0.5);
+    timing.setPollMillis(1l);
+    long start = timing.start("slow@1");
+    clock.advanceMillis(20);
+    timing.setTimeslotBudgetMillis(10l);
+    // wait for the watchdog thread, however slowly it is scheduled
+    long deadline = System.currentTimeMillis() + 10000l;
+    while (timing.getWatchdogReports() == 0
+           && System.currentTimeMillis() < deadline)
+      Thread.sleep(1);
+    assertEquals("reported by watchdog", 1, timing.getWatchdogReports());
+    assertEquals("not reported again", 0, timing.checkRunning());
+    timing.stop("slow@1", start);
+    timing.shutdown();
+  }
+
+  // Advances only when told to
+  static class FakeClock implements PhaseTiming.Clock
+  {
+    private volatile long nanos = 1000000000l;
+
+    void advanceMillis (long millis)
+    {
+      nanos += millis * 1000000l;
+    }
+
+    @Override
+    public long nanoTime ()
+    {
+      return nanos;
+    }
+  }
+
+  static class Sleeper extends TimeslotPhaseProcessor
+  {
+    @Override
+    public void activate (Instant time, int phaseNumber)
+    {
+      try {
+        Thread.sleep(2);
+      }
+      catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
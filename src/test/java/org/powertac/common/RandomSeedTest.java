@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class RandomSeedTest
+{
+  private RandomSeed[] pair (boolean splittable)
+  {
+    if (splittable)
+      return new RandomSeed[] {
+        new SplittableRandomSeed("Foo", 3, "test", 42l),
+        new SplittableRandomSeed("Foo", 3, "test", 42l)};
+    return new RandomSeed[] {new RandomSeed("Foo", 3, "test", 42l),
+                             new RandomSeed("Foo", 3, "test", 42l)};
+  }
+
+  @Test
+  public void testBulkDoubles ()
+  {
+    for (boolean splittable : new boolean[] {false, true}) {
+      RandomSeed[] rs = pair(splittable);
+      double[] bulk = new double[50];
+      rs[0].nextDoubles(bulk, 10, 30);
+      for (int i = 0; i < bulk.length; i++) {
+        if (i < 10 || i >= 40)
+          assertEquals("untouched", 0.0, bulk[i], 0.0);
+        else
+          assertEquals("same uniform", rs[1].nextDouble(), bulk[i], 0.0);
+      }
+      rs[0].nextGaussians(bulk);
+      for (int i = 0; i < bulk.length; i++) {
+        assertEquals("same normal", rs[1].nextGaussian(), bulk[i], 0.0);
+      }
+    }
+  }
+
+  @Test
+  public void testBinomial ()
+  {
+    for (boolean splittable : new boolean[] {false, true}) {
+      RandomSeed[] rs = pair(splittable);
+      int[] bulk = new int[100];
+      rs[0].nextBinomials(bulk, 200, 0.3);
+      long sum = 0;
+      for (int i = 0; i < bulk.length; i++) {
+        assertEquals("same binomial", rs[1].nextBinomial(200, 0.3), bulk[i]);
+        assertTrue("in range", bulk[i] >= 0 && bulk[i] <= 200);
+        sum += bulk[i];
+      }
+      // mean is 60, sd of the sample mean is about 0.65
+      assertEquals("plausible mean", 60.0, sum / 100.0, 4.0);
+      rs[0].nextBinomials(bulk, 50, 0.8);
+      for (int i = 0; i < bulk.length; i++) {
+        assertEquals("same high-p binomial",
+                     rs[1].nextBinomial(50, 0.8), bulk[i]);
+      }
+    }
+  }
+
+  @Test
+  public void testBinomialEdges ()
+  {
+    RandomSeed rs = new RandomSeed("Foo", 3, "test", 42l);
+    assertEquals("p=0", 0, rs.nextBinomial(10, 0.0));
+    assertEquals("p=1", 10, rs.nextBinomial(10, 1.0));
+    assertEquals("n=0", 0, rs.nextBinomial(0, 0.5));
+  }
+
+  @Test
+  public void testMultinomial ()
+  {
+    RandomSeed[] rs = pair(false);
+    double[] probs = {0.2, 0.0, 0.5, 0.3};
+    int[] counts = new int[4];
+    rs[0].nextMultinomial(1000, probs, counts);
+    int total = 0;
+    for (int count : counts)
+      total += count;
+    assertEquals("all allocated", 1000, total);
+    assertEquals("zero category", 0, counts[1]);
+    // same sequence as the equivalent conditional binomials
+    int c0 = rs[1].nextBinomial(1000, 0.2);
+    assertEquals("first count", c0, counts[0]);
+    assertEquals("second count", 0, rs[1].nextBinomial(1000 - c0, 0.0));
+    int c2 = rs[1].nextBinomial(1000 - c0, 0.5 / 0.8);
+    assertEquals("third count", c2, counts[2]);
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class SplittableRandomSeedTest
+{
+  @Test
+  public void testReplay ()
+  {
+    SplittableRandomSeed rs1 = new SplittableRandomSeed("Foo", 3, "test");
+    SplittableRandomSeed rs2 =
+        new SplittableRandomSeed("Foo", 3, "test", rs1.getValue());
+    assertEquals("same value", rs1.getValue(), rs2.getValue());
+    for (int i = 0; i < 100; i++) {
+      assertEquals("same double", rs1.nextDouble(), rs2.nextDouble(), 0.0);
+      assertEquals("same int", rs1.nextInt(17), rs2.nextInt(17));
+      assertEquals("same gaussian", rs1.nextGaussian(), rs2.nextGaussian(), 0.0);
+    }
+  }
+
+  @Test
+  public void testFreshSeedsDiffer ()
+  {
+    SplittableRandomSeed rs1 = new SplittableRandomSeed("Foo", 3, "test");
+    SplittableRandomSeed rs2 = new SplittableRandomSeed("Foo", 3, "test");
+    assertFalse("different values", rs1.getValue() == rs2.getValue());
+  }
+
+  @Test
+  public void testRanges ()
+  {
+    SplittableRandomSeed rs = new SplittableRandomSeed("Foo", 3, "test", 42l);
+    for (int i = 0; i < 10000; i++) {
+      double d = rs.nextDouble();
+      assertTrue("double in range", d >= 0.0 && d < 1.0);
+      int n = rs.nextInt(5);
+      assertTrue("int in range", n >= 0 && n < 5);
+    }
+  }
+
+  @Test
+  public void testSplit ()
+  {
+    SplittableRandomSeed parent1 =
+        new SplittableRandomSeed("Foo", 3, "test", 42l);
+    SplittableRandomSeed parent2 =
+        new SplittableRandomSeed("Foo", 3, "test", 42l);
+    // draws on the parent and creation order must not matter
+    parent2.nextLong();
+    SplittableRandomSeed c1b = parent2.split(1);
+    SplittableRandomSeed c0b = parent2.split(0);
+    SplittableRandomSeed c0a = parent1.split(0);
+    SplittableRandomSeed c1a = parent1.split(1);
+    assertEquals("child 0 value", c0a.getValue(), c0b.getValue());
+    assertEquals("child 1 value", c1a.getValue(), c1b.getValue());
+    assertFalse("children differ", c0a.getValue() == c1a.getValue());
+    assertFalse("child differs from parent",
+                c0a.getValue() == parent1.getValue());
+    assertEquals("child purpose", "test/1", c1a.getPurpose());
+    assertEquals("child requester", "Foo", c1a.getRequesterClass());
+    for (int i = 0; i < 100; i++) {
+      assertEquals("child streams", c1a.nextDouble(), c1b.nextDouble(), 0.0);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SupplyDemandMatrixTest
+{
+  private SupplyDemandMatrix matrix;
+  private Broker b1;
+  private Broker b2;
+
+  @Before
+  public void setUp ()
+  {
+    matrix = new SupplyDemandMatrix();
+    b1 = new Broker("b1");
+    b2 = new Broker("b2");
+  }
+
+  @Test
+  public void testAddAndFill ()
+  {
+    matrix.add(b1, TariffTransaction.Type.CONSUME, -10.0);
+    matrix.add(b2, TariffTransaction.Type.PRODUCE, 4.0);
+    matrix.add(b1, TariffTransaction.Type.CONSUME, -5.0);
+    assertEquals("brokers", 2, matrix.getBrokerCount());
+    assertEquals("b1 first", 0, matrix.getBrokerOrdinal(b1));
+    assertEquals("b2 second", 1, matrix.getBrokerOrdinal(b2));
+    assertEquals("unknown", -1, matrix.getBrokerOrdinal(new Broker("x")));
+    assertSame("lookup", b2, matrix.getBroker(1));
+
+    double[][] target = new double[3][SupplyDemandMatrix.TYPE_COUNT];
+    assertEquals("rows", 2, matrix.fill(target));
+    int consume = TariffTransaction.Type.CONSUME.ordinal();
+    int produce = TariffTransaction.Type.PRODUCE.ordinal();
+    assertEquals("b1 consume", -15.0, target[0][consume], 1e-9);
+    assertEquals("b1 produce", 0.0, target[0][produce], 1e-9);
+    assertEquals("b2 produce", 4.0, target[1][produce], 1e-9);
+  }
+
+  @Test
+  public void testGrowAndClear ()
+  {
+    Broker[] brokers = new Broker[20];
+    for (int i = 0; i < brokers.length; i++) {
+      brokers[i] = new Broker("b" + i);
+      matrix.add(brokers[i], TariffTransaction.Type.CONSUME, -i);
+    }
+    assertEquals("count", 20, matrix.getBrokerCount());
+    assertEquals("last", -19.0,
+                 matrix.get(19, TariffTransaction.Type.CONSUME), 1e-9);
+    matrix.clear();
+    assertEquals("ordinals kept", 20, matrix.getBrokerCount());
+    assertEquals("zeroed", 0.0,
+                 matrix.get(19, TariffTransaction.Type.CONSUME), 1e-9);
+    assertEquals("same ordinal", 7, matrix.getBrokerOrdinal(brokers[7]));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testFillTooSmall ()
+  {
+    matrix.add(b1, TariffTransaction.Type.CONSUME, -1.0);
+    matrix.add(b2, TariffTransaction.Type.CONSUME, -1.0);
+    matrix.fill(new double[1][SupplyDemandMatrix.TYPE_COUNT]);
+  }
+}
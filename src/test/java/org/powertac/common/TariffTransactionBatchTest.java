@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.Instant;
+import org.junit.Before;
+import org.junit.Test;
+import org.powertac.common.enumerations.PowerType;
+import org.powertac.common.interfaces.Accounting;
+import org.powertac.common.interfaces.BulkAccounting;
+
+public class TariffTransactionBatchTest
+{
+  private Broker broker;
+  private Tariff tariff;
+  private CustomerInfo podunk;
+  private CustomerInfo philby;
+  private TariffTransactionBatch batch;
+
+  @Before
+  public void setUp ()
+  {
+    broker = new Broker("Sally");
+    tariff = new Tariff(new TariffSpecification(broker, PowerType.CONSUMPTION));
+    podunk = new CustomerInfo("Podunk", 100);
+    philby = new CustomerInfo("Philby", 200);
+    batch = new TariffTransactionBatch(2);
+    batch.add(TariffTransaction.Type.SIGNUP, tariff, podunk, 10, 0.0, 1.5);
+    batch.add(TariffTransaction.Type.CONSUME, tariff, podunk, 10, -20.0, 2.0);
+    batch.add(TariffTransaction.Type.CONSUME, tariff, philby, 5, -8.0, 0.8);
+  }
+
+  @Test
+  public void testPostToPlainAccounting ()
+  {
+    RecordingAccounting accounting = new RecordingAccounting();
+    List<TariffTransaction> result = batch.postTo(accounting);
+    assertEquals("one call per entry", 3, accounting.singleCalls);
+    assertEquals("three results", 3, result.size());
+    checkResult(result);
+    assertEquals("results in posting order",
+                 accounting.pending, result);
+    assertEquals("batch not cleared", 3, batch.size());
+  }
+
+  @Test
+  public void testPostToBulkAccounting ()
+  {
+    RecordingBulkAccounting accounting = new RecordingBulkAccounting();
+    List<TariffTransaction> result = batch.postTo(accounting);
+    assertEquals("one bulk call", 1, accounting.bulkCalls);
+    assertEquals("no single calls", 0, accounting.singleCalls);
+    assertSame("batch handed over", batch, accounting.lastBatch);
+    assertEquals("three results", 3, result.size());
+    checkResult(result);
+  }
+
+  @Test
+  public void testPostEmptyBatch ()
+  {
+    batch.clear();
+    RecordingAccounting accounting = new RecordingAccounting();
+    assertTrue("nothing posted", batch.postTo(accounting).isEmpty());
+    assertEquals("no calls", 0, accounting.singleCalls);
+  }
+
+  private void checkResult (List<TariffTransaction> result)
+  {
+    TariffTransaction tx = result.get(0);
+    assertEquals("signup", TariffTransaction.Type.SIGNUP, tx.getTxType());
+    assertSame("podunk", podunk, tx.getCustomerInfo());
+    assertEquals("count", 10, tx.getCustomerCount());
+    assertEquals("charge", 1.5, tx.getCharge(), 1e-6);
+    tx = result.get(2);
+    assertEquals("consume", TariffTransaction.Type.CONSUME, tx.getTxType());
+    assertSame("philby", philby, tx.getCustomerInfo());
+    assertEquals("count", 5, tx.getCustomerCount());
+    assertEquals("kWh", -8.0, tx.getKWh(), 1e-6);
+    assertSame("spec", tariff.getTariffSpec(), tx.getTariffSpec());
+  }
+
+  // Accounting that records addTariffTransaction() calls
+  class RecordingAccounting implements Accounting
+  {
+    int singleCalls = 0;
+    List<TariffTransaction> pending = new ArrayList<TariffTransaction>();
+
+    @Override
+    public TariffTransaction addTariffTransaction (TariffTransaction.Type txType,
+                                                  Tariff tariff,
+                                                  CustomerInfo customer,
+                                                  int customerCount,
+                                                  double kWh, double charge)
+    {
+      singleCalls += 1;
+      return record(txType, tariff, customer, customerCount, kWh, charge);
+    }
+
+    TariffTransaction record (TariffTransaction.Type txType, Tariff tariff,
+                              CustomerInfo customer, int customerCount,
+                              double kWh, double charge)
+    {
+      TariffTransaction result =
+          new TariffTransaction(tariff.getBroker(), 0, txType,
+                                tariff.getTariffSpec(), customer,
+                                customerCount, kWh, charge);
+      pending.add(result);
+      return result;
+    }
+
+    @Override
+    public MarketTransaction addMarketTransaction (Broker broker,
+                                                   Timeslot timeslot,
+                                                   double price, double mWh)
+    {
+      return null;
+    }
+
+    @Override
+    public DistributionTransaction addDistributionTransaction (Broker broker,
+                                                               double load,
+                                                               double fee)
+    {
+      return null;
+    }
+
+    @Override
+    public BalancingTransaction addBalancingTransaction (Broker broker,
+                                                         double imbalance,
+                                                         double charge)
+    {
+      return null;
+    }
+
+    @Override
+    public double getCurrentNetLoad (Broker broker)
+    {
+      return 0.0;
+    }
+
+    @Override
+    public Map<Broker, Map<TariffTransaction.Type, Double>>
+    getCurrentSupplyDemandByBroker ()
+    {
+      return null;
+    }
+
+    @Override
+    public double getCurrentMarketPosition (Broker broker)
+    {
+      return 0.0;
+    }
+
+    @Override
+    public List<TariffTransaction> getPendingTariffTransactions ()
+    {
+      return pending;
+    }
+
+    @Override
+    public void activate (Instant time, int phase)
+    {
+    }
+  }
+
+  // BulkAccounting that records batch calls
+  class RecordingBulkAccounting extends RecordingAccounting
+  implements BulkAccounting
+  {
+    int bulkCalls = 0;
+    TariffTransactionBatch lastBatch;
+
+    @Override
+    public List<TariffTransaction>
+    addTariffTransactions (TariffTransactionBatch batch)
+    {
+      bulkCalls += 1;
+      lastBatch = batch;
+      List<TariffTransaction> result =
+          new ArrayList<TariffTransaction>(batch.size());
+      for (int i = 0; i < batch.size(); i++) {
+        result.add(record(batch.getType(i), batch.getTariff(i),
+                          batch.getCustomer(i), batch.getCustomerCount(i),
+                          batch.getKWh(i), batch.getCharge(i)));
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TariffTransactionJournalTest
+{
+  @Test
+  public void testAddAndRead ()
+  {
+    TariffTransactionJournal journal = new TariffTransactionJournal(4);
+    for (int i = 0; i < 100; i++) {
+      journal.add(i % 2 == 0 ? TariffTransaction.Type.CONSUME
+                             : TariffTransaction.Type.PRODUCE,
+                  i % 3, 100 + i, 1000 + i, i, -1.5 * i, 0.25 * i);
+    }
+    assertEquals("size", 100, journal.size());
+    assertEquals("type", TariffTransaction.Type.PRODUCE, journal.getType(37));
+    assertEquals("broker", 1l, journal.getBrokerId(37));
+    assertEquals("tariff", 137l, journal.getTariffId(37));
+    assertEquals("customer", 1037l, journal.getCustomerId(37));
+    assertEquals("count", 37, journal.getCustomerCount(37));
+    assertEquals("kWh", -55.5, journal.getKWh(37), 1e-9);
+    assertEquals("charge", 9.25, journal.getCharge(37), 1e-9);
+  }
+
+  @Test
+  public void testCursor ()
+  {
+    TariffTransactionJournal journal = new TariffTransactionJournal();
+    journal.add(TariffTransaction.Type.CONSUME, 1, 10, 100, 5, -20.0, 2.0);
+    journal.add(TariffTransaction.Type.PRODUCE, 2, 11, 101, 3, 12.0, -1.0);
+    journal.add(TariffTransaction.Type.CONSUME, 1, 10, 102, 7, -30.0, 3.0);
+    double consumed = 0.0;
+    int rows = 0;
+    TariffTransactionJournal.Cursor cursor = journal.cursor();
+    while (cursor.next()) {
+      rows += 1;
+      if (cursor.type() == TariffTransaction.Type.CONSUME
+          && cursor.brokerId() == 1l)
+        consumed += cursor.kWh();
+    }
+    assertEquals("rows", 3, rows);
+    assertEquals("consumed", -50.0, consumed, 1e-9);
+    cursor.reset();
+    assertTrue("reset", cursor.next());
+    assertEquals("first row", 100l, cursor.customerId());
+  }
+
+  @Test
+  public void testClear ()
+  {
+    TariffTransactionJournal journal = new TariffTransactionJournal();
+    journal.add(TariffTransaction.Type.SIGNUP, 1, 10, 100, 5, 0.0, -5.0);
+    journal.clear();
+    assertEquals("empty", 0, journal.size());
+    assertFalse("no rows", journal.cursor().next());
+    try {
+      journal.getKWh(0);
+      fail("should throw");
+    }
+    catch (IndexOutOfBoundsException ioobe) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.joda.time.Instant;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.powertac.common.interfaces.TimeslotPhaseProcessor;
+
+public class TimeslotPhaseSchedulerTest
+{
+  private TimeslotPhaseScheduler scheduler;
+  private List<String> trace;
+
+  @Before
+  public void setUp ()
+  {
+    scheduler = new TimeslotPhaseScheduler(4);
+    trace = Collections.synchronizedList(new ArrayList<String>());
+  }
+
+  @After
+  public void tearDown ()
+  {
+    scheduler.shutdown();
+  }
+
+  private Recorder recorder (String name, String[] reads, String[] writes)
+  {
+    Recorder result = new Recorder(name);
+    if (null != reads)
+      result.setReadsFrom(Arrays.asList(reads));
+    if (null != writes)
+      result.setWritesTo(Arrays.asList(writes));
+    return result;
+  }
+
+  @Test
+  public void testConflicts ()
+  {
+    Recorder a = recorder("a", new String[] {"x"}, new String[] {"y"});
+    Recorder b = recorder("b", new String[] {"x"}, new String[] {"z"});
+    Recorder c = recorder("c", new String[] {"y"}, new String[] {});
+    Recorder d = recorder("d", null, null);
+    assertFalse("shared read", a.conflictsWith(b));
+    assertTrue("read after write", a.conflictsWith(c));
+    assertTrue("write before read", c.conflictsWith(a));
+    assertTrue("undeclared", d.conflictsWith(b));
+    assertTrue("undeclared other", b.conflictsWith(d));
+  }
+
+  @Test
+  public void testWaves ()
+  {
+    Recorder a = recorder("a", new String[] {"x"}, new String[] {"y"});
+    Recorder b = recorder("b", new String[] {"x"}, new String[] {"z"});
+    Recorder c = recorder("c", new String[] {"y"}, new String[] {});
+    Recorder d = recorder("d", null, null);
+    scheduler.register(a, 2);
+    scheduler.register(b, 2);
+    scheduler.register(c, 2);
+    scheduler.register(d, 2);
+    scheduler.register(recorder("e", null, null), 1);
+    List<List<TimeslotPhaseProcessor>> waves = scheduler.getWaves(2);
+    assertEquals("three waves", 3, waves.size());
+    assertEquals("a and b together", 2, waves.get(0).size());
+    assertSame("c second", c, waves.get(1).get(0));
+    assertSame("d alone", d, waves.get(2).get(0));
+    assertEquals("phases", Arrays.asList(1, 2), scheduler.getPhases());
+
+    scheduler.runTimeslot(new Instant(0l));
+    assertEquals("all ran", 5, trace.size());
+    assertEquals("phase 1 first", "e:1", trace.get(0));
+    assertTrue("c after wave 1", trace.indexOf("c:2") == 3);
+    assertEquals("d last", "d:2", trace.get(4));
+  }
+
+  @Test
+  public void testSingleThread ()
+  {
+    TimeslotPhaseScheduler serial = new TimeslotPhaseScheduler(1);
+    serial.register(recorder("a", new String[] {}, new String[] {"y"}), 1);
+    serial.register(recorder("b", new String[] {}, new String[] {"z"}), 1);
+    assertEquals("no grouping", 2, serial.getWaves(1).size());
+    serial.runPhase(new Instant(0l), 1);
+    assertEquals("order", Arrays.asList("a:1", "b:1"), trace);
+  }
+
+  @Test
+  public void testFastForward ()
+  {
+    Recorder a = recorder("a", null, null);
+    Recorder b = recorder("b", null, null);
+    b.setBootstrapRelevant(false);
+    scheduler.register(a, 1);
+    scheduler.register(b, 1);
+    scheduler.setFastForward(true);
+    assertEquals("b skipped", 1, scheduler.getWaves(1).size());
+    scheduler.runTimeslot(new Instant(0l));
+    assertEquals("only a", Arrays.asList("a:1"), trace);
+    scheduler.setFastForward(false);
+    assertEquals("b back", 2, scheduler.getWaves(1).size());
+  }
+
+  class Recorder extends TimeslotPhaseProcessor
+  {
+    private String name;
+
+    Recorder (String name)
+    {
+      super();
+      this.name = name;
+    }
+
+    @Override
+    public void activate (Instant time, int phaseNumber)
+    {
+      trace.add(name + ":" + phaseNumber);
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.powertac.common.repo.TimeslotRepo;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class TransactionFactoryTest
+{
+  private TransactionFactory factory;
+  private CountingTimeslotRepo timeslotRepo;
+  private Broker broker;
+
+  @Before
+  public void setUp ()
+  {
+    factory = new TransactionFactory();
+    timeslotRepo = new CountingTimeslotRepo();
+    ReflectionTestUtils.setField(factory, "timeslotRepo", timeslotRepo);
+    broker = new Broker("Sally");
+  }
+
+  @Test
+  public void testNoScope ()
+  {
+    timeslotRepo.serial = 4;
+    assertEquals("current serial", 4,
+                 factory.makeBankTransaction(broker, 1.0).getPostedTimeslotIndex());
+    factory.makeBankTransaction(broker, 1.0);
+    assertEquals("looked up each time", 2, timeslotRepo.lookups);
+  }
+
+  @Test
+  public void testScopeCaches ()
+  {
+    timeslotRepo.serial = 4;
+    factory.openTimeslotScope();
+    for (int i = 0; i < 5; i++)
+      assertEquals("cached serial", 4,
+                   factory.makeBankTransaction(broker, 1.0).getPostedTimeslotIndex());
+    assertEquals("looked up once", 1, timeslotRepo.lookups);
+    factory.closeTimeslotScope();
+    timeslotRepo.serial = 5;
+    assertEquals("fresh after close", 5,
+                 factory.makeBankTransaction(broker, 1.0).getPostedTimeslotIndex());
+  }
+
+  @Test
+  public void testNesting ()
+  {
+    timeslotRepo.serial = 4;
+    factory.openTimeslotScope();
+    factory.openTimeslotScope();
+    factory.closeTimeslotScope();
+    assertTrue("outer still open", factory.isTimeslotScopeOpen());
+    factory.closeTimeslotScope();
+    assertFalse("closed", factory.isTimeslotScopeOpen());
+    // unmatched close is ignored
+    factory.closeTimeslotScope();
+    assertFalse("still closed", factory.isTimeslotScopeOpen());
+  }
+
+  @Test
+  public void testScopeClosedOnException ()
+  {
+    timeslotRepo.serial = 4;
+    try {
+      factory.inTimeslotScope(new Runnable() {
+        @Override
+        public void run ()
+        {
+          factory.makeBankTransaction(broker, 1.0);
+          throw new IllegalStateException("phase failed");
+        }
+      });
+      fail("exception expected");
+    }
+    catch (IllegalStateException ise) {
+      // expected
+    }
+    assertFalse("scope closed", factory.isTimeslotScopeOpen());
+    timeslotRepo.serial = 5;
+    assertEquals("no stale serial", 5,
+                 factory.makeBankTransaction(broker, 1.0).getPostedTimeslotIndex());
+  }
+
+  @Test
+  public void testStaleScopeDiscarded ()
+  {
+    timeslotRepo.serial = 4;
+    factory.openTimeslotScope();
+    // never closed; next timeslot opens a new scope
+    timeslotRepo.serial = 5;
+    factory.openTimeslotScope();
+    assertEquals("new serial", 5,
+                 factory.makeBankTransaction(broker, 1.0).getPostedTimeslotIndex());
+    factory.closeTimeslotScope();
+    assertFalse("stale scope not counted", factory.isTimeslotScopeOpen());
+  }
+
+  class CountingTimeslotRepo extends TimeslotRepo
+  {
+    int serial = 0;
+    int lookups = 0;
+
+    @Override
+    public int currentSerialNumber ()
+    {
+      lookups += 1;
+      return serial;
+    }
+  }
+}
@@ -6,13 +6,16 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.powertac.common.RandomSeed;
+import org.powertac.common.SplittableRandomSeed;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.ContextConfiguration;
@@ -70,6 +73,39 @@ public class RandomSeedRepoTests
     assertEquals("still two entries", 2, randomSeedRepo.size());    
   }
   
+  @Test
+  public void testGetSplittableRandomSeed ()
+  {
+    SplittableRandomSeed rs1 =
+        randomSeedRepo.getSplittableRandomSeed("Foo", 3, "test");
+    assertNotNull("created seed", rs1);
+    assertSame("same seed", rs1,
+               randomSeedRepo.getSplittableRandomSeed("Foo", 3, "test"));
+    assertSame("plain lookup", rs1,
+               randomSeedRepo.getRandomSeed("Foo", 3, "test"));
+    randomSeedRepo.getRandomSeed("Bar", 42, "more test");
+    assertNull("not splittable",
+               randomSeedRepo.getSplittableRandomSeed("Bar", 42, "more test"));
+    assertEquals("two entries", 2, randomSeedRepo.size());
+  }
+
+  @Test
+  public void testSeedHandle ()
+  {
+    RandomSeedRepo.SeedHandle handle =
+        randomSeedRepo.getSeedHandle("Foo", 3, "test");
+    assertEquals("one entry", 1, randomSeedRepo.size());
+    RandomSeed rs1 = handle.getSeed();
+    assertSame("same as lookup", rs1,
+               randomSeedRepo.getRandomSeed("Foo", 3, new String("test")));
+    assertSame("stable", rs1, handle.getSeed());
+    randomSeedRepo.recycle();
+    RandomSeed rs2 = handle.getSeed();
+    assertNotSame("re-resolved after recycle", rs1, rs2);
+    assertSame("registered again", rs2,
+               randomSeedRepo.getRandomSeed("Foo", 3, "test"));
+  }
+
   @Test
   public void checkLogfile ()
   {
@@ -133,4 +169,61 @@ public class RandomSeedRepoTests
     assertEquals("correct seed value 2", 2904941806851623619l, rs2.getValue());
     assertEquals("still two entries", 2, randomSeedRepo.size());
   }
+
+  @Test
+  public void testLoadRepoParallel () throws Exception
+  {
+    // big enough to be split into several ranges
+    File log = File.createTempFile("seeds", ".state");
+    PrintWriter out = new PrintWriter(new FileWriter(log));
+    String seedClass = RandomSeed.class.getName();
+    for (int i = 0; i < 2000; i++) {
+      out.println(i + ":org.powertac.common.TariffSubscription::" + i
+                  + "::subscribe::" + i);
+      out.println(i + ":" + seedClass + "::" + i + "::init::Foo::" + i
+                  + "::test::" + (i * 7 - 3000));
+      if (i % 100 == 0)
+        out.println(i + ":" + seedClass + "::" + i + "::init::Foo::bad");
+    }
+    // later entries win
+    out.println("9999:" + seedClass + "::1::init::Foo::5::test::12345");
+    out.close();
+    try {
+      randomSeedRepo.loadSeeds(log, 4);
+    }
+    finally {
+      log.delete();
+    }
+    assertEquals("correct seed 0", -3000l,
+                 randomSeedRepo.getRandomSeed("Foo", 0, "test").getValue());
+    assertEquals("correct seed 1999", 1999l * 7 - 3000,
+                 randomSeedRepo.getRandomSeed("Foo", 1999, "test").getValue());
+    assertEquals("overridden seed", 12345l,
+                 randomSeedRepo.getRandomSeed("Foo", 5, "test").getValue());
+  }
+
+  @Test
+  public void testSeedSnapshot () throws Exception
+  {
+    randomSeedRepo.loadSeeds(new File("src/test/resources/randomSeedTest.state"));
+    RandomSeed rs3 = randomSeedRepo.getRandomSeed("Baz", -36, "third test");
+    File snap = File.createTempFile("seeds", ".snap");
+    try {
+      assertTrue("saved", randomSeedRepo.saveSeedSnapshot(snap));
+      randomSeedRepo.recycle();
+      assertTrue("loaded", randomSeedRepo.loadSeedSnapshot(snap));
+    }
+    finally {
+      snap.delete();
+    }
+    assertEquals("pre-loaded seed 1", -7938709514410200953l,
+                 randomSeedRepo.getRandomSeed("Foo", 3, "test").getValue());
+    assertEquals("pre-loaded seed 2", 2904941806851623619l,
+                 randomSeedRepo.getRandomSeed("Bar", 42, "more test").getValue());
+    assertEquals("created seed", rs3.getValue(),
+                 randomSeedRepo.getRandomSeed("Baz", -36, "third test").getValue());
+    assertEquals("three entries", 3, randomSeedRepo.size());
+    RandomSeed fresh = randomSeedRepo.getRandomSeed("Foo", 4, "test");
+    assertNotNull("new seed not in snapshot", fresh);
+  }
 }
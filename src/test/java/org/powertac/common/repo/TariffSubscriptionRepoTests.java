@@ -3,6 +3,7 @@ package org.powertac.common.repo;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
+import java.util.Arrays;
 import java.util.List;
 
 import org.joda.time.DateTime;
@@ -18,6 +19,8 @@ import org.powertac.common.Rate;
 import org.powertac.common.Tariff;
 import org.powertac.common.TariffSpecification;
 import org.powertac.common.TariffSubscription;
+import org.powertac.common.TariffTransaction;
+import org.powertac.common.TariffTransactionBatch;
 import org.powertac.common.TimeService;
 import org.powertac.common.enumerations.PowerType;
 //import org.powertac.common.interfaces.TariffMarket;
@@ -173,6 +176,29 @@ public class TariffSubscriptionRepoTests
     assertEquals("t2 killed", sub2, subs.get(0));
   }
 
+  @Test
+  public void testSubscribeAll ()
+  {
+    Tariff t1 = new Tariff(ts1);
+    Tariff t2 = new Tariff(ts2);
+    t1.init();
+    t2.init();
+    TariffTransactionBatch batch = new TariffTransactionBatch();
+    List<TariffSubscription> subs =
+        repo.subscribeAll(Arrays.asList(c1, c2), Arrays.asList(t1, t2), batch);
+    assertEquals("two subs", 2, subs.size());
+    assertEquals("c1 on t1", subs.get(0),
+                 repo.findSubscriptionForTariffAndCustomer(t1, c1));
+    assertEquals("c2 on t2", subs.get(1),
+                 repo.findSubscriptionForTariffAndCustomer(t2, c2));
+    assertEquals("c1 population", 23, subs.get(0).getCustomersCommitted());
+    assertEquals("c2 population", 230, subs.get(1).getCustomersCommitted());
+    assertEquals("two signups", 2, batch.size());
+    assertEquals("signup", TariffTransaction.Type.SIGNUP, batch.getType(0));
+    assertEquals("c1 count", 23, batch.getCustomerCount(0));
+    assertEquals("c2 tariff", t2, batch.getTariff(1));
+  }
+
   @Test
   public void testRecycle ()
   {
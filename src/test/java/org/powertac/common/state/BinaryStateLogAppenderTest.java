@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.common.state;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BinaryStateLogAppenderTest
+{
+  private File logFile;
+  private BinaryStateLogAppender appender;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    logFile = File.createTempFile("state", ".bstate");
+    appender = new BinaryStateLogAppender();
+    appender.setFile(logFile.getPath());
+    appender.setBufferSize(4);
+    appender.activateOptions();
+  }
+
+  @After
+  public void tearDown ()
+  {
+    appender.close();
+    logFile.delete();
+  }
+
+  private void log (String message)
+  {
+    appender.doAppend(new LoggingEvent(Logger.class.getName(),
+                                       Logger.getLogger("State"),
+                                       Level.INFO, message, null));
+  }
+
+  private String[] convert () throws Exception
+  {
+    appender.close();
+    StringWriter out = new StringWriter();
+    FileInputStream in = new FileInputStream(logFile);
+    try {
+      new BinaryStateLogConverter().convert(in, out);
+    }
+    finally {
+      in.close();
+    }
+    return out.toString().split("\n");
+  }
+
+  @Test
+  public void testRoundTrip () throws Exception
+  {
+    log("org.powertac.common.RandomSeed::1::init::Foo::3::test::-79387");
+    log("org.powertac.common.TariffSubscription::7::subscribe::12");
+    log("org.powertac.common.RandomSeed::2::init::Bar::42::more test::29");
+    log("no separator here");
+    String[] lines = convert();
+    assertEquals("four lines", 4, lines.length);
+    assertTrue("seed 1",
+               lines[0].matches("\\d+:org.powertac.common.RandomSeed::1::init::Foo::3::test::-79387"));
+    assertTrue("subscription",
+               lines[1].matches("\\d+:org.powertac.common.TariffSubscription::7::subscribe::12"));
+    assertTrue("seed 2",
+               lines[2].matches("\\d+:org.powertac.common.RandomSeed::2::init::Bar::42::more test::29"));
+    assertTrue("raw", lines[3].matches("\\d+:no separator here"));
+  }
+
+  // Converted output of a real state log splits the same way on the time
+  @Test
+  public void testStateLogLayout () throws Exception
+  {
+    List<String> messages = new ArrayList<String>();
+    BufferedReader reader =
+        new BufferedReader(new FileReader("src/test/resources/randomSeedTest.state"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int colon = line.indexOf(':');
+        assertTrue("time prefix in " + line, colon > 0);
+        messages.add(line.substring(colon + 1));
+      }
+    }
+    finally {
+      reader.close();
+    }
+    assertEquals("five entries", 5, messages.size());
+    for (String message : messages)
+      log(message);
+    String[] lines = convert();
+    assertEquals("all converted", messages.size(), lines.length);
+    for (int i = 0; i < lines.length; i++) {
+      int colon = lines[i].indexOf(':');
+      assertTrue("time in " + lines[i],
+                 lines[i].substring(0, colon).matches("\\d+"));
+      assertEquals("message after time", messages.get(i),
+                   lines[i].substring(colon + 1));
+    }
+  }
+
+  @Test
+  public void testRingOverflow () throws Exception
+  {
+    // ring holds only four entries; producer must wait for the writer
+    for (int i = 0; i < 1000; i++) {
+      log("org.powertac.common.RegulationCapacity::" + i + "::new::0.0::0.0");
+    }
+    String[] lines = convert();
+    assertEquals("nothing dropped", 1000, lines.length);
+    assertTrue("last one",
+               lines[999].endsWith("RegulationCapacity::999::new::0.0::0.0"));
+  }
+
+  @Test
+  public void testConcurrentProducers () throws Exception
+  {
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final int tn = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run ()
+        {
+          for (int i = 0; i < 250; i++)
+            log("org.powertac.common.RandomSeed::" + tn + "::next::" + i);
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+    String[] lines = convert();
+    assertEquals("all entries", 1000, lines.length);
+  }
+}
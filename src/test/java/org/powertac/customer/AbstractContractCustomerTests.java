@@ -0,0 +1,548 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Before;
+import org.junit.Test;
+import org.powertac.common.Broker;
+import org.powertac.common.Contract;
+import org.powertac.common.CustomerInfo;
+import org.powertac.common.enumerations.PowerType;
+import org.powertac.common.interfaces.BrokerProxy;
+import org.powertac.common.interfaces.CustomerServiceAccessor;
+import org.powertac.common.interfaces.ServerConfiguration;
+import org.powertac.common.msg.ContractAnnounce;
+import org.powertac.common.msg.ContractEnd;
+import org.powertac.common.repo.ContractRepo;
+import org.powertac.common.repo.CustomerRepo;
+import org.powertac.common.repo.RandomSeedRepo;
+import org.powertac.common.repo.TariffRepo;
+import org.powertac.common.repo.TariffSubscriptionRepo;
+import org.powertac.common.repo.TimeSeriesRepo;
+import org.powertac.common.repo.TimeslotRepo;
+import org.powertac.common.repo.WeatherReportRepo;
+import org.powertac.common.timeseries.LoadForecast;
+import org.powertac.common.timeseries.LoadTimeSeries;
+import org.powertac.common.timeseries.TimeSeriesGenerator;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Tests for the historic load, forecast, contract and customer id
+ * bookkeeping in AbstractContractCustomer. The generator and forecast are
+ * replaced by counting fakes.
+ */
+public class AbstractContractCustomerTests
+{
+  private DateTime now;
+  private CountingGenerator generator;
+  private CountingForecast forecast;
+  private TestContractCustomer customer;
+
+  @Before
+  public void setUp ()
+  {
+    now = new DateTime(2015, 3, 1, 0, 0, 0, 0, DateTimeZone.UTC);
+    generator = new CountingGenerator();
+    customer = new TestContractCustomer(now);
+    customer.generator = generator;
+    forecast = new CountingForecast();
+    customer.forecast = forecast;
+  }
+
+  @Test
+  public void testHistoricLoadGeneratedOnce ()
+  {
+    assertEquals("not generated by constructor", 0, generator.calls);
+    LoadTimeSeries first = customer.getHistoricLoad();
+    assertNotNull("generated", first);
+    assertSame("cached", first, customer.getHistoricLoad());
+    assertEquals("one generation", 1, generator.calls);
+    assertEquals("one year", now.minusYears(1), generator.lastStart);
+    assertEquals("ending now", now, generator.lastEnd);
+  }
+
+  @Test
+  public void testHistoricLoadWindow ()
+  {
+    LoadTimeSeries first = customer.getHistoricLoad();
+    customer.setHistoricLoadEnd(now);
+    assertSame("same window kept", first, customer.getHistoricLoad());
+    DateTime later = now.plusDays(1);
+    customer.setHistoricLoadEnd(later);
+    assertNotSame("new window regenerated", first, customer.getHistoricLoad());
+    assertEquals("two generations", 2, generator.calls);
+    assertEquals("ending later", later, generator.lastEnd);
+  }
+
+  @Test
+  public void testNoHistoricLoadWithoutWindow ()
+  {
+    TestContractCustomer unset = new TestContractCustomer();
+    unset.generator = generator;
+    assertNull("nothing to generate", unset.getHistoricLoad());
+    assertEquals("no generation", 0, generator.calls);
+  }
+
+  @Test
+  public void testPrecomputeGeneratesHistory ()
+  {
+    customer.precompute();
+    assertEquals("generated by precompute", 1, generator.calls);
+    LoadTimeSeries history = customer.getHistoricLoad();
+    assertEquals("not generated again", 1, generator.calls);
+    customer.getLoadForecast(now, 7 * 24 * 3600 * 1000l);
+    assertSame("forecast uses it", history, forecast.lastHistory);
+  }
+
+  @Test
+  public void testPrecomputeRegistersPendingHistory ()
+  {
+    RecordingTimeSeriesRepo repo = new RecordingTimeSeriesRepo();
+    customer.setServiceAccessor(new TimeSeriesAccessor(repo));
+    List<Long> pending = new ArrayList<Long>();
+    pending.add(3l);
+    pending.add(5l);
+    ReflectionTestUtils.setField(customer, "pendingHistoricLoadIds", pending);
+    customer.precompute();
+    assertEquals("both registered", 2, repo.ids.size());
+    assertEquals("first id", 3l, repo.ids.get(0).longValue());
+    assertEquals("second id", 5l, repo.ids.get(1).longValue());
+    for (LoadTimeSeries series : repo.series)
+      assertSame("the generated history", customer.getHistoricLoad(), series);
+    assertEquals("one generation", 1, generator.calls);
+    customer.precompute();
+    assertEquals("registered once", 2, repo.ids.size());
+  }
+
+  @Test
+  public void testForecastCached ()
+  {
+    long week = 7 * 24 * 3600 * 1000l;
+    LoadTimeSeries first = customer.getLoadForecast(now, week);
+    assertEquals("computed", 1, forecast.calls);
+    assertEquals("from start", now, forecast.lastStart);
+    assertEquals("to end", now.plus(week), forecast.lastEnd);
+    assertSame("history passed", customer.getHistoricLoad(),
+               forecast.lastHistory);
+    assertSame("same start and duration", first,
+               customer.getLoadForecast(now, week));
+    assertEquals("cache hit", 1, forecast.calls);
+
+    LoadTimeSeries longer = customer.getLoadForecast(now, 2 * week);
+    assertNotSame("other duration", first, longer);
+    assertEquals("computed for other duration", 2, forecast.calls);
+    assertSame("both durations kept", first,
+               customer.getLoadForecast(now, week));
+    assertSame("both durations kept", longer,
+               customer.getLoadForecast(now, 2 * week));
+    assertEquals("still two", 2, forecast.calls);
+  }
+
+  @Test
+  public void testForecastClearedOnNewTimeslot ()
+  {
+    long week = 7 * 24 * 3600 * 1000l;
+    LoadTimeSeries first = customer.getLoadForecast(now, week);
+    DateTime next = now.plusHours(1);
+    LoadTimeSeries second = customer.getLoadForecast(next, week);
+    assertNotSame("recomputed for new start", first, second);
+    assertEquals("two computations", 2, forecast.calls);
+    assertEquals("from new start", next, forecast.lastStart);
+    assertNotSame("old start not kept", first,
+                  customer.getLoadForecast(now, week));
+    assertEquals("recomputed for old start", 3, forecast.calls);
+  }
+
+  @Test
+  public void testForecastClearedOnNewHistory ()
+  {
+    long week = 7 * 24 * 3600 * 1000l;
+    LoadTimeSeries first = customer.getLoadForecast(now, week);
+    LoadTimeSeries oldHistory = customer.getHistoricLoad();
+    customer.setHistoricLoadEnd(now);
+    assertSame("same window keeps cache", first,
+               customer.getLoadForecast(now, week));
+    customer.setHistoricLoadEnd(now.plusDays(1));
+    LoadTimeSeries second = customer.getLoadForecast(now, week);
+    assertNotSame("recomputed for new history", first, second);
+    assertEquals("two computations", 2, forecast.calls);
+    assertNotSame("from new history", oldHistory, forecast.lastHistory);
+  }
+
+  @Test
+  public void testForecastSummary ()
+  {
+    // March 1 to 8: 168 hours at 30 plus hour of day
+    long week = 7 * 24 * 3600 * 1000l;
+    forecast.result = new FixedSeries();
+    LoadForecastSummary summary = customer.getLoadForecastSummary(now, week);
+    assertEquals("total", 168 * 30.0 + 7 * 276.0, summary.getTotalLoad(),
+                 1e-9);
+    assertEquals("March total", summary.getTotalLoad(),
+                 summary.getMonthTotal(3), 1e-9);
+    assertEquals("March peak", 53.0, summary.getMaxLoad(3), 1e-9);
+    for (int month = 1; month <= 12; month++) {
+      if (month != 3) {
+        assertEquals("no peak in month " + month, 0.0,
+                     summary.getMaxLoad(month), 1e-9);
+        assertEquals("no total in month " + month, 0.0,
+                     summary.getMonthTotal(month), 1e-9);
+      }
+    }
+    assertSame("cached", summary, customer.getLoadForecastSummary(now, week));
+    assertEquals("one forecast", 1, forecast.calls);
+    assertNotSame("new summary for new start", summary,
+                  customer.getLoadForecastSummary(now.plusHours(1), week));
+  }
+
+  @Test
+  public void testForecastSummaryAcrossMonths ()
+  {
+    // February 27 to March 6: two days in February, five in March
+    long week = 7 * 24 * 3600 * 1000l;
+    forecast.result = new FixedSeries();
+    LoadForecastSummary summary =
+        customer.getLoadForecastSummary(now.minusDays(2), week);
+    assertEquals("February total", 48 * 20.0 + 2 * 276.0,
+                 summary.getMonthTotal(2), 1e-9);
+    assertEquals("March total", 120 * 30.0 + 5 * 276.0,
+                 summary.getMonthTotal(3), 1e-9);
+    assertEquals("total", summary.getMonthTotal(2) + summary.getMonthTotal(3),
+                 summary.getTotalLoad(), 1e-9);
+    assertEquals("February peak", 43.0, summary.getMaxLoad(2), 1e-9);
+    assertEquals("March peak", 53.0, summary.getMaxLoad(3), 1e-9);
+  }
+
+  @Test
+  public void testNoActiveContract ()
+  {
+    assertFalse("no contracts", customer.activeContract(now));
+    customer.activeContracts.put(1l, null);
+    assertFalse("null entry ignored", customer.activeContract(now));
+  }
+
+  @Test
+  public void testContractBoundaries ()
+  {
+    addContract(1l, 10, 20);
+    assertFalse("before start", customer.activeContract(hour(9)));
+    assertTrue("at start", customer.activeContract(hour(10)));
+    assertTrue("inside", customer.activeContract(hour(19)));
+    assertFalse("at end", customer.activeContract(hour(20)));
+    assertFalse("after end", customer.activeContract(hour(21)));
+  }
+
+  @Test
+  public void testOverlappingContracts ()
+  {
+    addContract(1l, 10, 20);
+    addContract(2l, 15, 30);
+    addContract(3l, 40, 50);
+    assertTrue("first only", customer.activeContract(hour(12)));
+    assertTrue("both", customer.activeContract(hour(17)));
+    assertTrue("second only", customer.activeContract(hour(25)));
+    assertFalse("end of second", customer.activeContract(hour(30)));
+    assertFalse("gap", customer.activeContract(hour(35)));
+    assertTrue("start of third", customer.activeContract(hour(40)));
+  }
+
+  @Test
+  public void testNestedContracts ()
+  {
+    addContract(1l, 10, 50);
+    addContract(2l, 20, 30);
+    assertTrue("inside inner", customer.activeContract(hour(25)));
+    assertTrue("after inner, inside outer", customer.activeContract(hour(40)));
+    assertFalse("end of outer", customer.activeContract(hour(50)));
+    customer.activeContracts.put(3l, null);
+    assertTrue("null entry ignored", customer.activeContract(hour(40)));
+  }
+
+  @Test
+  public void testContractIndexUpdated ()
+  {
+    addContract(1l, 10, 20);
+    assertFalse("not yet", customer.activeContract(hour(25)));
+    addContract(2l, 20, 30);
+    assertTrue("added contract seen", customer.activeContract(hour(25)));
+    customer.activeContracts.remove(2l);
+    assertFalse("removed contract gone", customer.activeContract(hour(25)));
+    // same size, so the index must be invalidated explicitly
+    addContract(1l, 20, 30);
+    customer.invalidateContractIndex();
+    assertTrue("replaced contract seen", customer.activeContract(hour(25)));
+    assertFalse("old contract gone", customer.activeContract(hour(15)));
+  }
+
+  @Test
+  public void testHandlesAddedCustomers ()
+  {
+    CustomerInfo first = consumer("first");
+    CustomerInfo second = consumer("second");
+    CustomerInfo stranger = consumer("stranger");
+    assertFalse("nothing added", customer.handlesCustomer(first.getId()));
+    customer.addCustomerInfo(second);
+    customer.addCustomerInfo(first);
+    assertTrue("first added", customer.handlesCustomer(first.getId()));
+    assertTrue("second added", customer.handlesCustomer(second.getId()));
+    assertFalse("stranger", customer.handlesCustomer(stranger.getId()));
+  }
+
+  @Test
+  public void testRefreshCustomerIds ()
+  {
+    CustomerInfo own = consumer("own");
+    final CustomerInfo registered = consumer("registered");
+    CustomerInfo stranger = consumer("stranger");
+    CustomerRepo customerRepo = new CustomerRepo() {
+      @Override
+      public List<CustomerInfo> findByName (String name)
+      {
+        List<CustomerInfo> result = new ArrayList<CustomerInfo>();
+        if ("contract".equals(name))
+          result.add(registered);
+        return result;
+      }
+    };
+    CustomerModelService service = new CustomerModelService();
+    ReflectionTestUtils.setField(service, "customerRepo", customerRepo);
+    customer.setName("contract");
+    customer.setServiceAccessor(service);
+    customer.addCustomerInfo(own);
+    assertFalse("not yet refreshed",
+                customer.handlesCustomer(registered.getId()));
+    customer.refreshCustomerIds();
+    assertTrue("own customer kept", customer.handlesCustomer(own.getId()));
+    assertTrue("registered under model name",
+               customer.handlesCustomer(registered.getId()));
+    assertFalse("stranger", customer.handlesCustomer(stranger.getId()));
+  }
+
+  @Test
+  public void testForeignContractEndIgnored ()
+  {
+    CustomerInfo own = consumer("own");
+    CustomerInfo stranger = consumer("stranger");
+    customer.addCustomerInfo(own);
+    Broker broker = new Broker("Jenny");
+    customer.handleMessage(new ContractEnd(broker, new ContractAnnounce(
+        stranger.getId(), now.getMillis())));
+    assertTrue("foreign message ignored", customer.negotiationRounds.isEmpty());
+    customer.handleMessage(new ContractEnd(broker, new ContractAnnounce(
+        own.getId(), now.getMillis())));
+    assertEquals("own message handled", 0,
+                 customer.negotiationRounds.get(broker.getId()).intValue());
+  }
+
+  private CustomerInfo consumer (String name)
+  {
+    return new CustomerInfo(name, 10).withPowerType(PowerType.CONSUMPTION);
+  }
+
+  private DateTime hour (int n)
+  {
+    return now.plusHours(n);
+  }
+
+  private void addContract (long id, int startHour, int endHour)
+  {
+    customer.activeContracts.put(id, new FixedContract(hour(startHour),
+                                                       hour(endHour)));
+  }
+
+  class TestContractCustomer extends AbstractContractCustomer
+  {
+    TestContractCustomer ()
+    {
+      super();
+    }
+
+    TestContractCustomer (DateTime now)
+    {
+      super(now);
+    }
+
+    @Override
+    public void step ()
+    {
+    }
+  }
+
+  class RecordingTimeSeriesRepo extends TimeSeriesRepo
+  {
+    List<Long> ids = new ArrayList<Long>();
+    List<LoadTimeSeries> series = new ArrayList<LoadTimeSeries>();
+
+    @Override
+    public void addHistoricLoadTimeSeries (long id, LoadTimeSeries load)
+    {
+      ids.add(id);
+      series.add(load);
+    }
+  }
+
+  // supplies only the TimeSeriesRepo
+  class TimeSeriesAccessor implements CustomerServiceAccessor
+  {
+    private TimeSeriesRepo repo;
+
+    TimeSeriesAccessor (TimeSeriesRepo repo)
+    {
+      super();
+      this.repo = repo;
+    }
+
+    @Override
+    public TimeSeriesRepo getTimeSeriesRepo ()
+    {
+      return repo;
+    }
+
+    @Override
+    public CustomerRepo getCustomerRepo ()
+    {
+      return null;
+    }
+
+    @Override
+    public ServerConfiguration getServerConfiguration ()
+    {
+      return null;
+    }
+
+    @Override
+    public RandomSeedRepo getRandomSeedRepo ()
+    {
+      return null;
+    }
+
+    @Override
+    public TariffRepo getTariffRepo ()
+    {
+      return null;
+    }
+
+    @Override
+    public TariffSubscriptionRepo getTariffSubscriptionRepo ()
+    {
+      return null;
+    }
+
+    @Override
+    public ContractRepo getContractRepo ()
+    {
+      return null;
+    }
+
+    @Override
+    public TimeslotRepo getTimeslotRepo ()
+    {
+      return null;
+    }
+
+    @Override
+    public WeatherReportRepo getWeatherReportRepo ()
+    {
+      return null;
+    }
+
+    @Override
+    public BrokerProxy getBrokerProxyService ()
+    {
+      return null;
+    }
+  }
+
+  class CountingGenerator extends TimeSeriesGenerator
+  {
+    int calls = 0;
+    DateTime lastStart;
+    DateTime lastEnd;
+
+    @Override
+    public LoadTimeSeries generateLoadTimeSeries (DateTime start,
+                                                  DateTime end, int type)
+    {
+      calls += 1;
+      lastStart = start;
+      lastEnd = end;
+      return new LoadTimeSeries();
+    }
+  }
+
+  class CountingForecast implements LoadForecast
+  {
+    int calls = 0;
+    LoadTimeSeries result;
+    LoadTimeSeries lastHistory;
+    DateTime lastStart;
+    DateTime lastEnd;
+
+    @Override
+    public LoadTimeSeries calculateLoadForecast (LoadTimeSeries history,
+                                                 DateTime start, DateTime end)
+    {
+      calls += 1;
+      lastHistory = history;
+      lastStart = start;
+      lastEnd = end;
+      return (null == result) ? new LoadTimeSeries() : result;
+    }
+  }
+
+  class FixedContract extends Contract
+  {
+    private DateTime start;
+    private DateTime end;
+
+    FixedContract (DateTime start, DateTime end)
+    {
+      super();
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public DateTime getStartDate ()
+    {
+      return start;
+    }
+
+    @Override
+    public DateTime getEndDate ()
+    {
+      return end;
+    }
+  }
+
+  // Known total and monthly peaks
+  // Ten times the month plus the hour of day
+  class FixedSeries extends LoadTimeSeries
+  {
+    @Override
+    public double getLoad (DateTime time)
+    {
+      return 10.0 * time.getMonthOfYear() + time.getHourOfDay();
+    }
+  }
+}
@@ -16,10 +16,13 @@ package org.powertac.customer;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.Resource;
 
@@ -29,6 +32,7 @@ import org.joda.time.Instant;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.powertac.common.Broker;
 import org.powertac.common.CustomerInfo;
 import org.powertac.common.Rate;
@@ -38,6 +42,7 @@ import org.powertac.common.TariffSubscription;
 import org.powertac.common.TimeService;
 import org.powertac.common.enumerations.PowerType;
 import org.powertac.common.interfaces.BrokerProxy;
+import org.powertac.common.interfaces.BulkTariffMarket;
 import org.powertac.common.interfaces.CustomerServiceAccessor;
 import org.powertac.common.interfaces.ServerConfiguration;
 import org.powertac.common.interfaces.TariffMarket;
@@ -223,6 +228,121 @@ public class AbstractCustomerTests
 //                         .getTariff());
   }
 
+  @Test
+  public void testSubscriptionSnapshot ()
+  {
+    info = new CustomerInfo("Podunk", 100).withPowerType(PowerType.CONSUMPTION);
+    info2 =
+      new CustomerInfo("Philby", 200)
+              .withPowerType(PowerType.INTERRUPTIBLE_CONSUMPTION);
+
+    customer = new DummyCustomer(info.getName());
+    customer.addCustomerInfo(info);
+    customer.addCustomerInfo(info2);
+    customer.setServiceAccessor(serviceAccessor);
+
+    TariffSubscription defaultSub =
+      tariffSubscriptionRepo.getSubscription(info, defaultTariff);
+    defaultSub.subscribe(info.getPopulation());
+    List<TariffSubscription> snapshot = customer.getSubscriptionSnapshot();
+    assertEquals("one active subscription", 1, snapshot.size());
+    assertSame("cached", snapshot, customer.getSubscriptionSnapshot());
+    assertEquals("one CONSUMPTION subscription", 1,
+                 customer.getSubscriptionSnapshot(PowerType.CONSUMPTION).size());
+    assertEquals("no INTERRUPTIBLE_CONSUMPTION subscription", 0,
+                 customer.getSubscriptionSnapshot(PowerType.INTERRUPTIBLE_CONSUMPTION)
+                         .size());
+
+    // a change made outside the model is seen once the model invalidates
+    TariffSubscription controllableSub =
+      tariffSubscriptionRepo.getSubscription(info2, defaultTariffControllable);
+    controllableSub.subscribe(info2.getPopulation());
+    assertSame("still cached", snapshot, customer.getSubscriptionSnapshot());
+    customer.invalidateSubscriptionSnapshot();
+    snapshot = customer.getSubscriptionSnapshot();
+    assertEquals("two active subscriptions", 2, snapshot.size());
+    assertEquals("customer order", defaultSub, snapshot.get(0));
+    assertEquals("controllable second", controllableSub, snapshot.get(1));
+    assertEquals("one INTERRUPTIBLE_CONSUMPTION subscription", 1,
+                 customer.getSubscriptionSnapshot(PowerType.INTERRUPTIBLE_CONSUMPTION)
+                         .size());
+  }
+
+  @Test
+  public void testMigrateSubscriptions ()
+  {
+    info = new CustomerInfo("Podunk", 100).withPowerType(PowerType.CONSUMPTION);
+    customer = new DummyCustomer(info.getName());
+    customer.addCustomerInfo(info);
+    customer.setServiceAccessor(serviceAccessor);
+    customer.setTariffMarket(mockTariffMarket);
+
+    TariffSpecification otherSpec =
+      new TariffSpecification(broker1, PowerType.CONSUMPTION)
+              .withExpiration(exp).withMinDuration(TimeService.WEEK * 8)
+              .addRate(new Rate().withValue(-0.2));
+    Tariff other = new Tariff(otherSpec);
+    other.init();
+    Tariff third = new Tariff(new TariffSpecification(broker1,
+                                                      PowerType.CONSUMPTION)
+            .addRate(new Rate().withValue(-0.19)));
+    third.init();
+    TariffSubscription defaultSub =
+      tariffSubscriptionRepo.getSubscription(info, defaultTariff);
+    defaultSub.subscribe(info.getPopulation());
+
+    // 30 from default to other, 10 back, 5 from default to third
+    HashMap<Tariff, Map<Tariff, Integer>> plan =
+      new HashMap<Tariff, Map<Tariff, Integer>>();
+    HashMap<Tariff, Integer> fromDefault = new HashMap<Tariff, Integer>();
+    fromDefault.put(other, 30);
+    fromDefault.put(third, 5);
+    plan.put(defaultTariff, fromDefault);
+    HashMap<Tariff, Integer> fromOther = new HashMap<Tariff, Integer>();
+    fromOther.put(defaultTariff, 10);
+    plan.put(other, fromOther);
+
+    Map<Tariff, Integer> net = customer.migrateSubscriptions(info, plan);
+    assertEquals("three tariffs change", 3, net.size());
+    assertEquals("default loses 25", -25, net.get(defaultTariff).intValue());
+    assertEquals("other gains 20", 20, net.get(other).intValue());
+    assertEquals("third gains 5", 5, net.get(third).intValue());
+    // withdrawals go through the subscription, then one call per gain
+    assertEquals("withdrawal pending", 25,
+                 defaultSub.getPendingUnsubscribeCount());
+    InOrder inOrder = inOrder(mockTariffMarket);
+    inOrder.verify(mockTariffMarket).subscribeToTariff(defaultTariff, info, -25);
+    inOrder.verify(mockTariffMarket).subscribeToTariff(other, info, 20);
+    inOrder.verify(mockTariffMarket).subscribeToTariff(third, info, 5);
+
+    // a BulkTariffMarket gets the gains in one call
+    BulkTariffMarket bulkMarket = mock(BulkTariffMarket.class);
+    customer.setTariffMarket(bulkMarket);
+    customer.migrateSubscriptions(info, plan);
+    assertEquals("second withdrawal pending", 50,
+                 defaultSub.getPendingUnsubscribeCount());
+    verify(mockTariffMarket, times(2))
+        .subscribeToTariff(defaultTariff, info, -25);
+    HashMap<Tariff, Integer> gains = new HashMap<Tariff, Integer>();
+    gains.put(other, 20);
+    gains.put(third, 5);
+    verify(bulkMarket).subscribeToTariffs(info, gains);
+    verify(bulkMarket, never()).subscribeToTariff(any(Tariff.class),
+                                                  any(CustomerInfo.class),
+                                                  anyInt());
+
+    // opposing moves cancel completely
+    plan.clear();
+    fromDefault.clear();
+    fromDefault.put(other, 7);
+    plan.put(defaultTariff, fromDefault);
+    fromOther.clear();
+    fromOther.put(defaultTariff, 7);
+    plan.put(other, fromOther);
+    assertEquals("nothing to do", 0,
+                 customer.migrateSubscriptions(info, plan).size());
+  }
+
   @Test
   public void changeSubscription ()
   {
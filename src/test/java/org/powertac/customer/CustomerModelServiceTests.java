@@ -0,0 +1,575 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.Instant;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.powertac.common.BalancingTransaction;
+import org.powertac.common.Broker;
+import org.powertac.common.CustomerInfo;
+import org.powertac.common.DistributionTransaction;
+import org.powertac.common.MarketTransaction;
+import org.powertac.common.Tariff;
+import org.powertac.common.TariffSpecification;
+import org.powertac.common.TariffSubscription;
+import org.powertac.common.TariffTransaction;
+import org.powertac.common.Timeslot;
+import org.powertac.common.enumerations.PowerType;
+import org.powertac.common.interfaces.Accounting;
+import org.powertac.common.interfaces.NewTariffListener;
+import org.powertac.common.interfaces.TariffMarket;
+import org.powertac.common.repo.CustomerRepo;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Tests for CustomerModelService that do not need a Spring context. The
+ * accounting service and tariff market are replaced by fakes that record
+ * the calls they receive.
+ */
+public class CustomerModelServiceTests
+{
+  private CustomerModelService service;
+  private List<String> calls;
+  private RecordingAccounting accounting;
+  private RecordingTariffMarket tariffMarket;
+  private List<AbstractCustomer> models;
+  private Tariff tariff;
+
+  @Before
+  public void setUp ()
+  {
+    calls = new ArrayList<String>();
+    accounting = new RecordingAccounting();
+    tariffMarket = new RecordingTariffMarket();
+    service = new CustomerModelService();
+    ReflectionTestUtils.setField(service, "accountingService", accounting);
+    ReflectionTestUtils.setField(service, "tariffMarketService", tariffMarket);
+    ReflectionTestUtils.setField(service, "customerRepo", new CustomerRepo());
+    Broker broker = new Broker("Jenny");
+    tariff = new Tariff(new TariffSpecification(broker, PowerType.CONSUMPTION)) {
+      @Override
+      public double getRegulationCharge (double kwh, double cumulativeUsage,
+                                         boolean recordUsage)
+      {
+        return 0.1 * kwh;
+      }
+    };
+    models = new ArrayList<AbstractCustomer>();
+    for (int i = 0; i < 8; i++)
+      models.add(new SteppingCustomer("c" + i, i));
+    ReflectionTestUtils.setField(service, "models", models);
+  }
+
+  @After
+  public void tearDown ()
+  {
+    // stops the worker pool
+    service.setStepThreads(1);
+  }
+
+  @Test
+  public void testParallelMatchesSequential ()
+  {
+    service.setStepThreads(1);
+    service.activate(new Instant(0l), 2);
+    List<String> sequential = new ArrayList<String>(calls);
+    assertEquals("two calls per model", 16, sequential.size());
+    calls.clear();
+    service.setStepThreads(4);
+    service.activate(new Instant(0l), 2);
+    assertEquals("same calls in same order", sequential, calls);
+  }
+
+  @Test
+  public void testParallelFailureMatchesSequential ()
+  {
+    ((SteppingCustomer) models.get(3)).fail = true;
+    service.setStepThreads(1);
+    String sequentialMessage = stepAndCatch();
+    List<String> sequential = new ArrayList<String>(calls);
+    assertEquals("stopped after failing model", 7, sequential.size());
+    calls.clear();
+    service.setStepThreads(4);
+    String parallelMessage = stepAndCatch();
+    assertEquals("same exception", sequentialMessage, parallelMessage);
+    assertEquals("same calls before failure", sequential, calls);
+    // recorders of later models must not leak into the next timeslot
+    ((SteppingCustomer) models.get(3)).fail = false;
+    calls.clear();
+    service.activate(new Instant(0l), 2);
+    assertEquals("clean next step", 16, calls.size());
+  }
+
+  @Test
+  public void testPublishEvaluatesEveryModel ()
+  {
+    Broker broker = new Broker("Sam");
+    Tariff revoked =
+        new Tariff(new TariffSpecification(broker, PowerType.CONSUMPTION)) {
+      @Override
+      public boolean isRevoked ()
+      {
+        return true;
+      }
+    };
+    Tariff production =
+        new Tariff(new TariffSpecification(broker, PowerType.PRODUCTION));
+    List<Tariff> published = new ArrayList<Tariff>();
+    published.add(revoked);
+    published.add(production);
+    published.add(tariff);
+    models.clear();
+    EvaluatingCustomer consumer =
+        new EvaluatingCustomer("consumer", PowerType.CONSUMPTION);
+    EvaluatingCustomer interruptible =
+        new EvaluatingCustomer("interruptible",
+                               PowerType.INTERRUPTIBLE_CONSUMPTION);
+    EvaluatingCustomer producer =
+        new EvaluatingCustomer("producer", PowerType.PRODUCTION);
+    models.add(consumer);
+    models.add(interruptible);
+    models.add(producer);
+    service.publishNewTariffs(published);
+    for (AbstractCustomer model : models) {
+      EvaluatingCustomer customer = (EvaluatingCustomer) model;
+      assertEquals(customer.getName() + " evaluated once",
+                   1, customer.evaluations.size());
+    }
+    // revoked tariffs go to everyone, new ones by PowerType
+    assertEquals("consumer", Arrays.asList(revoked, tariff),
+                 consumer.evaluations.get(0));
+    assertEquals("interruptible", Arrays.asList(revoked, tariff),
+                 interruptible.evaluations.get(0));
+    assertEquals("producer", Arrays.asList(revoked, production),
+                 producer.evaluations.get(0));
+  }
+
+  @Test
+  public void testPublishWithNothingRelevant ()
+  {
+    Broker broker = new Broker("Sam");
+    List<Tariff> published = new ArrayList<Tariff>();
+    published.add(new Tariff(new TariffSpecification(broker,
+                                                     PowerType.PRODUCTION)));
+    models.clear();
+    EvaluatingCustomer consumer =
+        new EvaluatingCustomer("consumer", PowerType.CONSUMPTION);
+    models.add(consumer);
+    service.publishNewTariffs(published);
+    assertEquals("evaluated anyway", 1, consumer.evaluations.size());
+    assertTrue("with an empty list", consumer.evaluations.get(0).isEmpty());
+  }
+
+  @Test
+  public void testLocalShardMatchesSequential ()
+  {
+    service.setStepThreads(1);
+    service.activate(new Instant(0l), 2);
+    List<String> sequential = new ArrayList<String>(calls);
+    calls.clear();
+    List<AbstractCustomer> sharded =
+        new ArrayList<AbstractCustomer>(models.subList(4, 8));
+    models.subList(4, 8).clear();
+    service.addShard(new LocalCustomerShard(sharded));
+    service.activate(new Instant(0l), 2);
+    // a shard replays its transactions, then its subscription requests
+    List<String> expected = new ArrayList<String>(sequential.subList(0, 8));
+    for (String call : sequential.subList(8, 16))
+      if (call.startsWith("CONSUME"))
+        expected.add(call);
+    for (String call : sequential.subList(8, 16))
+      if (call.startsWith("subscribe"))
+        expected.add(call);
+    assertEquals("shard effects replayed after local models",
+                 expected, calls);
+  }
+
+  @Test
+  public void testShardFailureMatchesSequential ()
+  {
+    ((SteppingCustomer) models.get(5)).fail = true;
+    service.setStepThreads(1);
+    String sequentialMessage = stepAndCatch();
+    List<String> sequential = new ArrayList<String>(calls);
+    calls.clear();
+    List<AbstractCustomer> sharded =
+        new ArrayList<AbstractCustomer>(models.subList(4, 8));
+    models.subList(4, 8).clear();
+    service.addShard(new LocalCustomerShard(sharded));
+    try {
+      service.activate(new Instant(0l), 2);
+      fail("exception expected");
+    }
+    catch (CustomerShardException cse) {
+      assertEquals("same failure", sequentialMessage,
+                   cse.getCause().getMessage());
+    }
+    // the shard's effects up to the failure, transactions first
+    List<String> expected = new ArrayList<String>(sequential.subList(0, 8));
+    expected.add(sequential.get(8));
+    expected.add(sequential.get(10));
+    expected.add(sequential.get(9));
+    assertEquals("replayed up to the failure", expected, calls);
+  }
+
+  @Test
+  public void testLocalFailureDiscardsShards ()
+  {
+    ((SteppingCustomer) models.get(2)).fail = true;
+    service.setStepThreads(1);
+    List<AbstractCustomer> sharded =
+        new ArrayList<AbstractCustomer>(models.subList(4, 8));
+    models.subList(4, 8).clear();
+    service.addShard(new LocalCustomerShard(sharded));
+    assertEquals("local failure", "c2 failed", stepAndCatch());
+    assertEquals("only local effects up to the failure", 5, calls.size());
+    // the shard's results do not leak into the next timeslot
+    ((SteppingCustomer) models.get(2)).fail = false;
+    calls.clear();
+    service.activate(new Instant(0l), 2);
+    assertEquals("clean next step", 16, calls.size());
+  }
+
+  @Test
+  public void testLocalShardPublish ()
+  {
+    Broker broker = new Broker("Sam");
+    List<Tariff> published = new ArrayList<Tariff>();
+    published.add(new Tariff(new TariffSpecification(broker,
+                                                     PowerType.PRODUCTION)));
+    published.add(tariff);
+    models.clear();
+    EvaluatingCustomer local =
+        new EvaluatingCustomer("local", PowerType.CONSUMPTION);
+    models.add(local);
+    List<AbstractCustomer> sharded = new ArrayList<AbstractCustomer>();
+    sharded.add(new EvaluatingCustomer("consumer", PowerType.CONSUMPTION));
+    sharded.add(new EvaluatingCustomer("producer", PowerType.PRODUCTION));
+    service.addShard(new LocalCustomerShard(sharded));
+    service.publishNewTariffs(published);
+    assertEquals("local model saw its tariffs",
+                 Arrays.asList(tariff), local.evaluations.get(0));
+    for (AbstractCustomer model : sharded) {
+      EvaluatingCustomer customer = (EvaluatingCustomer) model;
+      assertEquals(customer.getName() + " evaluated once",
+                   1, customer.evaluations.size());
+    }
+    assertEquals("sharded consumer saw its tariffs",
+                 Arrays.asList(tariff),
+                 ((EvaluatingCustomer) sharded.get(0)).evaluations.get(0));
+    assertEquals("sharded producer saw its tariffs",
+                 published.subList(0, 1),
+                 ((EvaluatingCustomer) sharded.get(1)).evaluations.get(0));
+  }
+
+  @Test
+  public void testParallelInitCreatesIdsInOrder ()
+  {
+    models.clear();
+    for (int i = 0; i < 8; i++)
+      models.add(new InitializingCustomer("i" + i, i));
+    service.setParallelInit(true);
+    service.setStepThreads(4);
+    List<CustomerInfo> customers = new ArrayList<CustomerInfo>();
+    service.initializeModels(customers);
+    assertEquals("one customer per model", 8, customers.size());
+    long lastId = Long.MIN_VALUE;
+    for (int i = 0; i < 8; i++) {
+      InitializingCustomer model = (InitializingCustomer) models.get(i);
+      assertSame("registered in model order",
+                 model.getCustomerInfos().get(0), customers.get(i));
+      assertTrue("ids in model order", customers.get(i).getId() > lastId);
+      lastId = customers.get(i).getId();
+      assertEquals("precomputed once", 1, model.precomputed);
+      assertTrue("precomputed after all initialized",
+                 model.initializedBeforePrecompute);
+    }
+  }
+
+  @Test
+  public void testParallelPrecomputeFailure ()
+  {
+    models.clear();
+    for (int i = 0; i < 4; i++)
+      models.add(new InitializingCustomer("i" + i, i));
+    ((InitializingCustomer) models.get(2)).fail = true;
+    service.setParallelInit(true);
+    service.setStepThreads(4);
+    try {
+      service.initializeModels(new ArrayList<CustomerInfo>());
+      fail("exception expected");
+    }
+    catch (IllegalStateException ise) {
+      assertEquals("failing model", "i2 failed", ise.getMessage());
+    }
+  }
+
+  private String stepAndCatch ()
+  {
+    try {
+      service.activate(new Instant(0l), 2);
+      fail("exception expected");
+    }
+    catch (IllegalStateException ise) {
+      return ise.getMessage();
+    }
+    return null;
+  }
+
+  // Posts a balancing transaction and a withdrawal through its
+  // subscription, after a delay that makes the models finish out of order
+  // when they run concurrently.
+  class SteppingCustomer extends AbstractCustomer
+  {
+    private int index;
+    private TariffSubscription subscription;
+    boolean fail = false;
+
+    SteppingCustomer (String name, int index)
+    {
+      super(name);
+      this.index = index;
+      CustomerInfo info =
+          new CustomerInfo(name, 10).withPowerType(PowerType.CONSUMPTION);
+      addCustomerInfo(info);
+      subscription = new TariffSubscription(info, tariff);
+      subscription.setCustomersCommitted(10);
+      ReflectionTestUtils.setField(subscription, "accountingService",
+                                   accounting);
+      ReflectionTestUtils.setField(subscription, "tariffMarketService",
+                                   tariffMarket);
+    }
+
+    @Override
+    public void initialize ()
+    {
+    }
+
+    @Override
+    public void step ()
+    {
+      try {
+        Thread.sleep((8 - index) % 4);
+      }
+      catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+      subscription.postBalancingControl(-1.0 - index);
+      if (fail)
+        throw new IllegalStateException(name + " failed");
+      subscription.unsubscribe(1 + index % 3);
+    }
+
+    @Override
+    public void evaluateTariffs (List<Tariff> tariffs)
+    {
+    }
+  }
+
+  // Creates its customer in initialize(), and checks in precompute() that
+  // every model has been initialized first
+  class InitializingCustomer extends AbstractCustomer
+  {
+    private int index;
+    int precomputed = 0;
+    boolean initializedBeforePrecompute = false;
+    boolean fail = false;
+
+    InitializingCustomer (String name, int index)
+    {
+      super(name);
+      this.index = index;
+    }
+
+    @Override
+    public void initialize ()
+    {
+      addCustomerInfo(new CustomerInfo(name, 10)
+                      .withPowerType(PowerType.CONSUMPTION));
+    }
+
+    @Override
+    public void precompute ()
+    {
+      try {
+        Thread.sleep((8 - index) % 4);
+      }
+      catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+      initializedBeforePrecompute = true;
+      for (AbstractCustomer model : models)
+        if (model.getCustomerInfos().isEmpty())
+          initializedBeforePrecompute = false;
+      if (fail)
+        throw new IllegalStateException(name + " failed");
+      precomputed += 1;
+    }
+
+    @Override
+    public void step ()
+    {
+    }
+
+    @Override
+    public void evaluateTariffs (List<Tariff> tariffs)
+    {
+    }
+  }
+
+  // Records the tariff lists it is asked to evaluate
+  class EvaluatingCustomer extends AbstractCustomer
+  {
+    List<List<Tariff>> evaluations = new ArrayList<List<Tariff>>();
+
+    EvaluatingCustomer (String name, PowerType type)
+    {
+      super(name);
+      addCustomerInfo(new CustomerInfo(name, 10).withPowerType(type));
+    }
+
+    @Override
+    public void initialize ()
+    {
+    }
+
+    @Override
+    public void step ()
+    {
+    }
+
+    @Override
+    public void evaluateTariffs (List<Tariff> tariffs)
+    {
+      evaluations.add(new ArrayList<Tariff>(tariffs));
+    }
+  }
+
+  class RecordingAccounting implements Accounting
+  {
+    @Override
+    public synchronized TariffTransaction
+    addTariffTransaction (TariffTransaction.Type txType, Tariff tariff,
+                          CustomerInfo customer, int customerCount,
+                          double kWh, double charge)
+    {
+      calls.add(txType + " " + customer.getName() + " " + kWh + " " + charge);
+      return null;
+    }
+
+    @Override
+    public MarketTransaction addMarketTransaction (Broker broker,
+                                                   Timeslot timeslot,
+                                                   double price, double mWh)
+    {
+      return null;
+    }
+
+    @Override
+    public DistributionTransaction addDistributionTransaction (Broker broker,
+                                                               double load,
+                                                               double fee)
+    {
+      return null;
+    }
+
+    @Override
+    public BalancingTransaction addBalancingTransaction (Broker broker,
+                                                         double imbalance,
+                                                         double charge)
+    {
+      return null;
+    }
+
+    @Override
+    public double getCurrentNetLoad (Broker broker)
+    {
+      return 0.0;
+    }
+
+    @Override
+    public Map<Broker, Map<TariffTransaction.Type, Double>>
+    getCurrentSupplyDemandByBroker ()
+    {
+      return null;
+    }
+
+    @Override
+    public double getCurrentMarketPosition (Broker broker)
+    {
+      return 0.0;
+    }
+
+    @Override
+    public List<TariffTransaction> getPendingTariffTransactions ()
+    {
+      return null;
+    }
+
+    @Override
+    public void activate (Instant time, int phase)
+    {
+    }
+  }
+
+  class RecordingTariffMarket implements TariffMarket
+  {
+    @Override
+    public synchronized void subscribeToTariff (Tariff tariff,
+                                                CustomerInfo customer,
+                                                int customerCount)
+    {
+      calls.add("subscribe " + customer.getName() + " " + customerCount);
+    }
+
+    @Override
+    public List<Tariff> getActiveTariffList (PowerType type)
+    {
+      return null;
+    }
+
+    @Override
+    public Tariff getDefaultTariff (PowerType type)
+    {
+      return null;
+    }
+
+    @Override
+    public boolean setDefaultTariff (TariffSpecification newTariff)
+    {
+      return false;
+    }
+
+    @Override
+    public void registerNewTariffListener (NewTariffListener listener)
+    {
+    }
+
+    @Override
+    public void processRevokedTariffs ()
+    {
+    }
+  }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.Instant;
+import org.junit.Before;
+import org.junit.Test;
+import org.powertac.common.Broker;
+import org.powertac.common.CustomerEffectRecorder;
+import org.powertac.common.CustomerInfo;
+import org.powertac.common.Tariff;
+import org.powertac.common.TariffSpecification;
+import org.powertac.common.TariffSubscription;
+import org.powertac.common.TariffTransaction;
+import org.powertac.common.XMLMessageConverter;
+import org.powertac.common.enumerations.PowerType;
+import org.powertac.common.repo.CustomerRepo;
+import org.powertac.common.repo.TariffRepo;
+import org.powertac.common.repo.TariffSubscriptionRepo;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Tests for CustomerShardWorker, serving requests from byte streams.
+ */
+public class CustomerShardWorkerTests
+{
+  private Tariff tariff;
+  private Tariff badTariff;
+  private CustomerInfo alice;
+  private TariffRepo tariffRepo;
+  private CustomerRepo customerRepo;
+  private TariffSubscriptionRepo subscriptionRepo;
+  private List<Integer> serials;
+  private CommittedCustomer model;
+  private List<AbstractCustomer> models;
+
+  @Before
+  public void setUp ()
+  {
+    Broker broker = new Broker("Jenny");
+    tariff = new Tariff(new TariffSpecification(broker, PowerType.CONSUMPTION));
+    // cannot be encoded
+    badTariff =
+        new Tariff(new TariffSpecification(broker, PowerType.CONSUMPTION)) {
+      @Override
+      public long getId ()
+      {
+        throw new IllegalStateException("no id");
+      }
+    };
+    alice = new CustomerInfo("alice", 10).withPowerType(PowerType.CONSUMPTION);
+    tariffRepo = new TariffRepo() {
+      @Override
+      public Tariff findTariffById (long id)
+      {
+        return (id == tariff.getId()) ? tariff : null;
+      }
+    };
+    customerRepo = new CustomerRepo() {
+      @Override
+      public CustomerInfo findById (long id)
+      {
+        return (id == alice.getId()) ? alice : null;
+      }
+    };
+    subscriptionRepo = new TariffSubscriptionRepo();
+    serials = new ArrayList<Integer>();
+    model = new CommittedCustomer();
+    models = new ArrayList<AbstractCustomer>();
+    models.add(model);
+  }
+
+  private CustomerShardWorker createWorker ()
+  {
+    ShardServiceAccessor service = new ShardServiceAccessor() {
+      @Override
+      void setTime (Instant time, int serialNumber)
+      {
+        serials.add(serialNumber);
+      }
+    };
+    ReflectionTestUtils.setField(service, "tariffRepo", tariffRepo);
+    ReflectionTestUtils.setField(service, "customerRepo", customerRepo);
+    ReflectionTestUtils.setField(service, "tariffSubscriptionRepo",
+                                 subscriptionRepo);
+    ReflectionTestUtils.setField(service, "messageConverter",
+                                 new XMLMessageConverter() {
+      @Override
+      public String toXML (Object message)
+      {
+        return "customer " + ((CustomerInfo) message).getId();
+      }
+    });
+    return new CustomerShardWorker(models, service);
+  }
+
+  @Test
+  public void testHello () throws IOException
+  {
+    ByteArrayOutputStream replies = new ByteArrayOutputStream();
+    createWorker().serve(input(new ByteArrayOutputStream()),
+                         new DataOutputStream(replies));
+    DataInputStream in = input(replies);
+    List<String> types = ShardCodec.readTexts(in);
+    assertEquals("one model type", 1, types.size());
+    assertEquals("model class", CommittedCustomer.class.getName(),
+                 types.get(0));
+    List<String> customers = ShardCodec.readTexts(in);
+    assertEquals("one customer", 1, customers.size());
+    assertEquals("alice", "customer " + alice.getId(), customers.get(0));
+    assertEquals("nothing left over", -1, in.read());
+  }
+
+  @Test
+  public void testFailedReplyKeepsStream () throws IOException
+  {
+    ByteArrayOutputStream requests = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(requests);
+    writeActivate(out, 7);
+    writeActivate(out, 4);
+    out.writeByte(ShardCodec.CLOSE);
+
+    // first step records a transaction that cannot be encoded
+    model.txTariff = badTariff;
+    ByteArrayOutputStream replies = new ByteArrayOutputStream();
+    createWorker().serve(input(requests), new DataOutputStream(replies));
+
+    DataInputStream in = readHello(replies);
+    assertEquals("first reply failed", ShardCodec.FAILED, in.readByte());
+    assertTrue("failure described", ShardCodec.readText(in).contains("no id"));
+    CustomerEffectRecorder recorder = new CustomerEffectRecorder();
+    ShardCodec.readEffects(in, tariffRepo, customerRepo, recorder);
+    assertTrue("nothing sent", recorder.isEmpty());
+    assertEquals("state sent", 1, ShardCodec.readSubscriptions(in).size());
+    assertEquals("second reply ok", ShardCodec.OK, in.readByte());
+    ShardCodec.readEffects(in, tariffRepo, customerRepo, recorder);
+    assertEquals("one transaction", 1,
+                 recorder.getTransactions().size());
+    assertEquals("committed count from second request", 4,
+                 recorder.getTransactions().getCustomerCount(0));
+    ShardCodec.readSubscriptions(in);
+    assertEquals("nothing left over", -1, in.read());
+    assertEquals("clock set each time", 2, serials.size());
+    assertEquals("timeslot", 5, serials.get(1).intValue());
+  }
+
+  @Test
+  public void testModelFailure () throws IOException
+  {
+    CommittedCustomer later = new CommittedCustomer();
+    models.add(later);
+    model.fail = true;
+    ByteArrayOutputStream requests = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(requests);
+    writeActivate(out, 7);
+    out.writeByte(ShardCodec.CLOSE);
+    ByteArrayOutputStream replies = new ByteArrayOutputStream();
+    createWorker().serve(input(requests), new DataOutputStream(replies));
+
+    DataInputStream in = readHello(replies);
+    assertEquals("reply failed", ShardCodec.FAILED, in.readByte());
+    assertTrue("failing model named",
+               ShardCodec.readText(in).contains("committed"));
+    CustomerEffectRecorder recorder = new CustomerEffectRecorder();
+    ShardCodec.readEffects(in, tariffRepo, customerRepo, recorder);
+    assertEquals("effects up to the failure", 1,
+                 recorder.getTransactions().size());
+    assertEquals("later model not stepped", 0, later.committed.size());
+  }
+
+  @Test
+  public void testSubscriptionsSynced () throws IOException
+  {
+    subscriptionRepo.getSubscription(alice, tariff).setCustomersCommitted(10);
+    ByteArrayOutputStream requests = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(requests);
+    writeActivate(out, 6);
+    // server reports alice has left the tariff
+    out.writeByte(ShardCodec.ACTIVATE);
+    writeNoTariffs(out);
+    out.writeLong(0l);
+    out.writeInt(2);
+    out.writeInt(5);
+    ShardCodec.writeText(out, null);
+    ShardCodec.writeSubscriptions(out, new ArrayList<TariffSubscription>());
+    out.writeByte(ShardCodec.CLOSE);
+
+    model.unsubscribe = 2;
+    ByteArrayOutputStream replies = new ByteArrayOutputStream();
+    createWorker().serve(input(requests), new DataOutputStream(replies));
+    assertEquals("two steps", 2, model.committed.size());
+    assertEquals("count from server", 6, model.committed.get(0).intValue());
+    assertEquals("withdrawal from server", 0,
+                 model.committed.get(1).intValue());
+
+    // the worker's state goes back with the first reply
+    DataInputStream in = readHello(replies);
+    assertEquals("reply ok", ShardCodec.OK, in.readByte());
+    CustomerEffectRecorder recorder = new CustomerEffectRecorder();
+    ShardCodec.readEffects(in, tariffRepo, customerRepo, recorder);
+    assertEquals("withdrawal requested", -2, recorder
+        .getSubscriptionRequests().get(0).getCustomerCount());
+    ShardCodec.SubscriptionState state = ShardCodec.readSubscriptions(in);
+    assertEquals("one subscription", 1, state.size());
+    assertEquals("pending unsubscribes", 2, state.pendingUnsubscribes[0]);
+    assertEquals("usage from server", 1.5, state.totalUsage[0], 1e-6);
+  }
+
+  @Test
+  public void testTariffsUpdated () throws IOException
+  {
+    // the server revoked the tariff before publishing
+    List<Tariff> tariffs = new ArrayList<Tariff>();
+    tariffs.add(tariff);
+    tariff.setState(Tariff.State.KILLED);
+    ByteArrayOutputStream requests = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(requests);
+    out.writeByte(ShardCodec.PUBLISH);
+    ShardCodec.writeTariffs(out, tariffs, nulls(1), nulls(1));
+    out.writeInt(1);
+    out.writeLong(tariff.getId());
+    ShardCodec.writeSubscriptions(out, new ArrayList<TariffSubscription>());
+    out.writeByte(ShardCodec.CLOSE);
+    tariff.setState(Tariff.State.OFFERED);
+
+    createWorker().serve(input(requests),
+                         new DataOutputStream(new ByteArrayOutputStream()));
+    assertTrue("worker copy revoked", tariff.isRevoked());
+    assertEquals("published", 1, model.evaluations.size());
+    assertSame("tariff found", tariff, model.evaluations.get(0).get(0));
+  }
+
+  // Writes an activation carrying alice's committed count on tariff
+  private void writeActivate (DataOutputStream out, int committed)
+    throws IOException
+  {
+    out.writeByte(ShardCodec.ACTIVATE);
+    writeNoTariffs(out);
+    out.writeLong(0l);
+    out.writeInt(2);
+    out.writeInt(5);
+    ShardCodec.writeText(out, null);
+    TariffSubscription serverSub = new TariffSubscription(alice, tariff);
+    serverSub.setCustomersCommitted(committed);
+    serverSub.setTimeslotState(1.5, 0, 0.0, 0.0, 0.0, 0.0);
+    List<TariffSubscription> subs = new ArrayList<TariffSubscription>();
+    subs.add(serverSub);
+    ShardCodec.writeSubscriptions(out, subs);
+  }
+
+  private void writeNoTariffs (DataOutputStream out) throws IOException
+  {
+    ShardCodec.writeTariffs(out, new ArrayList<Tariff>(), nulls(0), nulls(0));
+  }
+
+  private List<String> nulls (int count)
+  {
+    List<String> result = new ArrayList<String>();
+    for (int i = 0; i < count; i++)
+      result.add(null);
+    return result;
+  }
+
+  // Skips the worker's greeting
+  private DataInputStream readHello (ByteArrayOutputStream replies)
+    throws IOException
+  {
+    DataInputStream result = input(replies);
+    ShardCodec.readTexts(result);
+    ShardCodec.readTexts(result);
+    return result;
+  }
+
+  private DataInputStream input (ByteArrayOutputStream bytes)
+  {
+    return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+  }
+
+  // Records the committed count it sees in the worker's repo, and a
+  // transaction carrying that count, then switches to the good tariff.
+  // Can also withdraw customers, or fail after recording.
+  class CommittedCustomer extends AbstractCustomer
+  {
+    Tariff txTariff = tariff;
+    List<Integer> committed = new ArrayList<Integer>();
+    List<List<Tariff>> evaluations = new ArrayList<List<Tariff>>();
+    int unsubscribe = 0;
+    boolean fail = false;
+
+    CommittedCustomer ()
+    {
+      super("committed");
+      addCustomerInfo(alice);
+    }
+
+    @Override
+    public void initialize ()
+    {
+    }
+
+    @Override
+    public void step ()
+    {
+      TariffSubscription sub = subscriptionRepo.getSubscription(alice, tariff);
+      int count = sub.getCustomersCommitted();
+      committed.add(count);
+      CustomerEffectRecorder.current()
+          .addTariffTransaction(TariffTransaction.Type.CONSUME, txTariff,
+                                alice, count, -1.0, 0.1);
+      txTariff = tariff;
+      if (fail)
+        throw new IllegalStateException("failed");
+      if (unsubscribe > 0) {
+        sub.unsubscribe(unsubscribe);
+        unsubscribe = 0;
+      }
+    }
+
+    @Override
+    public void evaluateTariffs (List<Tariff> tariffs)
+    {
+      evaluations.add(new ArrayList<Tariff>(tariffs));
+    }
+  }
+}
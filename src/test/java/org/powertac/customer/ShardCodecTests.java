@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2015 by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.powertac.common.Broker;
+import org.powertac.common.CustomerEffectRecorder;
+import org.powertac.common.CustomerInfo;
+import org.powertac.common.Tariff;
+import org.powertac.common.TariffSpecification;
+import org.powertac.common.TariffSubscription;
+import org.powertac.common.TariffTransaction;
+import org.powertac.common.TariffTransactionBatch;
+import org.powertac.common.enumerations.PowerType;
+import org.powertac.common.repo.CustomerRepo;
+import org.powertac.common.repo.TariffRepo;
+import org.powertac.common.repo.TariffSubscriptionRepo;
+
+/**
+ * Round-trip tests for the shard wire format.
+ */
+public class ShardCodecTests
+{
+  private Tariff tariff1;
+  private Tariff tariff2;
+  private Tariff unknownTariff;
+  private CustomerInfo alice;
+  private CustomerInfo bob;
+  private CustomerInfo unknownCustomer;
+  private TariffRepo tariffRepo;
+  private CustomerRepo customerRepo;
+
+  @Before
+  public void setUp ()
+  {
+    Broker broker = new Broker("Jenny");
+    tariff1 = new Tariff(new TariffSpecification(broker, PowerType.CONSUMPTION));
+    tariff2 = new Tariff(new TariffSpecification(broker, PowerType.CONSUMPTION));
+    unknownTariff =
+        new Tariff(new TariffSpecification(broker, PowerType.CONSUMPTION));
+    alice = new CustomerInfo("alice", 10).withPowerType(PowerType.CONSUMPTION);
+    bob = new CustomerInfo("bob", 20).withPowerType(PowerType.CONSUMPTION);
+    unknownCustomer =
+        new CustomerInfo("nobody", 5).withPowerType(PowerType.CONSUMPTION);
+    tariffRepo = new TariffRepo() {
+      @Override
+      public Tariff findTariffById (long id)
+      {
+        if (id == tariff1.getId())
+          return tariff1;
+        if (id == tariff2.getId())
+          return tariff2;
+        return null;
+      }
+    };
+    customerRepo = new CustomerRepo() {
+      @Override
+      public CustomerInfo findById (long id)
+      {
+        if (id == alice.getId())
+          return alice;
+        if (id == bob.getId())
+          return bob;
+        return null;
+      }
+    };
+  }
+
+  @Test
+  public void testTexts () throws IOException
+  {
+    List<String> texts = new ArrayList<String>();
+    texts.add("<cust-info name=\"alice\"/>");
+    texts.add(null);
+    texts.add("K\u00f6ln");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ShardCodec.writeTexts(new DataOutputStream(bytes), texts);
+    assertEquals("round trip", texts, ShardCodec.readTexts(input(bytes)));
+  }
+
+  @Test
+  public void testTariffs () throws IOException
+  {
+    List<Tariff> tariffs = new ArrayList<Tariff>();
+    tariffs.add(tariff1);
+    tariffs.add(tariff2);
+    tariff2.setState(Tariff.State.KILLED);
+    List<String> brokers = new ArrayList<String>();
+    brokers.add("Jenny");
+    brokers.add(null);
+    List<String> specs = new ArrayList<String>();
+    specs.add("<tariff-spec/>");
+    specs.add(null);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ShardCodec.writeTariffs(new DataOutputStream(bytes), tariffs, brokers,
+                            specs);
+    List<ShardCodec.TariffRecord> records =
+        ShardCodec.readTariffs(input(bytes));
+    assertEquals("two records", 2, records.size());
+    assertEquals("first id", tariff1.getId(), records.get(0).id);
+    assertEquals("first broker", "Jenny", records.get(0).broker);
+    assertEquals("first spec", "<tariff-spec/>", records.get(0).spec);
+    assertEquals("second id", tariff2.getId(), records.get(1).id);
+    assertEquals("second state", Tariff.State.KILLED.ordinal(),
+                 records.get(1).state);
+    assertNull("no spec for a known tariff", records.get(1).spec);
+  }
+
+  @Test
+  public void testEffects () throws IOException
+  {
+    CustomerEffectRecorder sent = new CustomerEffectRecorder();
+    sent.addTariffTransaction(TariffTransaction.Type.CONSUME, tariff1, alice,
+                              10, -30.0, 4.5);
+    sent.addTariffTransaction(TariffTransaction.Type.CONSUME, unknownTariff,
+                              alice, 10, -1.0, 0.1);
+    sent.addTariffTransaction(TariffTransaction.Type.WITHDRAW, tariff2, bob,
+                              3, 0.0, -2.0);
+    sent.subscribeToTariff(tariff2, alice, 4);
+    sent.subscribeToTariff(tariff1, unknownCustomer, 2);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    ShardCodec.writeEffects(out, sent);
+    out.writeInt(42);
+
+    CustomerEffectRecorder received = new CustomerEffectRecorder();
+    DataInputStream in = input(bytes);
+    ShardCodec.readEffects(in, tariffRepo, customerRepo, received);
+    assertEquals("frame fully read", 42, in.readInt());
+
+    TariffTransactionBatch batch = received.getTransactions();
+    assertEquals("unknown tariff dropped", 2, batch.size());
+    assertEquals(TariffTransaction.Type.CONSUME, batch.getType(0));
+    assertSame(tariff1, batch.getTariff(0));
+    assertSame(alice, batch.getCustomer(0));
+    assertEquals(10, batch.getCustomerCount(0));
+    assertEquals(-30.0, batch.getKWh(0), 1e-6);
+    assertEquals(4.5, batch.getCharge(0), 1e-6);
+    assertEquals(TariffTransaction.Type.WITHDRAW, batch.getType(1));
+    assertSame(tariff2, batch.getTariff(1));
+    assertSame(bob, batch.getCustomer(1));
+    assertEquals(3, batch.getCustomerCount(1));
+    assertEquals(-2.0, batch.getCharge(1), 1e-6);
+
+    List<CustomerEffectRecorder.SubscriptionRequest> requests =
+        received.getSubscriptionRequests();
+    assertEquals("unknown customer dropped", 1, requests.size());
+    assertSame(tariff2, requests.get(0).getTariff());
+    assertSame(alice, requests.get(0).getCustomer());
+    assertEquals(4, requests.get(0).getCustomerCount());
+  }
+
+  @Test
+  public void testSubscriptionState () throws IOException
+  {
+    List<TariffSubscription> serverState = new ArrayList<TariffSubscription>();
+    TariffSubscription regulated = subscription(alice, tariff1, 6);
+    regulated.setTimeslotState(12.5, 0, 0.4, 1.5, 2.0, -1.0);
+    serverState.add(regulated);
+    serverState.add(subscription(bob, tariff2, 20));
+    serverState.add(subscription(unknownCustomer, tariff1, 5));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ShardCodec.writeSubscriptions(new DataOutputStream(bytes), serverState);
+    ShardCodec.SubscriptionState state =
+        ShardCodec.readSubscriptions(input(bytes));
+    assertEquals("all entries read", 3, state.size());
+
+    // worker has alice partly on tariff2, not yet on tariff1
+    TariffSubscriptionRepo workerRepo = new TariffSubscriptionRepo();
+    workerRepo.getSubscription(alice, tariff2).setCustomersCommitted(10);
+    List<CustomerInfo> customers = new ArrayList<CustomerInfo>();
+    customers.add(alice);
+    customers.add(bob);
+    state.apply(tariffRepo, customerRepo, workerRepo, customers);
+
+    TariffSubscription moved = workerRepo.getSubscription(alice, tariff1);
+    assertEquals("alice moved to tariff1", 6, moved.getCustomersCommitted());
+    assertEquals("usage", 12.5, moved.getTotalUsage(), 1e-6);
+    assertEquals("ratio", 0.4, moved.getPendingRegulationRatio(), 1e-6);
+    assertEquals("regulation", 1.5, moved.getUnreadRegulation(), 1e-6);
+    assertEquals("up capacity", 2.0,
+                 moved.getRegulationCapacity().getUpRegulationCapacity(),
+                 1e-6);
+    assertEquals("down capacity", -1.0,
+                 moved.getRegulationCapacity().getDownRegulationCapacity(),
+                 1e-6);
+    assertEquals("alice left tariff2", 0,
+                 workerRepo.getSubscription(alice, tariff2)
+                     .getCustomersCommitted());
+    assertEquals("bob on tariff2", 20,
+                 workerRepo.getSubscription(bob, tariff2)
+                     .getCustomersCommitted());
+    assertEquals("unknown customer ignored", 0,
+                 workerRepo.findSubscriptionsForCustomer(unknownCustomer)
+                     .size());
+  }
+
+  @Test
+  public void testApplyTimeslotState () throws IOException
+  {
+    List<TariffSubscription> workerState = new ArrayList<TariffSubscription>();
+    TariffSubscription workerSub = subscription(alice, tariff1, 4);
+    workerSub.setTimeslotState(3.0, 2, 0.0, 0.5, 1.0, 0.0);
+    workerState.add(workerSub);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ShardCodec.writeSubscriptions(new DataOutputStream(bytes), workerState);
+
+    TariffSubscriptionRepo serverRepo = new TariffSubscriptionRepo();
+    TariffSubscription serverSub = serverRepo.getSubscription(alice, tariff1);
+    serverSub.setCustomersCommitted(6);
+    ShardCodec.readSubscriptions(input(bytes))
+        .applyTimeslotState(tariffRepo, customerRepo, serverRepo);
+    assertEquals("committed count kept", 6, serverSub.getCustomersCommitted());
+    assertEquals("usage", 3.0, serverSub.getTotalUsage(), 1e-6);
+    assertEquals("pending unsubscribes", 2,
+                 serverSub.getPendingUnsubscribeCount());
+    assertEquals("regulation", 0.5, serverSub.getUnreadRegulation(), 1e-6);
+    assertEquals("up capacity", 1.0,
+                 serverSub.getRegulationCapacity().getUpRegulationCapacity(),
+                 1e-6);
+  }
+
+  private TariffSubscription subscription (CustomerInfo customer,
+                                           Tariff tariff, int count)
+  {
+    TariffSubscription result = new TariffSubscription(customer, tariff);
+    result.setCustomersCommitted(count);
+    return result;
+  }
+
+  private DataInputStream input (ByteArrayOutputStream bytes)
+  {
+    return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+  }
+}